@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Sets;
+import com.google.gwt.json.client.JSONValue;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+/**
+ * Registration and dispatch cost of composite {@link AuthHandler}s: one
+ * {@link AuthHandlerList} entry per handler, against the former six event bus
+ * registrations kept in a {@code HashSet}.
+ * <p>
+ * Runs on the JVM, where the event bus and handler list behave as in compiled
+ * code, so only the relative costs are meaningful.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthHandlerBenchmark {
+
+	@Param({ "1", "10", "50" })
+	public int handlers;
+
+	private AuthHandler[] handlerArray;
+	private HandlerRegistration[] registrations;
+
+	private EventBus eventBus;
+	private AuthHandlerList handlerList;
+
+	@Setup
+	public void setUp() {
+		handlerArray = new AuthHandler[handlers];
+		for (int i = 0; i < handlers; i++) {
+			handlerArray[i] = new CountingHandler();
+		}
+		registrations = new HandlerRegistration[handlers];
+
+		eventBus = new SimpleEventBus();
+		handlerList = new AuthHandlerList();
+		for (AuthHandler handler : handlerArray) {
+			registerOnBus(eventBus, handler);
+			handlerList.add(handler);
+		}
+	}
+
+	/** Registers and removes all handlers, once per event type. */
+	@Benchmark
+	public void registerOnBus() {
+		final EventBus bus = new SimpleEventBus();
+		for (int i = 0; i < handlers; i++) {
+			registrations[i] = registerOnBus(bus, handlerArray[i]);
+		}
+		for (HandlerRegistration registration : registrations) {
+			registration.removeHandler();
+		}
+	}
+
+	/** Registers and removes all handlers, once each. */
+	@Benchmark
+	public void registerOnList() {
+		final AuthHandlerList list = new AuthHandlerList();
+		for (int i = 0; i < handlers; i++) {
+			registrations[i] = list.add(handlerArray[i]);
+		}
+		for (HandlerRegistration registration : registrations) {
+			registration.removeHandler();
+		}
+	}
+
+	/** Fires an event through the bus, looked up by event type. */
+	@Benchmark
+	public void dispatchOnBus() {
+		eventBus.fireEvent(AuthLoggingInEvent.INSTANCE);
+	}
+
+	/** Dispatches an event to the composite handlers directly. */
+	@Benchmark
+	public Set<Throwable> dispatchOnList() {
+		return handlerList.dispatch(AuthLoggingInEvent.INSTANCE, null);
+	}
+
+	/**
+	 * Registers a handler as {@code Persona.addHandler} used to.
+	 */
+	private static HandlerRegistration registerOnBus(EventBus bus, AuthHandler handler) {
+		final Set<HandlerRegistration> registrations = Sets.newHashSet();
+		registrations.add(AuthLoggedInEvent.register(bus, handler));
+		registrations.add(AuthLoggedOutEvent.register(bus, handler));
+		registrations.add(AuthLoggingInEvent.register(bus, handler));
+		registrations.add(AuthLoggingOutEvent.register(bus, handler));
+		registrations.add(AuthCancelledEvent.register(bus, handler));
+		registrations.add(AuthErrorEvent.register(bus, handler));
+
+		return new HandlerRegistration() {
+			@Override
+			public void removeHandler() {
+				for (HandlerRegistration registration : registrations) {
+					registration.removeHandler();
+				}
+			}
+		};
+	}
+
+	private static final class CountingHandler implements AuthHandler {
+		int calls;
+
+		@Override
+		public void onAuthLoggedIn(String user, JSONValue payload) {
+			calls++;
+		}
+
+		@Override
+		public void onAuthError(AuthErrorCode code, String message) {
+			calls++;
+		}
+
+		@Override
+		public void onAuthLoggedOut() {
+			calls++;
+		}
+
+		@Override
+		public void onAuthLoggingIn() {
+			calls++;
+		}
+
+		@Override
+		public void onAuthLoggingOut() {
+			calls++;
+		}
+
+		@Override
+		public void onAuthCancelled() {
+			calls++;
+		}
+	}
+
+}
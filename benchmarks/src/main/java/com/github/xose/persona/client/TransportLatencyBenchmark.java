@@ -0,0 +1,315 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Login round trip over loopback: a {@link JsonPersonaBackend} style POST,
+ * with the headers a browser adds, against a {@link SocketPersonaBackend}
+ * frame over a connection kept open.
+ * <p>
+ * Both servers answer at once without verifying, so only the transport cost
+ * is measured. The client backends need a browser, so the requests are
+ * written as they would send them: a form post on a new or kept alive
+ * connection, and a masked WebSocket text frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransportLatencyBenchmark {
+
+	/** Size of a typical assertion, certificate included. */
+	private static final int ASSERTION_SIZE = 1500;
+
+	private static final byte[] HTTP_REPLY = "{\"status\":\"okay\",\"email\":\"user@example.com\",\"expires\":0}"
+			.getBytes(Charsets.UTF_8);
+	private static final byte[] SOCKET_REPLY = "{\"type\":\"persona.reply\",\"id\":1,\"status\":\"okay\",\"email\":\"user@example.com\",\"expires\":0}"
+			.getBytes(Charsets.UTF_8);
+
+	private HttpServer httpServer;
+	private ServerSocket socketServer;
+
+	private byte[] httpRequest;
+	private byte[] closingHttpRequest;
+	private byte[] socketRequest;
+
+	private Socket httpConnection;
+	private InputStream httpIn;
+	private Socket socketConnection;
+	private InputStream socketIn;
+
+	@Setup
+	public void setUp() throws IOException {
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+		// Headers and body are written apart, which would wait on delayed acks
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		httpServer = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+		httpServer.createContext("/persona/login", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				ByteStreams.toByteArray(exchange.getRequestBody());
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(200, HTTP_REPLY.length);
+				exchange.getResponseBody().write(HTTP_REPLY);
+				exchange.close();
+			}
+		});
+		httpServer.start();
+
+		socketServer = new ServerSocket(0, 0, loopback);
+		final Thread socketThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serveFrames();
+			}
+		}, "socket-server");
+		socketThread.setDaemon(true);
+		socketThread.start();
+
+		final String assertion = randomAssertion();
+		final int httpPort = httpServer.getAddress().getPort();
+		httpRequest = httpRequest(httpPort, assertion, "keep-alive");
+		closingHttpRequest = httpRequest(httpPort, assertion, "close");
+		socketRequest = frame(("{\"type\":\"persona.login\",\"id\":1,\"assertion\":\"" + assertion + "\"}").getBytes(Charsets.UTF_8),
+				true);
+
+		httpConnection = connect(httpServer.getAddress());
+		httpIn = new BufferedInputStream(httpConnection.getInputStream());
+		socketConnection = connect(new InetSocketAddress(loopback, socketServer.getLocalPort()));
+		socketIn = new BufferedInputStream(socketConnection.getInputStream());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		httpConnection.close();
+		socketConnection.close();
+		socketServer.close();
+		httpServer.stop(0);
+	}
+
+	/** Posts the assertion on a new connection, as a first login does. */
+	@Benchmark
+	public byte[] xhrNewConnection() throws IOException {
+		final Socket connection = connect(httpServer.getAddress());
+		try {
+			connection.getOutputStream().write(closingHttpRequest);
+			return readHttpReply(new BufferedInputStream(connection.getInputStream()));
+		} finally {
+			connection.close();
+		}
+	}
+
+	/** Posts the assertion on a kept alive connection. */
+	@Benchmark
+	public byte[] xhrKeepAlive() throws IOException {
+		httpConnection.getOutputStream().write(httpRequest);
+		return readHttpReply(httpIn);
+	}
+
+	/** Sends the assertion as a frame over the open socket. */
+	@Benchmark
+	public byte[] socket() throws IOException {
+		socketConnection.getOutputStream().write(socketRequest);
+		return readFrame(socketIn);
+	}
+
+	/**
+	 * Answers every frame on each accepted connection, until the server is
+	 * closed.
+	 */
+	private void serveFrames() {
+		final byte[] reply = frame(SOCKET_REPLY, false);
+		while (!socketServer.isClosed()) {
+			try (Socket connection = socketServer.accept()) {
+				connection.setTcpNoDelay(true);
+				final InputStream in = new BufferedInputStream(connection.getInputStream());
+				final OutputStream out = connection.getOutputStream();
+				while (true) {
+					readFrame(in);
+					out.write(reply);
+				}
+			} catch (IOException e) {
+				// Connection or server closed
+			}
+		}
+	}
+
+	private static Socket connect(InetSocketAddress address) throws IOException {
+		final Socket socket = new Socket(address.getAddress(), address.getPort());
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	private static String randomAssertion() {
+		final Random random = new Random(42);
+		final char[] chars = new char[ASSERTION_SIZE];
+		final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.~";
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Builds a login request with the headers a browser sends along.
+	 */
+	private static byte[] httpRequest(int port, String assertion, String connection) {
+		final String body = "assertion=" + assertion;
+		final String origin = "http://127.0.0.1:" + port;
+		return ("POST /persona/login HTTP/1.1\r\n" //
+				+ "Host: 127.0.0.1:" + port + "\r\n" //
+				+ "Connection: " + connection + "\r\n" //
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:20.0) Gecko/20100101 Firefox/20.0\r\n" //
+				+ "Accept: */*\r\n" //
+				+ "Accept-Language: en-US,en;q=0.5\r\n" //
+				+ "Accept-Encoding: gzip, deflate\r\n" //
+				+ "Content-Type: application/x-www-form-urlencoded; charset=utf-8\r\n" //
+				+ "Origin: " + origin + "\r\n" //
+				+ "Referer: " + origin + "/app/\r\n" //
+				+ "Cookie: JSESSIONID=" + Strings.repeat("0", 26) + "\r\n" //
+				+ "Content-Length: " + body.length() + "\r\n" //
+				+ "\r\n" + body).getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Reads a response with a {@code Content-Length}, returning its body.
+	 */
+	private static byte[] readHttpReply(InputStream in) throws IOException {
+		int length = -1;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			final int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).equalsIgnoreCase("Content-Length"))
+				length = Integer.parseInt(line.substring(colon + 1).trim());
+		}
+		if (length < 0)
+			throw new IOException("Missing content length");
+
+		final byte[] body = new byte[length];
+		ByteStreams.readFully(in, body);
+		return body;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException();
+			if (b != '\r')
+				line.write(b);
+		}
+		return new String(line.toByteArray(), Charsets.ISO_8859_1);
+	}
+
+	/**
+	 * Builds a final text frame, masked as clients must send them.
+	 */
+	private static byte[] frame(byte[] payload, boolean masked) {
+		final ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+		frame.write(0x81);
+		final int mask = masked ? 0x80 : 0;
+		if (payload.length < 126) {
+			frame.write(mask | payload.length);
+		} else if (payload.length < 65536) {
+			frame.write(mask | 126);
+			frame.write(payload.length >>> 8);
+			frame.write(payload.length);
+		} else {
+			frame.write(mask | 127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				frame.write(shift < 32 ? payload.length >>> shift : 0);
+			}
+		}
+
+		final byte[] key = { 0x12, 0x34, 0x56, 0x78 };
+		if (masked)
+			frame.write(key, 0, key.length);
+		for (int i = 0; i < payload.length; i++) {
+			frame.write(masked ? payload[i] ^ key[i & 3] : payload[i]);
+		}
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Reads a single frame, returning its unmasked payload.
+	 */
+	private static byte[] readFrame(InputStream in) throws IOException {
+		final byte[] header = new byte[2];
+		ByteStreams.readFully(in, header);
+
+		final boolean masked = (header[1] & 0x80) != 0;
+		long length = header[1] & 0x7f;
+		if (length >= 126) {
+			final byte[] extended = new byte[length == 126 ? 2 : 8];
+			ByteStreams.readFully(in, extended);
+			length = 0;
+			for (byte b : extended) {
+				length = length << 8 | b & 0xff;
+			}
+		}
+
+		final byte[] key = new byte[4];
+		if (masked)
+			ByteStreams.readFully(in, key);
+		final byte[] payload = new byte[(int) length];
+		ByteStreams.readFully(in, payload);
+		if (masked) {
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] ^= key[i & 3];
+			}
+		}
+		return payload;
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Local identity provider issuing benchmark inputs.
+ * <p>
+ * Keys are generated from fixed seeds, so every run verifies the same
+ * certificates and assertions.
+ */
+final class BenchmarkIdp {
+
+	static final String DOMAIN = "example.com";
+	static final String AUDIENCE = "https://rp.example.org";
+	static final String EMAIL = "user@example.com";
+
+	/** Expiry time of all certificates and assertions, far in the future. */
+	static final long EXPIRES = 4102444800000L;
+
+	private static final BaseEncoding BASE64URL = BaseEncoding.base64Url().omitPadding();
+
+	private final KeyPair keys = generate("RSA", 2048, 1);
+
+	PublicKey getPublicKey() {
+		return keys.getPublic();
+	}
+
+	/**
+	 * Generates a key pair from a fixed seed.
+	 */
+	static KeyPair generate(String algorithm, int size, long seed) {
+		try {
+			final SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+			random.setSeed(seed);
+			final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+			generator.initialize(size, random);
+			return generator.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Generates a user key for a signature algorithm, {@code RS256} or
+	 * {@code DS128}.
+	 */
+	static KeyPair generateUserKey(String alg) {
+		return alg.startsWith("DS") ? generate("DSA", 1024, 2) : generate("RSA", 2048, 3);
+	}
+
+	/**
+	 * Issues a certificate for a user key.
+	 */
+	String certify(PublicKey userKey) {
+		final String payload = "{\"iss\":\"" + DOMAIN + "\",\"exp\":" + EXPIRES + ",\"iat\":" + (EXPIRES - 3600000) + ",\"public-key\":"
+				+ toJson(userKey) + ",\"principal\":{\"email\":\"" + EMAIL + "\"}}";
+		return sign("RS256", keys.getPrivate(), payload);
+	}
+
+	/**
+	 * Creates a backed identity assertion, signed with the user key.
+	 */
+	String assertion(KeyPair user) {
+		return assertion(certify(user.getPublic()), user, 0);
+	}
+
+	/**
+	 * Creates a backed identity assertion, made unique by a nonce.
+	 */
+	static String assertion(String certificate, KeyPair user, int nonce) {
+		final String alg = user.getPublic() instanceof DSAPublicKey ? "DS128" : "RS256";
+		return certificate + "~"
+				+ sign(alg, user.getPrivate(), "{\"exp\":" + (EXPIRES - nonce) + ",\"aud\":\"" + AUDIENCE + "\"}");
+	}
+
+	/**
+	 * Returns a support document for the issuer key.
+	 */
+	String supportDocument() {
+		return "{\"public-key\":" + toJson(keys.getPublic()) + ",\"authentication\":\"/browserid/sign_in.html\","
+				+ "\"provisioning\":\"/browserid/provision.html\"}";
+	}
+
+	private static String sign(String alg, PrivateKey key, String payload) {
+		final String input = encode("{\"alg\":\"" + alg + "\"}") + "." + encode(payload);
+		try {
+			final Signature signature = Signature.getInstance(alg.startsWith("DS") ? "SHA1withDSA" : "SHA256withRSA");
+			signature.initSign(key);
+			signature.update(input.getBytes(Charsets.US_ASCII));
+			byte[] bytes = signature.sign();
+			if (alg.startsWith("DS"))
+				bytes = toRaw(bytes, 20);
+			return input + "." + BASE64URL.encode(bytes);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(String json) {
+		return BASE64URL.encode(json.getBytes(Charsets.UTF_8));
+	}
+
+	private static String toJson(PublicKey key) {
+		if (key instanceof RSAPublicKey) {
+			final RSAPublicKey rsa = (RSAPublicKey) key;
+			return "{\"algorithm\":\"RS\",\"n\":\"" + rsa.getModulus() + "\",\"e\":\"" + rsa.getPublicExponent() + "\"}";
+		}
+
+		final DSAPublicKey dsa = (DSAPublicKey) key;
+		return "{\"algorithm\":\"DS\",\"y\":\"" + dsa.getY().toString(16) + "\",\"p\":\"" + dsa.getParams().getP().toString(16) + "\",\"q\":\""
+				+ dsa.getParams().getQ().toString(16) + "\",\"g\":\"" + dsa.getParams().getG().toString(16) + "\"}";
+	}
+
+	/**
+	 * Converts a DER DSA signature to the fixed size {@code r || s} format.
+	 */
+	private static byte[] toRaw(byte[] der, int size) {
+		int i = 2;
+		final int rLength = der[i + 1];
+		final BigInteger r = new BigInteger(Arrays.copyOfRange(der, i + 2, i + 2 + rLength));
+		i += 2 + rLength;
+		final int sLength = der[i + 1];
+		final BigInteger s = new BigInteger(Arrays.copyOfRange(der, i + 2, i + 2 + sLength));
+
+		final byte[] raw = new byte[2 * size];
+		copy(r, raw, 0, size);
+		copy(s, raw, size, size);
+		return raw;
+	}
+
+	private static void copy(BigInteger value, byte[] dst, int offset, int size) {
+		final byte[] bytes = value.toByteArray();
+		final int length = Math.min(bytes.length, size);
+		System.arraycopy(bytes, bytes.length - length, dst, offset + size - length, length);
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding steps: base64url, the streaming assertion decoder, and the
+ * general JSON parser used for support documents.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+	private String assertion;
+	private String certificate;
+	private int payloadStart;
+	private int payloadEnd;
+	private String supportDocument;
+	private byte[] buffer;
+	private AssertionDecoder decoder;
+
+	@Setup
+	public void setUp() {
+		final BenchmarkIdp idp = new BenchmarkIdp();
+		assertion = idp.assertion(BenchmarkIdp.generateUserKey("RS256"));
+		certificate = assertion.substring(0, assertion.indexOf('~'));
+		supportDocument = idp.supportDocument();
+		payloadStart = certificate.indexOf('.') + 1;
+		payloadEnd = certificate.indexOf('.', payloadStart);
+		buffer = new byte[certificate.length()];
+		decoder = AssertionDecoder.get();
+	}
+
+	/** Base64url decoding of a certificate payload. */
+	@Benchmark
+	public int decodeBase64url() throws VerificationException {
+		return AssertionDecoder.decodeBase64(certificate, payloadStart, payloadEnd, buffer);
+	}
+
+	/** Splitting, decoding and scanning the claims of a certificate and assertion. */
+	@Benchmark
+	public int decodeAssertion() throws VerificationException {
+		return decoder.decode(assertion);
+	}
+
+	/** Parsing a support document to maps and lists. */
+	@Benchmark
+	public Map<String, Object> parseSupportDocument() throws VerificationException {
+		return Json.parseObject(supportDocument);
+	}
+
+}
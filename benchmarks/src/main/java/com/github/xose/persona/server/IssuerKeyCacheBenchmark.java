@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.security.PublicKey;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Issuer key lookups. Misses fetch from memory, parsing the support document
+ * as a real fetcher would, so they measure the cache overhead and not the
+ * network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IssuerKeyCacheBenchmark {
+
+	private IssuerKeyCache cache;
+
+	@Setup
+	public void setUp() throws VerificationException {
+		final String document = new BenchmarkIdp().supportDocument();
+		cache = new IssuerKeyCache(new IssuerKeyFetcher() {
+			@Override
+			public PublicKey fetch(String issuer) throws VerificationException {
+				return PublicKeys.parse(Json.getObject(Json.parseObject(document), "public-key"));
+			}
+		}, 1, TimeUnit.HOURS, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		cache.resolve(BenchmarkIdp.DOMAIN);
+	}
+
+	@Benchmark
+	public PublicKey hit() throws VerificationException {
+		return cache.resolve(BenchmarkIdp.DOMAIN);
+	}
+
+	@Benchmark
+	public PublicKey miss() throws VerificationException {
+		cache.invalidate(BenchmarkIdp.DOMAIN);
+		return cache.resolve(BenchmarkIdp.DOMAIN);
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.xose.persona.server.ReplayCache.Result;
+
+/**
+ * Replay cache insertions in steady state. Each thread has its own clock,
+ * advanced by one per insertion, and its assertions expire after
+ * {@value #WINDOW} insertions, so stripes keep purging and never fill up.
+ * <p>
+ * See {@link ReplayCacheFootprint} for the memory used per entry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayCacheBenchmark {
+
+	private static final int WINDOW = 1 << 11;
+	private static final int ASSERTIONS = 2 * WINDOW;
+
+	private static final AtomicInteger threads = new AtomicInteger();
+	private static final String prefix = new BenchmarkIdp().assertion(BenchmarkIdp.generateUserKey("RS256"));
+
+	private final ReplayCache cache = new ReplayCache(1 << 16);
+
+	/**
+	 * Per thread inputs: strings shaped like assertions, without the signing
+	 * cost, reused once expired.
+	 */
+	@State(Scope.Thread)
+	public static class Input {
+		final String[] assertions = new String[ASSERTIONS];
+		long now;
+		long digest;
+
+		@Setup
+		public void setUp() {
+			final int thread = threads.getAndIncrement();
+			for (int i = 0; i < assertions.length; i++) {
+				assertions[i] = prefix + "." + thread + "." + i;
+			}
+			digest = thread * 0x5851f42d4c957f2dL;
+		}
+	}
+
+	/** Insertion, including the SHA-256 digest of the assertion. */
+	@Benchmark
+	public Result add(Input input) {
+		final long now = input.now++;
+		return cache.add(input.assertions[(int) now & (ASSERTIONS - 1)], now + WINDOW, now);
+	}
+
+	/** Insertion of a precomputed digest, measuring the table alone. */
+	@Benchmark
+	public Result addDigest(Input input) {
+		final long now = input.now++;
+		final long digest = input.digest += 0x9e3779b97f4a7c15L;
+		return cache.add(digest, Long.reverse(digest), now + WINDOW, now);
+	}
+
+	/** Insertion from concurrent login threads. */
+	@Benchmark
+	@Threads(4)
+	public Result addContended(Input input) {
+		return add(input);
+	}
+
+}
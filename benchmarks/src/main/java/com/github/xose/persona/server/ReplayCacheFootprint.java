@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Prints the retained size of replay caches, and the memory used per entry
+ * when full.
+ * <p>
+ * Run with
+ * {@code java -cp target/benchmarks.jar com.github.xose.persona.server.ReplayCacheFootprint}.
+ */
+public final class ReplayCacheFootprint {
+
+	private ReplayCacheFootprint() {
+	}
+
+	public static void main(String[] args) {
+		System.out.println("entries,bytes,bytesPerEntry");
+		for (int entries = 1000; entries <= 1000000; entries *= 10) {
+			final ReplayCache cache = new ReplayCache(entries);
+			final long bytes = GraphLayout.parseInstance(cache).totalSize();
+			System.out.println(entries + "," + bytes + "," + (double) bytes / entries);
+		}
+	}
+
+}
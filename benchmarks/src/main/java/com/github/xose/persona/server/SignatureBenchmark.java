@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.xose.persona.server.AssertionDecoder.Token;
+
+/**
+ * Signature verification of an assertion, for each user key algorithm.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureBenchmark {
+
+	@Param({ "RS256", "DS128" })
+	public String alg;
+
+	private AssertionDecoder decoder;
+	private Token token;
+	private PublicKey key;
+
+	@Setup
+	public void setUp() throws VerificationException {
+		final KeyPair user = BenchmarkIdp.generateUserKey(alg);
+		decoder = AssertionDecoder.get();
+		decoder.decode(new BenchmarkIdp().assertion(user));
+		token = decoder.token(1);
+		key = user.getPublic();
+	}
+
+	@Benchmark
+	public void verify() throws VerificationException {
+		PublicKeys.verify(token, key, decoder);
+	}
+
+}
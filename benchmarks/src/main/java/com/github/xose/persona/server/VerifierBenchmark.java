@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * End to end verification of an assertion with a cached issuer key: decoding,
+ * both signatures and the claim checks. The replay cache is left out, so the
+ * same assertion can be verified repeatedly; see {@link ReplayCacheBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VerifierBenchmark {
+
+	@Param({ "RS256", "DS128" })
+	public String alg;
+
+	private Verifier verifier;
+	private String assertion;
+
+	@Setup
+	public void setUp() {
+		final BenchmarkIdp idp = new BenchmarkIdp();
+		verifier = new Verifier(new IssuerKeyResolver() {
+			@Override
+			public PublicKey resolve(String issuer) {
+				return idp.getPublicKey();
+			}
+		}, ImmutableSet.<String> of(), null);
+		assertion = idp.assertion(BenchmarkIdp.generateUserKey(alg));
+	}
+
+	@Benchmark
+	public VerifiedAssertion verify() throws VerificationException {
+		return verifier.verify(assertion, BenchmarkIdp.AUDIENCE);
+	}
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * A backend callback whose caller may stop waiting for the result, for
+ * example because the call timed out.
+ * <p>
+ * Backends sharing a request between callers, such as
+ * {@link JsonPersonaBackend}, send a new request rather than attaching a
+ * caller to one nobody is waiting for any more.
+ */
+interface AbandonableCallback<T> extends AsyncCallback<T> {
+
+	/**
+	 * Returns whether the caller has stopped waiting for the result.
+	 * 
+	 * @return true if the result will be ignored
+	 */
+	boolean isAbandoned();
+
+}
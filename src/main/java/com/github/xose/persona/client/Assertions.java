@@ -0,0 +1,49 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+/**
+ * Helpers for handling assertions on the client side.
+ * <p>
+ * Nothing here verifies an assertion, that must be done by the backend.
+ */
+final class Assertions {
+
+	private Assertions() {
+	}
+
+	/**
+	 * Extracts the email address from the certificate of an assertion,
+	 * without verifying it.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @return the certified email address, or null if it cannot be decoded
+	 */
+	static native String peekEmail(String assertion) /*-{
+		try {
+			var cert = assertion.split('~')[0].split('.')[1];
+			cert = cert.replace(/-/g, '+').replace(/_/g, '/');
+			while (cert.length % 4)
+				cert += '=';
+			return JSON.parse($wnd.atob(cert)).principal.email || null;
+		} catch (e) {
+			return null;
+		}
+	}-*/;
+
+}
@@ -16,18 +16,22 @@
 
 package com.github.xose.persona.client;
 
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthCancelledEvent extends Event<AuthCancelledHandler> {
+class AuthCancelledEvent extends AuthEvent<AuthCancelledHandler> {
 
 	private static final Type<AuthCancelledHandler> TYPE = new Type<AuthCancelledHandler>();
 
+	static final AuthCancelledEvent INSTANCE = new AuthCancelledEvent();
+
 	static final HandlerRegistration register(EventBus eventBus, AuthCancelledHandler handler) {
 		return eventBus.addHandler(TYPE, handler);
 	}
 
+	private AuthCancelledEvent() {
+	}
+
 	@Override
 	public Type<AuthCancelledHandler> getAssociatedType() {
 		return TYPE;
@@ -38,4 +42,9 @@ class AuthCancelledEvent extends Event<AuthCancelledHandler> {
 		handler.onAuthCancelled();
 	}
 
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
+	}
+
 }
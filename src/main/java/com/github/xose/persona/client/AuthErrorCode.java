@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.RequestTimeoutException;
+
+/**
+ * Authentication error codes.
+ */
+public enum AuthErrorCode {
+	/** The request could not be sent, or no response was received. */
+	NETWORK(true),
+	/** The backend did not reply in time. */
+	TIMEOUT(true),
+	/** The backend failed or is overloaded. */
+	SERVER(true),
+	/** The backend rejected the assertion. */
+	REJECTED(false),
+	/** The backend reply could not be understood. */
+	INVALID_RESPONSE(false),
+	/** The call was not made because the backend is known to be failing. */
+	CIRCUIT_OPEN(false),
+	/** The backend does not support the operation. */
+	UNSUPPORTED(false),
+	/** No backend has been set. */
+	NO_BACKEND(false),
+	/** Any other error. */
+	UNKNOWN(false);
+
+	private final boolean retryable;
+
+	private AuthErrorCode(boolean retryable) {
+		this.retryable = retryable;
+	}
+
+	/**
+	 * Returns whether the same call may succeed if retried later.
+	 * 
+	 * @return true if the error is transient
+	 */
+	public boolean isRetryable() {
+		return retryable;
+	}
+
+	/**
+	 * Returns the error code for a backend failure.
+	 * 
+	 * @param caught
+	 *            the failure passed to the backend callback
+	 * @return the error code
+	 */
+	public static AuthErrorCode of(Throwable caught) {
+		if (caught instanceof PersonaBackendException)
+			return ((PersonaBackendException) caught).getCode();
+		if (caught instanceof RequestTimeoutException)
+			return TIMEOUT;
+		if (caught instanceof RequestException)
+			return NETWORK;
+		return UNKNOWN;
+	}
+
+}
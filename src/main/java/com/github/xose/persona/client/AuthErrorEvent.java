@@ -17,11 +17,10 @@
 package com.github.xose.persona.client;
 
 import com.google.common.base.Preconditions;
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthErrorEvent extends Event<AuthErrorHandler> {
+class AuthErrorEvent extends AuthEvent<AuthErrorHandler> {
 
 	private static final Type<AuthErrorHandler> TYPE = new Type<AuthErrorHandler>();
 
@@ -34,15 +33,22 @@ class AuthErrorEvent extends Event<AuthErrorHandler> {
 		return TYPE;
 	}
 
+	private final AuthErrorCode code;
 	private final String message;
 
-	AuthErrorEvent(String message) {
-		this.message = Preconditions.checkNotNull(message);
+	AuthErrorEvent(AuthErrorCode code, String message) {
+		this.code = Preconditions.checkNotNull(code);
+		this.message = message;
 	}
 
 	@Override
 	protected void dispatch(AuthErrorHandler handler) {
-		handler.onAuthError(message);
+		handler.onAuthError(code, message);
+	}
+
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
 	}
 
 }
@@ -26,8 +26,10 @@ public interface AuthErrorHandler {
 	 * <p>
 	 * The current Persona status is not modified.
 	 * 
+	 * @param code
+	 *            the error code
 	 * @param message
-	 *            the error message
+	 *            the error message, may be null
 	 */
-	void onAuthError(String message);
+	void onAuthError(AuthErrorCode code, String message);
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * Composite {@link AuthHandler} registrations.
+ * <p>
+ * Each handler is registered once, instead of once per event type, and
+ * events are dispatched to it with a single virtual call. Handlers are kept
+ * in a copy-on-write array, so adding or removing handlers while an event is
+ * being dispatched does not affect that dispatch.
+ */
+final class AuthHandlerList {
+
+	private static final AuthHandler[] EMPTY = new AuthHandler[0];
+
+	private AuthHandler[] handlers = EMPTY;
+
+	HandlerRegistration add(final AuthHandler handler) {
+		checkNotNull(handler);
+
+		final AuthHandler[] copy = new AuthHandler[handlers.length + 1];
+		System.arraycopy(handlers, 0, copy, 0, handlers.length);
+		copy[handlers.length] = handler;
+		handlers = copy;
+
+		return new HandlerRegistration() {
+			private boolean removed;
+
+			@Override
+			public void removeHandler() {
+				if (!removed) {
+					removed = true;
+					remove(handler);
+				}
+			}
+		};
+	}
+
+	private void remove(AuthHandler handler) {
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i] == handler) {
+				final AuthHandler[] copy = new AuthHandler[handlers.length - 1];
+				System.arraycopy(handlers, 0, copy, 0, i);
+				System.arraycopy(handlers, i + 1, copy, i, copy.length - i);
+				handlers = copy;
+				return;
+			}
+		}
+	}
+
+	int size() {
+		return handlers.length;
+	}
+
+	/**
+	 * Returns the current handlers. The array must not be modified.
+	 */
+	AuthHandler[] snapshot() {
+		return handlers;
+	}
+
+	/**
+	 * Dispatches an event to all handlers.
+	 * <p>
+	 * As with the event bus, every handler is called even if some of them
+	 * throw.
+	 * 
+	 * @param event
+	 *            the event to dispatch
+	 * @param causes
+	 *            exceptions already thrown while firing the event, or null
+	 * @return the given exceptions plus the ones thrown by the handlers, or
+	 *         null if there are none
+	 */
+	@Nullable
+	Set<Throwable> dispatch(AuthEvent<?> event, @Nullable Set<Throwable> causes) {
+		final AuthHandler[] snapshot = handlers;
+		for (AuthHandler handler : snapshot) {
+			try {
+				event.dispatchTo(handler);
+			} catch (Throwable e) {
+				if (causes == null)
+					causes = new HashSet<Throwable>();
+				causes.add(e);
+			}
+		}
+		return causes;
+	}
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.web.bindery.event.shared.Event;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+class AuthLoadFailedEvent extends Event<AuthLoadFailedHandler> {
+
+	private static final Type<AuthLoadFailedHandler> TYPE = new Type<AuthLoadFailedHandler>();
+
+	static final HandlerRegistration register(EventBus eventBus, AuthLoadFailedHandler handler) {
+		return eventBus.addHandler(TYPE, handler);
+	}
+
+	@Override
+	public Type<AuthLoadFailedHandler> getAssociatedType() {
+		return TYPE;
+	}
+
+	private final boolean timedOut;
+
+	AuthLoadFailedEvent(boolean timedOut) {
+		this.timedOut = timedOut;
+	}
+
+	@Override
+	protected void dispatch(AuthLoadFailedHandler handler) {
+		handler.onAuthLoadFailed(timedOut);
+	}
+
+}
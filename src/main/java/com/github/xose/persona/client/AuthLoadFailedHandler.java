@@ -0,0 +1,34 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+/**
+ * Handler interface for Persona script load failure events.
+ */
+public interface AuthLoadFailedHandler {
+
+	/**
+	 * Called when the Persona script could not be loaded.
+	 * <p>
+	 * Pending calls are kept and will be replayed on the next load attempt.
+	 * 
+	 * @param timedOut
+	 *            true if the script did not load within the configured
+	 *            timeout, false if loading failed
+	 */
+	void onAuthLoadFailed(boolean timedOut);
+}
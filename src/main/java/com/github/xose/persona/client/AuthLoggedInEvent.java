@@ -16,12 +16,14 @@
 
 package com.github.xose.persona.client;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
-import com.google.web.bindery.event.shared.Event;
+import com.google.gwt.json.client.JSONValue;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthLoggedInEvent extends Event<AuthLoggedInHandler> {
+class AuthLoggedInEvent extends AuthEvent<AuthLoggedInHandler> {
 
 	private static final Type<AuthLoggedInHandler> TYPE = new Type<AuthLoggedInHandler>();
 
@@ -35,14 +37,21 @@ class AuthLoggedInEvent extends Event<AuthLoggedInHandler> {
 	}
 
 	private final String user;
+	private final JSONValue payload;
 
-	AuthLoggedInEvent(String user) {
+	AuthLoggedInEvent(String user, @Nullable JSONValue payload) {
 		this.user = Preconditions.checkNotNull(user);
+		this.payload = payload;
 	}
 
 	@Override
 	protected void dispatch(AuthLoggedInHandler handler) {
-		handler.onAuthLoggedIn(user);
+		handler.onAuthLoggedIn(user, payload);
+	}
+
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
 	}
 
 }
@@ -16,6 +16,10 @@
 
 package com.github.xose.persona.client;
 
+import javax.annotation.Nullable;
+
+import com.google.gwt.json.client.JSONValue;
+
 /**
  * Handler interface for authentication success events.
  */
@@ -23,9 +27,18 @@ public interface AuthLoggedInHandler {
 
 	/**
 	 * Called when a Persona login succeeds.
+	 * <p>
+	 * The payload is the application data the backend returned with the
+	 * login as a JSON value, see {@link LoginResult#getPayload()}. Handlers
+	 * read it with the {@link JSONValue} accessors, such as
+	 * {@link JSONValue#isObject()}. A user restored with
+	 * {@link Persona#watch(String)} or from the {@link SessionCache} has no
+	 * payload.
 	 * 
 	 * @param user
 	 *            the verified user
+	 * @param payload
+	 *            the login payload, or null if there is none
 	 */
-	void onAuthLoggedIn(String user);
+	void onAuthLoggedIn(String user, @Nullable JSONValue payload);
 }
\ No newline at end of file
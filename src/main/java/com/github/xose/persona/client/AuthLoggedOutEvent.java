@@ -16,18 +16,22 @@
 
 package com.github.xose.persona.client;
 
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthLoggedOutEvent extends Event<AuthLoggedOutHandler> {
+class AuthLoggedOutEvent extends AuthEvent<AuthLoggedOutHandler> {
 
 	private static final Type<AuthLoggedOutHandler> TYPE = new Type<AuthLoggedOutHandler>();
 
+	static final AuthLoggedOutEvent INSTANCE = new AuthLoggedOutEvent();
+
 	static final HandlerRegistration register(EventBus eventBus, AuthLoggedOutHandler handler) {
 		return eventBus.addHandler(TYPE, handler);
 	}
 
+	private AuthLoggedOutEvent() {
+	}
+
 	@Override
 	public Type<AuthLoggedOutHandler> getAssociatedType() {
 		return TYPE;
@@ -38,4 +42,9 @@ class AuthLoggedOutEvent extends Event<AuthLoggedOutHandler> {
 		handler.onAuthLoggedOut();
 	}
 
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
+	}
+
 }
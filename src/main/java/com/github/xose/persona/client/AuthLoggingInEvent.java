@@ -16,18 +16,22 @@
 
 package com.github.xose.persona.client;
 
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthLoggingInEvent extends Event<AuthLoggingInHandler> {
+class AuthLoggingInEvent extends AuthEvent<AuthLoggingInHandler> {
 
 	private static final Type<AuthLoggingInHandler> TYPE = new Type<AuthLoggingInHandler>();
 
+	static final AuthLoggingInEvent INSTANCE = new AuthLoggingInEvent();
+
 	static final HandlerRegistration register(EventBus eventBus, AuthLoggingInHandler handler) {
 		return eventBus.addHandler(TYPE, handler);
 	}
 
+	private AuthLoggingInEvent() {
+	}
+
 	@Override
 	public Type<AuthLoggingInHandler> getAssociatedType() {
 		return TYPE;
@@ -38,4 +42,9 @@ class AuthLoggingInEvent extends Event<AuthLoggingInHandler> {
 		handler.onAuthLoggingIn();
 	}
 
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
+	}
+
 }
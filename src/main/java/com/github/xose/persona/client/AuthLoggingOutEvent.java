@@ -16,18 +16,22 @@
 
 package com.github.xose.persona.client;
 
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 
-class AuthLoggingOutEvent extends Event<AuthLoggingOutHandler> {
+class AuthLoggingOutEvent extends AuthEvent<AuthLoggingOutHandler> {
 
 	private static final Type<AuthLoggingOutHandler> TYPE = new Type<AuthLoggingOutHandler>();
 
+	static final AuthLoggingOutEvent INSTANCE = new AuthLoggingOutEvent();
+
 	static final HandlerRegistration register(EventBus eventBus, AuthLoggingOutHandler handler) {
 		return eventBus.addHandler(TYPE, handler);
 	}
 
+	private AuthLoggingOutEvent() {
+	}
+
 	@Override
 	public Type<AuthLoggingOutHandler> getAssociatedType() {
 		return TYPE;
@@ -38,4 +42,9 @@ class AuthLoggingOutEvent extends Event<AuthLoggingOutHandler> {
 		handler.onAuthLoggingOut();
 	}
 
+	@Override
+	void dispatchTo(AuthHandler handler) {
+		dispatch(handler);
+	}
+
 }
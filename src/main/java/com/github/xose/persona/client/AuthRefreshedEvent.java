@@ -0,0 +1,54 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import javax.annotation.Nullable;
+
+import com.google.gwt.json.client.JSONValue;
+import com.google.web.bindery.event.shared.Event;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+class AuthRefreshedEvent extends Event<AuthRefreshedHandler> {
+
+	private static final Type<AuthRefreshedHandler> TYPE = new Type<AuthRefreshedHandler>();
+
+	static final HandlerRegistration register(EventBus eventBus, AuthRefreshedHandler handler) {
+		return eventBus.addHandler(TYPE, handler);
+	}
+
+	@Override
+	public Type<AuthRefreshedHandler> getAssociatedType() {
+		return TYPE;
+	}
+
+	private final AuthErrorCode error;
+	private final double expires;
+	private final JSONValue payload;
+
+	AuthRefreshedEvent(@Nullable AuthErrorCode error, double expires, @Nullable JSONValue payload) {
+		this.error = error;
+		this.expires = expires;
+		this.payload = payload;
+	}
+
+	@Override
+	protected void dispatch(AuthRefreshedHandler handler) {
+		handler.onAuthRefreshed(error, expires, payload);
+	}
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import javax.annotation.Nullable;
+
+import com.google.gwt.json.client.JSONValue;
+
+/**
+ * Handler interface for session refresh events.
+ */
+public interface AuthRefreshedHandler {
+
+	/**
+	 * Called after each attempt to refresh the session of the logged in user.
+	 * <p>
+	 * A failed refresh is retried while the session has not expired. When it
+	 * expires, the user is logged out.
+	 * 
+	 * @param error
+	 *            null if the session has been refreshed, the error code
+	 *            otherwise
+	 * @param expires
+	 *            the session expiry time, in milliseconds since the epoch
+	 * @param payload
+	 *            application data the backend returned with the refresh, as
+	 *            a JSON value, or null if there is none
+	 */
+	void onAuthRefreshed(AuthErrorCode error, double expires, @Nullable JSONValue payload);
+}
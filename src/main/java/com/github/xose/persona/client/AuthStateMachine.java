@@ -0,0 +1,285 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.github.xose.persona.client.Persona.Status;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Login status of the current user.
+ * <p>
+ * Status changes are checked against a fixed transition table. Changes that
+ * would not alter the status, the user or the assertion being verified are
+ * dropped before any event is created, and the caller is told so, which lets
+ * it skip calling the backend for work that is already done or in progress.
+ */
+final class AuthStateMachine {
+
+	private static final int STATES = Status.values().length;
+
+	/**
+	 * Allowed transitions, indexed by the ordinal of the source and target
+	 * status. Self transitions are only allowed where they may carry a new
+	 * user or assertion.
+	 */
+	private static final boolean[] TRANSITIONS = new boolean[STATES * STATES];
+
+	static {
+		allow(Status.UNKNOWN, Status.LOGGEDOUT, Status.LOGGEDIN, Status.LOGGINGIN, Status.LOGGINGOUT);
+		allow(Status.LOGGEDOUT, Status.LOGGEDIN, Status.LOGGINGIN);
+		allow(Status.LOGGEDIN, Status.LOGGEDOUT, Status.LOGGEDIN, Status.LOGGINGIN, Status.LOGGINGOUT);
+		allow(Status.LOGGINGIN, Status.LOGGEDOUT, Status.LOGGEDIN, Status.LOGGINGIN, Status.LOGGINGOUT);
+		allow(Status.LOGGINGOUT, Status.LOGGEDOUT, Status.LOGGEDIN, Status.LOGGINGIN);
+	}
+
+	private static void allow(Status from, Status... to) {
+		for (Status s : to)
+			TRANSITIONS[from.ordinal() * STATES + s.ordinal()] = true;
+	}
+
+	private final EventBus eventBus;
+	private final AuthHandlerList criticalHandlers = new AuthHandlerList();
+	private final AuthHandlerList handlers = new AuthHandlerList();
+	private DeferredDispatcher dispatcher;
+
+	private Status status = Status.UNKNOWN;
+	private String currentUser;
+	private String assertion;
+
+	AuthStateMachine(EventBus eventBus) {
+		this.eventBus = checkNotNull(eventBus);
+	}
+
+	/**
+	 * Registers a composite handler for all the events fired by this state
+	 * machine. Critical handlers are called first, normal handlers after the
+	 * handlers registered on the event bus.
+	 */
+	HandlerRegistration addHandler(AuthHandler handler, HandlerPriority priority) {
+		return priority == HandlerPriority.CRITICAL ? criticalHandlers.add(handler) : handlers.add(handler);
+	}
+
+	/**
+	 * Sets the dispatcher used for all but the critical handlers, or null to
+	 * call them synchronously.
+	 */
+	void setDispatcher(@Nullable DeferredDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	Status getStatus() {
+		return status;
+	}
+
+	@Nullable
+	String getCurrentUser() {
+		return currentUser;
+	}
+
+	/**
+	 * Sets the user known to be logged in, or logged out if null.
+	 * 
+	 * @param user
+	 *            the logged in user, or null
+	 * @param notify
+	 *            whether to fire a logged in event
+	 * @return false if the user was already set
+	 */
+	boolean restore(@Nullable String user, boolean notify) {
+		final Status to = user != null ? Status.LOGGEDIN : Status.LOGGEDOUT;
+		if (to == status && (user == null || user.equals(currentUser)))
+			return false;
+		if (!move(to))
+			return false;
+
+		currentUser = user;
+		assertion = null;
+		if (notify && user != null)
+			fire(new AuthLoggedInEvent(user, null));
+		return true;
+	}
+
+	/**
+	 * Starts verifying an assertion.
+	 * 
+	 * @param assertion
+	 *            the assertion received from Persona
+	 * @param email
+	 *            the email certified by the assertion, if known
+	 * @return false if the assertion is already being verified, or its user
+	 *         is already logged in
+	 */
+	boolean startLogin(String assertion, @Nullable String email) {
+		if (status == Status.LOGGINGIN && assertion.equals(this.assertion))
+			return false;
+		if (status == Status.LOGGEDIN
+				&& (assertion.equals(this.assertion) || email != null && email.equals(currentUser)))
+			return false;
+		if (!move(Status.LOGGINGIN))
+			return false;
+
+		this.assertion = assertion;
+		currentUser = null;
+		fire(AuthLoggingInEvent.INSTANCE);
+		return true;
+	}
+
+	/**
+	 * Completes the verification of an assertion.
+	 * 
+	 * @return false if the assertion is no longer the one being verified
+	 */
+	boolean completeLogin(String assertion, LoginResult result) {
+		checkNotNull(result);
+		if (!isLoggingIn(assertion) || !move(Status.LOGGEDIN))
+			return false;
+
+		currentUser = result.getUser();
+		fire(new AuthLoggedInEvent(currentUser, result.getPayload()));
+		return true;
+	}
+
+	/**
+	 * Records a refreshed session of the logged in user.
+	 * 
+	 * @return false if the user is no longer logged in
+	 */
+	boolean refreshed(String user, LoginResult result) {
+		return status == Status.LOGGEDIN && user.equals(currentUser) && user.equals(result.getUser());
+	}
+
+	/**
+	 * Logs out a user whose session has expired.
+	 * 
+	 * @return false if the user is no longer logged in
+	 */
+	boolean expire(String user) {
+		if (status != Status.LOGGEDIN || !user.equals(currentUser) || !move(Status.LOGGEDOUT))
+			return false;
+
+		currentUser = null;
+		assertion = null;
+		fire(AuthLoggedOutEvent.INSTANCE);
+		return true;
+	}
+
+	/**
+	 * Fails the verification of an assertion.
+	 * 
+	 * @return false if the assertion is no longer the one being verified
+	 */
+	boolean failLogin(String assertion, AuthErrorCode code, String message) {
+		if (!isLoggingIn(assertion) || !move(Status.LOGGEDOUT))
+			return false;
+
+		this.assertion = null;
+		fire(new AuthErrorEvent(code, message));
+		return true;
+	}
+
+	/**
+	 * Returns whether an assertion is the one being verified.
+	 */
+	boolean isLoggingIn(String assertion) {
+		return status == Status.LOGGINGIN && assertion.equals(this.assertion);
+	}
+
+	/**
+	 * Starts the logout procedure.
+	 * 
+	 * @return false if the user is already logged out or logging out
+	 */
+	boolean startLogout() {
+		if (!move(Status.LOGGINGOUT))
+			return false;
+
+		assertion = null;
+		fire(AuthLoggingOutEvent.INSTANCE);
+		return true;
+	}
+
+	/**
+	 * Completes the logout procedure.
+	 * 
+	 * @return false if no logout was in progress
+	 */
+	boolean completeLogout() {
+		if (status != Status.LOGGINGOUT || !move(Status.LOGGEDOUT))
+			return false;
+
+		currentUser = null;
+		fire(AuthLoggedOutEvent.INSTANCE);
+		return true;
+	}
+
+	/**
+	 * Fails the logout procedure, leaving the previous user logged in.
+	 * 
+	 * @return false if no logout was in progress
+	 */
+	boolean failLogout(AuthErrorCode code, String message) {
+		if (status != Status.LOGGINGOUT || !move(currentUser != null ? Status.LOGGEDIN : Status.LOGGEDOUT))
+			return false;
+
+		fire(new AuthErrorEvent(code, message));
+		return true;
+	}
+
+	/**
+	 * Notifies a cancelled login request. The status is not changed.
+	 */
+	void cancel() {
+		fire(AuthCancelledEvent.INSTANCE);
+	}
+
+	private void fire(AuthEvent<?> event) {
+		Set<Throwable> causes = criticalHandlers.dispatch(event, null);
+
+		if (dispatcher != null) {
+			dispatcher.enqueue(event, handlers.snapshot());
+		} else {
+			try {
+				eventBus.fireEvent(event);
+			} catch (UmbrellaException e) {
+				if (causes == null)
+					causes = new HashSet<Throwable>();
+				causes.addAll(e.getCauses());
+			}
+			causes = handlers.dispatch(event, causes);
+		}
+
+		if (causes != null)
+			throw new UmbrellaException(causes);
+	}
+
+	private boolean move(Status to) {
+		if (!TRANSITIONS[status.ordinal() * STATES + to.ordinal()])
+			return false;
+		status = to;
+		return true;
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.github.xose.persona.client.PersonaMetrics.Outcome;
+import com.github.xose.persona.client.PersonaMetrics.Phase;
+import com.google.web.bindery.event.shared.Event;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+class AuthTimingEvent extends Event<AuthTimingHandler> {
+
+	private static final Type<AuthTimingHandler> TYPE = new Type<AuthTimingHandler>();
+
+	static final HandlerRegistration register(EventBus eventBus, AuthTimingHandler handler) {
+		return eventBus.addHandler(TYPE, handler);
+	}
+
+	@Override
+	public Type<AuthTimingHandler> getAssociatedType() {
+		return TYPE;
+	}
+
+	private final Phase phase;
+	private final Outcome outcome;
+	private final double millis;
+
+	AuthTimingEvent(Phase phase, Outcome outcome, double millis) {
+		this.phase = phase;
+		this.outcome = outcome;
+		this.millis = millis;
+	}
+
+	@Override
+	protected void dispatch(AuthTimingHandler handler) {
+		handler.onAuthTiming(phase, outcome, millis);
+	}
+
+}
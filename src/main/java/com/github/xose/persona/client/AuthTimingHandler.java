@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.github.xose.persona.client.PersonaMetrics.Outcome;
+import com.github.xose.persona.client.PersonaMetrics.Phase;
+
+/**
+ * Handler interface for authentication timing events.
+ */
+public interface AuthTimingHandler {
+
+	/**
+	 * Called each time an authentication phase ends.
+	 * 
+	 * @param phase
+	 *            the phase
+	 * @param outcome
+	 *            how the phase ended
+	 * @param millis
+	 *            the elapsed time, in milliseconds
+	 */
+	void onAuthTiming(Phase phase, Outcome outcome, double millis);
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.json.client.JSONException;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.storage.client.Storage;
+import com.google.gwt.storage.client.StorageEvent;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Persona backend decorator that coordinates logins and logouts across
+ * browser tabs.
+ * <p>
+ * Persona calls {@code onlogin} and {@code onlogout} in every open tab. With
+ * this decorator, the tabs elect a leader through a lock in
+ * {@code localStorage}: only the leader calls the wrapped backend, and the
+ * result is published to the other tabs through storage events. Each tab
+ * then completes its own login or logout procedure and fires its own events.
+ * <p>
+ * Logins are coordinated by a hash of the identity certificate in the
+ * assertion, which all tabs share, so tabs never share the result of a login
+ * for a different user. The published result holds the whole
+ * {@link LoginResult} returned by the wrapped backend: the user, the session
+ * expiry time, the session token and the payload, so every tab tracks and
+ * refreshes the session as if it had logged in itself. If the leader fails,
+ * or does not publish a result in time, the waiting tabs fall back to
+ * calling the wrapped backend themselves.
+ * <p>
+ * The wrapped backend must set up a session shared by all tabs, for example
+ * with a cookie.
+ */
+public class CrossTabPersonaBackend implements RefreshablePersonaBackend {
+
+	private static final String LOGIN = "login";
+	private static final String LOGOUT = "logout";
+
+	private static final String LOCK_PREFIX = "persona.lock.";
+	private static final String RESULT_PREFIX = "persona.result.";
+
+	private static final String OK = "ok";
+	private static final String FAILED = "failed";
+
+	/** Time to wait for other tabs to write the lock before reading it back. */
+	private static final int SETTLE_DELAY = 50;
+	/** Maximum time a tab waits for the leader before calling the backend. */
+	private static final int LOCK_TIMEOUT = 10000;
+	/** Time a published result can be reused by tabs that were late. */
+	private static final int RESULT_TIMEOUT = 10000;
+
+	private final PersonaBackend delegate;
+	private final Storage storage;
+	private final String tabId = Double.toString(Math.random()).substring(2);
+
+	private final Map<String, PendingLogin> pendingLogins = Maps.newHashMap();
+	private final List<AsyncCallback<Void>> logoutWaiters = Lists.newArrayList();
+
+	/**
+	 * Identifies each logout wait, so that callbacks of an earlier wait are
+	 * ignored. Login waits are identified by their {@link PendingLogin}.
+	 */
+	private int logoutGeneration;
+
+	/**
+	 * Creates a new cross-tab backend.
+	 * <p>
+	 * If {@code localStorage} is not supported, all calls go straight to the
+	 * wrapped backend.
+	 * 
+	 * @param delegate
+	 *            the backend that verifies assertions
+	 */
+	public CrossTabPersonaBackend(PersonaBackend delegate) {
+		this.delegate = checkNotNull(delegate);
+		this.storage = Storage.getLocalStorageIfSupported();
+
+		if (storage != null) {
+			Storage.addStorageEventHandler(new StorageEvent.Handler() {
+				@Override
+				public void onStorageChange(StorageEvent event) {
+					if (event.getNewValue() == null)
+						return;
+					if ((RESULT_PREFIX + LOGIN).equals(event.getKey()))
+						onLoginResult(event.getNewValue());
+					else if ((RESULT_PREFIX + LOGOUT).equals(event.getKey()))
+						onLogoutResult(event.getNewValue());
+				}
+			});
+		}
+	}
+
+	@Override
+	public void doLogin(final String assertion, final AsyncCallback<LoginResult> callback) {
+		final String key = storage != null ? getKey(assertion) : null;
+		if (key == null) {
+			delegate.doLogin(assertion, callback);
+			return;
+		}
+
+		final LoginResult shared = getLogin(readResult(LOGIN), key);
+		if (shared != null) {
+			callback.onSuccess(shared);
+			return;
+		}
+
+		final PendingLogin pending = pendingLogins.get(key);
+		if (pending != null) {
+			pending.callbacks.add(callback);
+			return;
+		}
+
+		final PendingLogin started = new PendingLogin(assertion, callback);
+		pendingLogins.put(key, started);
+
+		final String lock = LOGIN + "." + key;
+		acquire(lock, new Runnable() {
+			@Override
+			public void run() {
+				if (pendingLogins.get(key) != started)
+					return;
+
+				delegate.doLogin(assertion, new AsyncCallback<LoginResult>() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						release(lock);
+						publish(LOGIN, LOGOUT, OK + ":" + key + ":" + encode(result));
+						removePendingLogin(key, started).onSuccess(result);
+					}
+
+					@Override
+					public void onFailure(Throwable caught) {
+						release(lock);
+						publish(LOGIN, null, FAILED + ":" + key + ":");
+						removePendingLogin(key, started).onFailure(caught);
+					}
+				});
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				if (pendingLogins.get(key) != started)
+					return;
+
+				pendingLogins.remove(key);
+				delegate.doLogin(started.assertion, started);
+			}
+		});
+	}
+
+	/**
+	 * Refreshes are passed to the wrapped backend as they are. Every tab
+	 * tracks the expiry time of the shared session, from its own login or the
+	 * published result, and refreshes it ahead of that time: the session is
+	 * kept alive as long as any tab is open, and no tab outlives it.
+	 */
+	@Override
+	public void doRefresh(String user, AsyncCallback<LoginResult> callback) {
+		SessionRefresher.doRefresh(delegate, user, callback);
+	}
+
+	@Override
+	public void doLogout(final AsyncCallback<Void> callback) {
+		if (storage == null) {
+			delegate.doLogout(callback);
+			return;
+		}
+
+		if (OK.equals(readResult(LOGOUT))) {
+			callback.onSuccess(null);
+			return;
+		}
+
+		logoutWaiters.add(callback);
+		if (logoutWaiters.size() > 1)
+			return;
+
+		final int started = ++logoutGeneration;
+		acquire(LOGOUT, new Runnable() {
+			@Override
+			public void run() {
+				if (started != logoutGeneration || logoutWaiters.isEmpty())
+					return;
+
+				delegate.doLogout(new AsyncCallback<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+						release(LOGOUT);
+						publish(LOGOUT, LOGIN, OK);
+						for (AsyncCallback<Void> c : removeLogoutWaiters()) {
+							c.onSuccess(null);
+						}
+					}
+
+					@Override
+					public void onFailure(Throwable caught) {
+						release(LOGOUT);
+						publish(LOGOUT, null, FAILED);
+						for (AsyncCallback<Void> c : removeLogoutWaiters()) {
+							c.onFailure(caught);
+						}
+					}
+				});
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				if (started != logoutGeneration)
+					return;
+
+				for (AsyncCallback<Void> c : removeLogoutWaiters()) {
+					delegate.doLogout(c);
+				}
+			}
+		});
+	}
+
+	private void onLoginResult(String value) {
+		final String result = parseResult(value);
+		if (result == null)
+			return;
+
+		final int start = result.indexOf(':') + 1;
+		final int end = result.indexOf(':', start);
+		if (start == 0 || end < 0)
+			return;
+
+		final PendingLogin pending = pendingLogins.remove(result.substring(start, end));
+		if (pending == null)
+			return;
+
+		final LoginResult login = getLogin(result, result.substring(start, end));
+		if (login != null)
+			pending.onSuccess(login);
+		else
+			// The leader failed, but our own assertion may still be valid
+			delegate.doLogin(pending.assertion, pending);
+	}
+
+	private void onLogoutResult(String value) {
+		final String result = parseResult(value);
+		if (result == null || logoutWaiters.isEmpty())
+			return;
+
+		final List<AsyncCallback<Void>> waiters = removeLogoutWaiters();
+		for (AsyncCallback<Void> c : waiters) {
+			if (OK.equals(result))
+				c.onSuccess(null);
+			else
+				delegate.doLogout(c);
+		}
+	}
+
+	/**
+	 * Removes a pending login, if it is still the given one. A login that
+	 * timed out and was started again is completed by its own callbacks.
+	 */
+	private PendingLogin removePendingLogin(String key, PendingLogin started) {
+		if (pendingLogins.get(key) != started)
+			return new PendingLogin(null, null);
+
+		pendingLogins.remove(key);
+		return started;
+	}
+
+	private List<AsyncCallback<Void>> removeLogoutWaiters() {
+		final List<AsyncCallback<Void>> waiters = Lists.newArrayList(logoutWaiters);
+		logoutWaiters.clear();
+		logoutGeneration++;
+		return waiters;
+	}
+
+	/**
+	 * Returns the key logins are coordinated by: a hash of the identity
+	 * certificate, which is the same in every tab for a given user. The
+	 * assertion itself is generated for each tab.
+	 * 
+	 * @return the key, or null if the assertion has no certificate
+	 */
+	private static String getKey(String assertion) {
+		if (Assertions.peekEmail(assertion) == null)
+			return null;
+
+		final String certificate = assertion.substring(0, assertion.lastIndexOf('~') + 1);
+		int h1 = 0x811c9dc5;
+		int h2 = 0;
+		for (int i = 0; i < certificate.length(); i++) {
+			final char c = certificate.charAt(i);
+			h1 = (h1 ^ c) * 0x01000193;
+			h2 = 31 * h2 + c;
+		}
+		return Integer.toHexString(h1) + Integer.toHexString(h2) + Integer.toHexString(certificate.length());
+	}
+
+	/**
+	 * Returns the login of a successful login result for the given key.
+	 * 
+	 * @return the login, or null if the result is not a valid successful
+	 *         login for that key
+	 */
+	private static LoginResult getLogin(String result, String key) {
+		final String prefix = OK + ":" + key + ":";
+		if (result == null || !result.startsWith(prefix))
+			return null;
+
+		final JSONObject login;
+		try {
+			final JSONValue value = JSONParser.parseStrict(result.substring(prefix.length()));
+			login = value.isObject();
+		} catch (JSONException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+
+		final String user = login != null ? JsonPersonaBackend.getString(login, "user") : null;
+		if (user == null)
+			return null;
+		return new LoginResult(user, JsonPersonaBackend.getPayload(login), JsonPersonaBackend.getNumber(login, "expires"),
+				JsonPersonaBackend.getString(login, "token"));
+	}
+
+	/**
+	 * Writes a login result as published to the other tabs.
+	 */
+	private static String encode(LoginResult result) {
+		final JSONObject login = new JSONObject();
+		login.put("user", new JSONString(result.getUser()));
+		if (result.getExpires() > 0)
+			login.put("expires", new JSONNumber(result.getExpires()));
+		if (result.getToken() != null)
+			login.put("token", new JSONString(result.getToken()));
+		if (result.getPayload() != null)
+			login.put("payload", result.getPayload());
+		return login.toString();
+	}
+
+	/**
+	 * Tries to become the leader for the given lock.
+	 * <p>
+	 * {@code localStorage} has no atomic compare-and-set, so the lock is
+	 * written and read back after a short delay: if another tab wrote it in
+	 * the meantime, that tab is the leader. Runs {@code onAcquired} if this
+	 * tab is the leader, or {@code onTimeout} if it is not and the leader did
+	 * not publish a result in time.
+	 */
+	private void acquire(String lock, final Runnable onAcquired, final Runnable onTimeout) {
+		final String key = LOCK_PREFIX + lock;
+		final String value = storage.getItem(key);
+		if (value == null || isExpired(value)) {
+			storage.setItem(key, ((long) Duration.currentTimeMillis() + LOCK_TIMEOUT) + ":" + tabId);
+		}
+
+		Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				final String current = storage.getItem(key);
+				if (current != null && current.endsWith(":" + tabId)) {
+					onAcquired.run();
+				} else {
+					Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+						@Override
+						public boolean execute() {
+							onTimeout.run();
+							return false;
+						}
+					}, LOCK_TIMEOUT);
+				}
+				return false;
+			}
+		}, SETTLE_DELAY);
+	}
+
+	/**
+	 * Publishes the result of an operation to the other tabs, and discards the
+	 * result of the opposite operation so it is not reused.
+	 */
+	private void publish(String operation, String opposite, String result) {
+		if (opposite != null)
+			storage.removeItem(RESULT_PREFIX + opposite);
+		storage.setItem(RESULT_PREFIX + operation, ((long) Duration.currentTimeMillis() + RESULT_TIMEOUT) + ":" + result);
+	}
+
+	/**
+	 * Releases a lock, if this tab still holds it. A lock that expired may
+	 * have been taken over by another tab.
+	 */
+	private void release(String lock) {
+		final String key = LOCK_PREFIX + lock;
+		final String value = storage.getItem(key);
+		if (value != null && value.endsWith(":" + tabId))
+			storage.removeItem(key);
+	}
+
+	private String readResult(String operation) {
+		final String value = storage.getItem(RESULT_PREFIX + operation);
+		return value != null ? parseResult(value) : null;
+	}
+
+	/**
+	 * Returns the result part of a published result, or null if expired.
+	 */
+	private static String parseResult(String value) {
+		return isExpired(value) ? null : value.substring(value.indexOf(':') + 1);
+	}
+
+	/**
+	 * Checks the expiry time at the start of a lock or result value.
+	 */
+	private static boolean isExpired(String value) {
+		final int separator = value.indexOf(':');
+		if (separator <= 0)
+			return true;
+
+		try {
+			return Double.parseDouble(value.substring(0, separator)) <= Duration.currentTimeMillis();
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Callbacks waiting for the login of a given user.
+	 */
+	private static final class PendingLogin implements AsyncCallback<LoginResult> {
+		private final String assertion;
+		private final List<AsyncCallback<LoginResult>> callbacks = Lists.newArrayList();
+
+		PendingLogin(String assertion, AsyncCallback<LoginResult> callback) {
+			this.assertion = assertion;
+			if (callback != null)
+				callbacks.add(callback);
+		}
+
+		@Override
+		public void onSuccess(LoginResult result) {
+			for (AsyncCallback<LoginResult> c : callbacks) {
+				c.onSuccess(result);
+			}
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			for (AsyncCallback<LoginResult> c : callbacks) {
+				c.onFailure(caught);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Delivers events to handlers after the current browser event, in time
+ * slices.
+ * <p>
+ * Deliveries are queued in order and run from a deferred command. Once a
+ * slice has run for its time budget, the rest waits for a timer, which lets
+ * the browser handle input and render in between. Incremental commands are
+ * not used for this, as GWT runs them back to back for up to 100 ms.
+ * <p>
+ * Exceptions thrown by handlers do not stop the delivery: they are thrown
+ * together, in an {@link UmbrellaException}, at the end of each slice.
+ */
+final class DeferredDispatcher {
+
+	static final int DEFAULT_TIME_SLICE = 8;
+
+	private final EventBus eventBus;
+
+	// Parallel queues, a null handler delivers the event to the event bus
+	private final List<AuthEvent<?>> events = Lists.newArrayList();
+	private final List<AuthHandler> handlers = Lists.newArrayList();
+	private int next;
+
+	private int timeSlice = DEFAULT_TIME_SLICE;
+	private boolean scheduled;
+
+	private final ScheduledCommand first = new ScheduledCommand() {
+		@Override
+		public void execute() {
+			run();
+		}
+	};
+
+	private final RepeatingCommand rest = new RepeatingCommand() {
+		@Override
+		public boolean execute() {
+			run();
+			return false;
+		}
+	};
+
+	DeferredDispatcher(EventBus eventBus) {
+		this.eventBus = checkNotNull(eventBus);
+	}
+
+	void setTimeSlice(int timeSlice) {
+		checkArgument(timeSlice > 0);
+		this.timeSlice = timeSlice;
+	}
+
+	/**
+	 * Queues an event for the event bus and the given handlers.
+	 */
+	void enqueue(AuthEvent<?> event, AuthHandler[] targets) {
+		events.add(event);
+		handlers.add(null);
+		for (AuthHandler handler : targets) {
+			events.add(event);
+			handlers.add(handler);
+		}
+
+		if (!scheduled) {
+			scheduled = true;
+			Scheduler.get().scheduleDeferred(first);
+		}
+	}
+
+	private void run() {
+		scheduled = false;
+		final double deadline = Duration.currentTimeMillis() + timeSlice;
+
+		Set<Throwable> causes = null;
+		while (next < events.size()) {
+			final AuthEvent<?> event = events.set(next, null);
+			final AuthHandler handler = handlers.set(next, null);
+			next++;
+
+			try {
+				if (handler == null)
+					eventBus.fireEvent(event);
+				else
+					event.dispatchTo(handler);
+			} catch (Throwable e) {
+				if (causes == null)
+					causes = new HashSet<Throwable>();
+				if (e instanceof UmbrellaException)
+					causes.addAll(((UmbrellaException) e).getCauses());
+				else
+					causes.add(e);
+			}
+
+			if (Duration.currentTimeMillis() >= deadline)
+				break;
+		}
+
+		if (next < events.size()) {
+			scheduled = true;
+			Scheduler.get().scheduleFixedDelay(rest, 1);
+		} else {
+			events.clear();
+			handlers.clear();
+			next = 0;
+		}
+
+		if (causes != null)
+			throw new UmbrellaException(causes);
+	}
+
+}
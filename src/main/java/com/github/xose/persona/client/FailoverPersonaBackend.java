@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Persona backend spreading calls over several equivalent endpoints.
+ * <p>
+ * A moving average of the latency and error rate of every endpoint is kept,
+ * and each call goes to the endpoint with the best score. Endpoints not used
+ * yet score best, so that all of them get measured, and past errors are
+ * forgotten over time so that a recovered endpoint is used again.
+ * <p>
+ * If a call fails with a {@linkplain AuthErrorCode#isRetryable() retryable}
+ * error, it is sent to the next best endpoint right away. If it is still
+ * running after the hedge delay, it is also sent to the next best endpoint,
+ * and the first success is used. Other errors are only reported once no
+ * attempt of the call is running any more.
+ * <p>
+ * A hedged login sends the same assertion to two endpoints. If they share a
+ * replay cache, the one verifying it last rejects it as already used, and
+ * the call succeeds with the other result. Otherwise both endpoints log the
+ * user in. Set the hedge delay to 0 if neither is acceptable.
+ * <p>
+ * Timeouts are left to the endpoints, for example by wrapping them in a
+ * {@link ResilientPersonaBackend}.
+ */
+public class FailoverPersonaBackend implements RefreshablePersonaBackend {
+
+	/** Default hedge delay, in milliseconds. */
+	public static final int DEFAULT_HEDGE_DELAY = 1000;
+
+	/** Weight of a new sample in the moving averages. */
+	private static final double ALPHA = 0.2;
+
+	/** Latency penalty of an endpoint that always fails, in milliseconds. */
+	private static final double ERROR_PENALTY = 10000;
+
+	/** Time for the error rate of an unused endpoint to halve, in milliseconds. */
+	private static final double ERROR_HALF_LIFE = 30000;
+
+	private final Endpoint[] endpoints;
+
+	private int hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+	/**
+	 * Creates a new failover backend.
+	 * 
+	 * @param backends
+	 *            the endpoints, in order of preference for ties
+	 */
+	public FailoverPersonaBackend(List<? extends PersonaBackend> backends) {
+		checkArgument(!backends.isEmpty(), "No backends");
+		endpoints = new Endpoint[backends.size()];
+		for (int i = 0; i < endpoints.length; i++)
+			endpoints[i] = new Endpoint(checkNotNull(backends.get(i)));
+	}
+
+	/**
+	 * Sets the time after which a call still running is also sent to another
+	 * endpoint.
+	 * 
+	 * @param hedgeDelay
+	 *            the hedge delay, in milliseconds, or 0 to disable hedging
+	 */
+	public void setHedgeDelay(int hedgeDelay) {
+		checkArgument(hedgeDelay >= 0);
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	/**
+	 * Returns the moving average latency of an endpoint.
+	 * 
+	 * @param index
+	 *            the endpoint index
+	 * @return the average latency, in milliseconds, or 0 if not used yet
+	 */
+	public double getLatency(int index) {
+		return endpoints[index].latency;
+	}
+
+	/**
+	 * Returns the moving average error rate of an endpoint.
+	 * 
+	 * @param index
+	 *            the endpoint index
+	 * @return the error rate, between 0 and 1
+	 */
+	public double getErrorRate(int index) {
+		return endpoints[index].getErrorRate(Duration.currentTimeMillis());
+	}
+
+	@Override
+	public void doLogin(final String assertion, AsyncCallback<LoginResult> callback) {
+		new Call<LoginResult>(callback) {
+			@Override
+			void invoke(PersonaBackend backend, AsyncCallback<LoginResult> attempt) {
+				backend.doLogin(assertion, attempt);
+			}
+		}.next();
+	}
+
+	@Override
+	public void doRefresh(final String user, AsyncCallback<LoginResult> callback) {
+		new Call<LoginResult>(callback) {
+			@Override
+			void invoke(PersonaBackend backend, AsyncCallback<LoginResult> attempt) {
+				SessionRefresher.doRefresh(backend, user, attempt);
+			}
+		}.next();
+	}
+
+	@Override
+	public void doLogout(AsyncCallback<Void> callback) {
+		new Call<Void>(callback) {
+			@Override
+			void invoke(PersonaBackend backend, AsyncCallback<Void> attempt) {
+				backend.doLogout(attempt);
+			}
+		}.next();
+	}
+
+	/**
+	 * Returns the best endpoint not used yet by a call.
+	 * 
+	 * @return the endpoint index, or -1 if all have been used
+	 */
+	private int select(boolean[] used) {
+		final double now = Duration.currentTimeMillis();
+		int best = -1;
+		double bestScore = 0;
+		for (int i = 0; i < endpoints.length; i++) {
+			if (used[i])
+				continue;
+			final double score = endpoints[i].getScore(now);
+			if (best < 0 || score < bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private static final class Endpoint {
+		private final PersonaBackend backend;
+		private double latency;
+		private double errorRate;
+		private double updated;
+
+		Endpoint(PersonaBackend backend) {
+			this.backend = backend;
+		}
+
+		double getErrorRate(double now) {
+			if (errorRate == 0)
+				return 0;
+			return errorRate * Math.pow(0.5, (now - updated) / ERROR_HALF_LIFE);
+		}
+
+		double getScore(double now) {
+			return latency + getErrorRate(now) * ERROR_PENALTY;
+		}
+
+		void record(double elapsed, boolean failed, double now) {
+			final double rate = getErrorRate(now);
+			if (updated == 0) {
+				latency = elapsed;
+				errorRate = failed ? 1 : 0;
+			} else {
+				latency += ALPHA * (elapsed - latency);
+				errorRate = rate + ALPHA * ((failed ? 1 : 0) - rate);
+			}
+			updated = now;
+		}
+	}
+
+	/**
+	 * A call, sent to one or more endpoints.
+	 */
+	private abstract class Call<T> {
+		private final AsyncCallback<T> callback;
+		private final boolean[] used = new boolean[endpoints.length];
+		private int running;
+		private boolean done;
+		private Throwable error;
+
+		Call(AsyncCallback<T> callback) {
+			this.callback = checkNotNull(callback);
+		}
+
+		abstract void invoke(PersonaBackend backend, AsyncCallback<T> attempt);
+
+		/**
+		 * Sends the call to the next best endpoint.
+		 * 
+		 * @return false if all endpoints have been used
+		 */
+		boolean next() {
+			final int index = select(used);
+			if (index < 0)
+				return false;
+
+			used[index] = true;
+			running++;
+			final Endpoint endpoint = endpoints[index];
+			final double start = Duration.currentTimeMillis();
+
+			if (hedgeDelay > 0) {
+				Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+					@Override
+					public boolean execute() {
+						if (!done && running == 1 && error == null)
+							next();
+						return false;
+					}
+				}, hedgeDelay);
+			}
+
+			invoke(endpoint.backend, new AsyncCallback<T>() {
+				@Override
+				public void onSuccess(T result) {
+					final double now = Duration.currentTimeMillis();
+					endpoint.record(now - start, false, now);
+					running--;
+					if (done)
+						return;
+					done = true;
+					callback.onSuccess(result);
+				}
+
+				@Override
+				public void onFailure(Throwable caught) {
+					final double now = Duration.currentTimeMillis();
+					final boolean retryable = AuthErrorCode.of(caught).isRetryable();
+					endpoint.record(now - start, retryable, now);
+					running--;
+					if (done)
+						return;
+
+					// Keep the first definite error, another attempt may still succeed
+					if (!retryable && error == null)
+						error = caught;
+					if (running > 0 || (error == null && next()))
+						return;
+					done = true;
+					callback.onFailure(error != null ? error : caught);
+				}
+			});
+			return true;
+		}
+	}
+
+}
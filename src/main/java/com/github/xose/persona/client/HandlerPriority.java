@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+/**
+ * Priority of an {@link AuthHandler}.
+ * 
+ * @see Persona#addHandler(AuthHandler, HandlerPriority)
+ * @see Persona#setDeferredDispatch(boolean)
+ */
+public enum HandlerPriority {
+	/**
+	 * Runs first, and always synchronously, as part of the login or logout
+	 * procedure.
+	 */
+	CRITICAL,
+	/** Runs after the critical handlers, deferred if so configured. */
+	NORMAL;
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.json.client.JSONException;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Persona backend using XHR requests with JSON responses.
+ * <p>
+ * Logins are sent as a {@code POST} request to the login URL with the
+ * assertion as the {@code assertion} form parameter. Logouts are sent as an
+ * empty {@code POST} request to the logout URL. The server must reply with a
+ * JSON object in the format used by the Persona verifier:
+ * 
+ * <pre>
+ * {"status": "okay", "email": "user@example.com"}
+ * {"status": "failure", "reason": "..."}
+ * </pre>
+ * 
+ * A login reply may also hold a {@code payload} value with application data,
+ * which is returned as a {@link JSONValue} from
+ * {@link LoginResult#getPayload()}. A {@code null} payload is returned as
+ * no payload.
+ * <p>
+ * A login reply may tell when the session {@code expires}, in milliseconds
+ * since the epoch. If a refresh URL is given, the session is then refreshed
+ * in time with an empty {@code POST} request to that URL, answered like a
+ * login. If the reply also holds a session {@code token}, the token is kept
+ * and can be sent with application requests, see {@link #getToken()}. It is
+ * sent as an {@code Authorization: Bearer} header with refresh requests, so
+ * that a server without the HTTP session can extend it. A refresh reply
+ * without a token keeps the current one. The token is dropped on logout, or
+ * when a refresh fails because it is no longer accepted.
+ * <p>
+ * Persona may call {@code onlogin} again with the same assertion while it is
+ * still being verified. These calls are attached to the request in flight
+ * instead of sending a new one, unless every caller of that request has
+ * given up on it, as {@link ResilientPersonaBackend} does when a call times
+ * out: then a new request is sent, so that a retry is not stuck behind the
+ * request it is retrying.
+ */
+public class JsonPersonaBackend implements RefreshablePersonaBackend {
+
+	/** Default login URL, relative to the host page. */
+	public static final String DEFAULT_LOGIN_URL = "persona/login";
+
+	/** Default logout URL, relative to the host page. */
+	public static final String DEFAULT_LOGOUT_URL = "persona/logout";
+
+	/** Default refresh URL, relative to the host page. */
+	public static final String DEFAULT_REFRESH_URL = "persona/refresh";
+
+	private static final String STATUS_OKAY = "okay";
+
+	private final String loginUrl;
+	private final String logoutUrl;
+	private final String refreshUrl;
+
+	private final Map<String, List<AsyncCallback<LoginResult>>> pendingLogins = Maps.newHashMap();
+
+	private String token;
+	private double tokenExpires;
+
+	/**
+	 * Creates a new JSON backend with the default URLs, matching a
+	 * {@code PersonaServlet} mapped to {@code /persona/*} next to the host
+	 * page.
+	 * <p>
+	 * This is the backend created when the {@code persona.backend} property is
+	 * set to {@code json}.
+	 */
+	public JsonPersonaBackend() {
+		this(GWT.getHostPageBaseURL() + DEFAULT_LOGIN_URL, GWT.getHostPageBaseURL() + DEFAULT_LOGOUT_URL, GWT.getHostPageBaseURL()
+				+ DEFAULT_REFRESH_URL);
+	}
+
+	/**
+	 * Creates a new JSON backend.
+	 * 
+	 * @param loginUrl
+	 *            the URL assertions are sent to
+	 * @param logoutUrl
+	 *            the URL logout requests are sent to
+	 */
+	public JsonPersonaBackend(String loginUrl, String logoutUrl) {
+		this(loginUrl, logoutUrl, null);
+	}
+
+	/**
+	 * Creates a new JSON backend able to refresh sessions.
+	 * 
+	 * @param loginUrl
+	 *            the URL assertions are sent to
+	 * @param logoutUrl
+	 *            the URL logout requests are sent to
+	 * @param refreshUrl
+	 *            the URL refresh requests are sent to, or null if sessions
+	 *            cannot be refreshed
+	 */
+	public JsonPersonaBackend(String loginUrl, String logoutUrl, @Nullable String refreshUrl) {
+		this.loginUrl = checkNotNull(loginUrl);
+		this.logoutUrl = checkNotNull(logoutUrl);
+		this.refreshUrl = refreshUrl;
+	}
+
+	/**
+	 * Returns the session token received with the last login.
+	 * 
+	 * @return the session token, or null if there is none or it has expired
+	 */
+	@Nullable
+	public String getToken() {
+		if (token != null && tokenExpires > 0 && tokenExpires <= System.currentTimeMillis())
+			token = null;
+		return token;
+	}
+
+	@Override
+	public void doLogin(final String assertion, final AsyncCallback<LoginResult> callback) {
+		final List<AsyncCallback<LoginResult>> pending = pendingLogins.get(assertion);
+		if (pending != null && !isAbandoned(pending)) {
+			pending.add(callback);
+			return;
+		}
+
+		final List<AsyncCallback<LoginResult>> callbacks = Lists.newArrayListWithCapacity(1);
+		callbacks.add(callback);
+		pendingLogins.put(assertion, callbacks);
+
+		send(loginUrl, "assertion=" + URL.encodeQueryString(assertion), null, new AsyncCallback<JSONObject>() {
+			@Override
+			public void onSuccess(JSONObject result) {
+				final LoginResult login = toLoginResult(result, false);
+				if (login == null) {
+					onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response"));
+					return;
+				}
+
+				for (AsyncCallback<LoginResult> c : release(assertion, callbacks)) {
+					c.onSuccess(login);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				// The session of the user still logged in, if any, is unchanged
+				for (AsyncCallback<LoginResult> c : release(assertion, callbacks)) {
+					c.onFailure(caught);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void doRefresh(final String user, final AsyncCallback<LoginResult> callback) {
+		if (refreshUrl == null) {
+			callback.onFailure(new PersonaBackendException(AuthErrorCode.UNSUPPORTED, "Refresh not supported"));
+			return;
+		}
+
+		send(refreshUrl, "", getToken(), new AsyncCallback<JSONObject>() {
+			@Override
+			public void onSuccess(JSONObject result) {
+				final LoginResult login = toLoginResult(result, true);
+				if (login == null)
+					callback.onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response"));
+				else
+					callback.onSuccess(login);
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				if (AuthErrorCode.of(caught) == AuthErrorCode.REJECTED)
+					token = null;
+				callback.onFailure(caught);
+			}
+		});
+	}
+
+	@Override
+	public void doLogout(final AsyncCallback<Void> callback) {
+		send(logoutUrl, "", null, new AsyncCallback<JSONObject>() {
+			@Override
+			public void onSuccess(JSONObject result) {
+				token = null;
+				callback.onSuccess(null);
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				callback.onFailure(caught);
+			}
+		});
+	}
+
+	/**
+	 * Returns whether all callers of a login request have given up on it.
+	 */
+	private static boolean isAbandoned(List<AsyncCallback<LoginResult>> callbacks) {
+		for (AsyncCallback<LoginResult> callback : callbacks) {
+			if (!(callback instanceof AbandonableCallback) || !((AbandonableCallback<?>) callback).isAbandoned())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the callers of a completed login request, leaving a newer
+	 * request for the same assertion in place.
+	 */
+	private List<AsyncCallback<LoginResult>> release(String assertion, List<AsyncCallback<LoginResult>> callbacks) {
+		if (pendingLogins.get(assertion) == callbacks)
+			pendingLogins.remove(assertion);
+		return callbacks;
+	}
+
+	/**
+	 * Reads a login or refresh reply, keeping its session token. A refresh
+	 * reply without a token leaves the current token in place.
+	 * 
+	 * @param refresh whether the reply is for a refresh of the session
+	 * @return the login result, or null if the reply has no email
+	 */
+	private LoginResult toLoginResult(JSONObject result, boolean refresh) {
+		final String email = getString(result, "email");
+		if (email == null)
+			return null;
+
+		final double expires = getNumber(result, "expires");
+		final String newToken = getString(result, "token");
+		if (newToken != null || !refresh) {
+			token = newToken;
+			tokenExpires = expires;
+		}
+		return new LoginResult(email, getPayload(result), expires, getToken());
+	}
+
+	private static void send(String url, String data, @Nullable String token, final AsyncCallback<JSONObject> callback) {
+		final RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, url);
+		builder.setHeader("Content-Type", "application/x-www-form-urlencoded");
+		if (token != null)
+			builder.setHeader("Authorization", "Bearer " + token);
+
+		try {
+			builder.sendRequest(data, new RequestCallback() {
+				@Override
+				public void onResponseReceived(Request request, Response response) {
+					final int status = response.getStatusCode();
+					if (status != Response.SC_OK) {
+						callback.onFailure(new PersonaBackendException(getErrorCode(status), "HTTP " + status));
+						return;
+					}
+
+					final JSONObject result;
+					try {
+						final JSONValue value = JSONParser.parseStrict(response.getText());
+						result = value.isObject();
+					} catch (JSONException e) {
+						callback.onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response", e));
+						return;
+					} catch (IllegalArgumentException e) {
+						callback.onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response", e));
+						return;
+					}
+
+					if (result == null) {
+						callback.onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response"));
+					} else if (!STATUS_OKAY.equals(getString(result, "status"))) {
+						final String reason = getString(result, "reason");
+						callback.onFailure(new PersonaBackendException(AuthErrorCode.REJECTED, reason != null ? reason : "Rejected"));
+					} else {
+						callback.onSuccess(result);
+					}
+				}
+
+				@Override
+				public void onError(Request request, Throwable exception) {
+					callback.onFailure(exception);
+				}
+			});
+		} catch (RequestException e) {
+			callback.onFailure(e);
+		}
+	}
+
+	/**
+	 * Maps a non-OK HTTP status to an error code. A status of 0 means the
+	 * request did not complete.
+	 */
+	private static AuthErrorCode getErrorCode(int status) {
+		if (status == 0)
+			return AuthErrorCode.NETWORK;
+		if (status == Response.SC_UNAUTHORIZED || status == Response.SC_FORBIDDEN)
+			return AuthErrorCode.REJECTED;
+		if (status >= 500 || status == 429)
+			return AuthErrorCode.SERVER;
+		return AuthErrorCode.UNKNOWN;
+	}
+
+	static String getString(JSONObject object, String key) {
+		final JSONValue value = object.get(key);
+		if (value == null)
+			return null;
+
+		final JSONString string = value.isString();
+		return string != null ? string.stringValue() : null;
+	}
+
+	/**
+	 * Returns the {@code payload} of a login reply, treating a JSON
+	 * {@code null} as no payload.
+	 */
+	@Nullable
+	static JSONValue getPayload(JSONObject object) {
+		final JSONValue value = object.get("payload");
+		return value != null && value.isNull() == null ? value : null;
+	}
+
+	static double getNumber(JSONObject object, String key) {
+		final JSONValue value = object.get(key);
+		if (value == null)
+			return 0;
+
+		final JSONNumber number = value.isNumber();
+		return number != null ? number.doubleValue() : 0;
+	}
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import com.google.gwt.json.client.JSONValue;
+
+/**
+ * Result of a successful login.
+ * <p>
+ * Besides the user, a backend may return any application data along with
+ * the login, such as the user profile or settings, to save the application a
+ * request right after logging in. The payload is a JSON value, as read from
+ * the {@code payload} member of a JSON or socket login reply, and is passed
+ * to {@link AuthLoggedInHandler#onAuthLoggedIn(String, JSONValue)}. The RPC
+ * backend returns no payload.
+ * <p>
+ * A backend may also tell when the server session expires, so that it can be
+ * refreshed in time, see {@link RefreshablePersonaBackend}, and return a
+ * session token certifying the user, see {@link Persona#getSessionToken()}.
+ */
+public class LoginResult {
+
+	private final String user;
+	private final JSONValue payload;
+	private final double expires;
+	private final String token;
+
+	/**
+	 * Creates a login result without payload.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 */
+	public LoginResult(String user) {
+		this(user, null);
+	}
+
+	/**
+	 * Creates a login result.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param payload
+	 *            the application data returned with the login, may be null
+	 */
+	public LoginResult(String user, @Nullable JSONValue payload) {
+		this(user, payload, 0);
+	}
+
+	/**
+	 * Creates a login result for a session with a known expiry time.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param payload
+	 *            the application data returned with the login, may be null
+	 * @param expires
+	 *            the session expiry time, in milliseconds since the epoch, or
+	 *            0 if unknown
+	 */
+	public LoginResult(String user, @Nullable JSONValue payload, double expires) {
+		this(user, payload, expires, null);
+	}
+
+	/**
+	 * Creates a login result for a session with a known expiry time and a
+	 * session token.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param payload
+	 *            the application data returned with the login, may be null
+	 * @param expires
+	 *            the session expiry time, in milliseconds since the epoch, or
+	 *            0 if unknown
+	 * @param token
+	 *            the session token, may be null
+	 */
+	public LoginResult(String user, @Nullable JSONValue payload, double expires, @Nullable String token) {
+		this.user = checkNotNull(user);
+		this.payload = payload;
+		this.expires = expires;
+		this.token = token;
+	}
+
+	/**
+	 * Returns the logged in user.
+	 * 
+	 * @return the user email
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * Returns the application data returned with the login.
+	 * 
+	 * @return the payload, or null if there is none
+	 */
+	@Nullable
+	public JSONValue getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Returns when the server session expires.
+	 * 
+	 * @return the expiry time, in milliseconds since the epoch, or 0 if
+	 *         unknown
+	 */
+	public double getExpires() {
+		return expires;
+	}
+
+	/**
+	 * Returns the session token issued with the login.
+	 * 
+	 * @return the session token, or null if there is none
+	 */
+	@Nullable
+	public String getToken() {
+		return token;
+	}
+
+}
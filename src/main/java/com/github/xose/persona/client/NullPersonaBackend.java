@@ -21,13 +21,13 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
 class NullPersonaBackend implements PersonaBackend {
 
 	@Override
-	public void doLogin(final String assertion, final AsyncCallback<String> callback) {
-		callback.onFailure(new Exception("No backend"));
+	public void doLogin(final String assertion, final AsyncCallback<LoginResult> callback) {
+		callback.onFailure(new PersonaBackendException(AuthErrorCode.NO_BACKEND, "No backend"));
 	}
 
 	@Override
 	public void doLogout(final AsyncCallback<Void> callback) {
-		callback.onFailure(new Exception("No backend"));
+		callback.onFailure(new PersonaBackendException(AuthErrorCode.NO_BACKEND, "No backend"));
 	}
 
 }
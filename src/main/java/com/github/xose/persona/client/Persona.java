@@ -18,14 +18,14 @@ package com.github.xose.persona.client;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.util.Set;
-
 import javax.annotation.Nullable;
 
-import com.google.common.collect.Sets;
+import com.github.xose.persona.client.PersonaMetrics.Outcome;
+import com.github.xose.persona.client.PersonaMetrics.Phase;
+import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.user.client.rpc.AsyncCallback;
-import com.google.web.bindery.event.shared.Event;
 import com.google.web.bindery.event.shared.EventBus;
 import com.google.web.bindery.event.shared.HandlerRegistration;
 import com.google.web.bindery.event.shared.SimpleEventBus;
@@ -52,12 +52,22 @@ public final class Persona {
 	}
 
 	private static final EventBus eventBus = new SimpleEventBus();
-
-	private static Status status = Status.UNKNOWN;
-	private static String currentUser;
+	private static final PersonaLoader loader = new PersonaLoader(eventBus);
+	private static final AuthStateMachine state = new AuthStateMachine(eventBus);
+	private static final DeferredDispatcher dispatcher = new DeferredDispatcher(eventBus);
+	private static final PersonaMetrics metrics = new PersonaMetrics(eventBus);
+	private static final SessionRefresher refresher = new SessionRefresher(eventBus, state, new ScheduledCommand() {
+		@Override
+		public void execute() {
+			if (sessionCache != null)
+				sessionCache.clear();
+		}
+	});
+	private static int handlerCount;
 
 	// Configuration
-	private static PersonaBackend backend = new NullPersonaBackend();
+	private static PersonaBackend backend = GWT.create(PersonaBackend.class);
+	private static SessionCache sessionCache;
 	private static String siteName;
 	private static String siteLogo;
 	private static String privacyPolicy;
@@ -69,6 +79,11 @@ public final class Persona {
 
 	/**
 	 * Set the application's authorization backend.
+	 * <p>
+	 * By default, the backend is chosen at compile time with the
+	 * {@code persona.backend} deferred binding property. Prefer that when the
+	 * backend is known in advance: the compiler can then leave out the
+	 * unused backends.
 	 * 
 	 * @param backend
 	 *            the authentication backend
@@ -79,6 +94,20 @@ public final class Persona {
 		Persona.backend = checkNotNull(backend);
 	}
 
+	/**
+	 * Sets the cache used to restore the logged in user on page load.
+	 * <p>
+	 * Disabled by default.
+	 * 
+	 * @param sessionCache
+	 *            the session cache, or null to disable it
+	 * 
+	 * @see SessionCache
+	 */
+	public static void setSessionCache(@Nullable SessionCache sessionCache) {
+		Persona.sessionCache = sessionCache;
+	}
+
 	/**
 	 * Set the application's name to be shown on the login screen.
 	 * <p>
@@ -128,18 +157,137 @@ public final class Persona {
 		Persona.termsOfService = termsOfService;
 	}
 
+	/**
+	 * Sets how long before the session expires it is refreshed.
+	 * <p>
+	 * Defaults to {@value SessionRefresher#DEFAULT_LEAD} milliseconds. Only
+	 * used if the backend is a {@link RefreshablePersonaBackend} and tells
+	 * when sessions expire. The session is never refreshed later than half its
+	 * remaining lifetime.
+	 * 
+	 * @param lead
+	 *            the refresh lead time, in milliseconds
+	 */
+	public static void setRefreshLead(int lead) {
+		refresher.setLead(lead);
+	}
+
+	/**
+	 * Sets whether authentication events are delivered after the current
+	 * browser event.
+	 * <p>
+	 * Disabled by default. When enabled, only {@link HandlerPriority#CRITICAL}
+	 * handlers are called synchronously. Other handlers, including those
+	 * added for a single event type, are called later, in order, in time
+	 * slices short enough to keep the page responsive. This keeps a slow
+	 * handler from delaying the login procedure and the other handlers.
+	 * <p>
+	 * Deferred handlers receive each event even if removed after it is fired.
+	 * 
+	 * @param deferred
+	 *            true to defer non critical handlers
+	 * 
+	 * @see #setDispatchTimeSlice(int)
+	 */
+	public static void setDeferredDispatch(boolean deferred) {
+		state.setDispatcher(deferred ? dispatcher : null);
+	}
+
+	/**
+	 * Sets the time budget of each deferred dispatch slice.
+	 * <p>
+	 * Defaults to {@value DeferredDispatcher#DEFAULT_TIME_SLICE}
+	 * milliseconds. A handler is never interrupted, so a slice lasts at least
+	 * as long as its slowest handler.
+	 * 
+	 * @param timeSlice
+	 *            the slice time budget, in milliseconds
+	 */
+	public static void setDispatchTimeSlice(int timeSlice) {
+		dispatcher.setTimeSlice(timeSlice);
+	}
+
+	/**
+	 * Sets the URL the Persona script is loaded from.
+	 * <p>
+	 * Defaults to {@value PersonaLoader#DEFAULT_SCRIPT_URL}. Must be called
+	 * before the script starts loading.
+	 * 
+	 * @param scriptUrl
+	 *            the Persona script URL
+	 */
+	public static void setScriptUrl(String scriptUrl) {
+		loader.setScriptUrl(scriptUrl);
+	}
+
+	/**
+	 * Sets the maximum time to wait for the Persona script to load.
+	 * <p>
+	 * Defaults to {@value PersonaLoader#DEFAULT_TIMEOUT} milliseconds.
+	 * 
+	 * @param timeout
+	 *            the load timeout, in milliseconds
+	 */
+	public static void setLoadTimeout(int timeout) {
+		loader.setTimeout(timeout);
+	}
+
+	/**
+	 * Starts loading the Persona script in the background.
+	 * <p>
+	 * The script is loaded on the first call to {@link #watch()},
+	 * {@link #request()} or {@link #logout()} anyway. Call this method to start
+	 * loading it earlier, for example from the module entry point. Calls made
+	 * while the script is loading are queued and replayed in order.
+	 */
+	public static void load() {
+		loader.load();
+	}
+
+	/**
+	 * Returns whether the Persona script has been loaded.
+	 * 
+	 * @return true if the Persona script is loaded
+	 */
+	public static boolean isLoaded() {
+		return loader.isLoaded();
+	}
+
 	/**
 	 * Initializes Persona with an unknown user.
 	 * <p>
 	 * Call this method if the current user identity is not known. Persona will
 	 * perform the login procedure if a user is currently logged in, or a logout
 	 * otherwise.
+	 * <p>
+	 * If a {@link SessionCache} is set and holds a user, the logged in status
+	 * is restored from it immediately and checked against Persona in the
+	 * background.
 	 * 
 	 * @see <a href="https://developer.mozilla.org/en-US/docs/DOM/navigator.id.watch">navigator.id.watch</a>
 	 */
-	public static final native void watch() /*-{
-		@com.github.xose.persona.client.Persona::watch1(*)({});
-	}-*/;
+	public static final void watch() {
+		metrics.start(Phase.WATCH);
+		final String cachedUser = sessionCache != null ? sessionCache.get() : null;
+		if (cachedUser != null) {
+			refresher.stop();
+			state.restore(cachedUser, true);
+			loader.execute(new ScheduledCommand() {
+				@Override
+				public void execute() {
+					watch0(cachedUser);
+				}
+			});
+			return;
+		}
+
+		loader.execute(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				watch1(JavaScriptObject.createObject());
+			}
+		});
+	}
 
 	/**
 	 * Initializes Persona with a known user.
@@ -153,10 +301,16 @@ public final class Persona {
 	 * @see <a href="https://developer.mozilla.org/en-US/docs/DOM/navigator.id.watch">navigator.id.watch</a>
 	 * @see <a href="https://developer.mozilla.org/en-US/docs/DOM/navigator.id.watch#Parameters">loggedInUser</a>
 	 */
-	public static final void watch(String loggedInUser) {
-		Persona.currentUser = loggedInUser;
-		setStatus(loggedInUser != null ? Status.LOGGEDIN : Status.LOGGEDOUT, null, false);
-		watch0(loggedInUser);
+	public static final void watch(final String loggedInUser) {
+		metrics.start(Phase.WATCH);
+		refresher.stop();
+		state.restore(loggedInUser, false);
+		loader.execute(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				watch0(loggedInUser);
+			}
+		});
 	}
 
 	private static final native void watch0(String loggedInUser) /*-{
@@ -170,6 +324,9 @@ public final class Persona {
 		opts.onlogout = $entry(function() {
 			@com.github.xose.persona.client.Persona::onLogout()();
 		});
+		opts.onready = $entry(function() {
+			@com.github.xose.persona.client.Persona::onReady()();
+		});
 		$wnd.navigator.id.watch(opts);
 	}-*/;
 
@@ -178,7 +335,17 @@ public final class Persona {
 	 * 
 	 * @see <a href="https://developer.mozilla.org/en-US/docs/DOM/navigator.id.request">navigator.id.request</a>
 	 */
-	public static final native void request() /*-{
+	public static final void request() {
+		metrics.start(Phase.REQUEST);
+		loader.execute(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				request0();
+			}
+		});
+	}
+
+	private static final native void request0() /*-{
 		var opts = {};
 		opts.oncancel = $entry(function() {
 			@com.github.xose.persona.client.Persona::onCancel()();
@@ -201,7 +368,17 @@ public final class Persona {
 	 * 
 	 * @see <a href="https://developer.mozilla.org/en-US/docs/DOM/navigator.id.logout">navigator.id.logout</a>
 	 */
-	public static final native void logout() /*-{
+	public static final void logout() {
+		metrics.start(Phase.LOGOUT);
+		loader.execute(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				logout0();
+			}
+		});
+	}
+
+	private static final native void logout0() /*-{
 		$wnd.navigator.id.logout();
 	}-*/;
 
@@ -212,15 +389,30 @@ public final class Persona {
 	 */
 	@Nullable
 	public static final String getCurrentUser() {
-		return currentUser;
+		return state.getCurrentUser();
 	}
 
-	protected static final void setStatus(Status status, Event<?> event, boolean clearUser) {
-		Persona.status = status;
-		if (clearUser)
-			currentUser = null;
-		if (event != null)
-			eventBus.fireEvent(event);
+	/**
+	 * Returns when the session of the logged in user expires.
+	 * 
+	 * @return the expiry time, in milliseconds since the epoch, or 0 if
+	 *         unknown
+	 */
+	public static final double getSessionExpires() {
+		return refresher.getExpires();
+	}
+
+	/**
+	 * Returns the session token of the logged in user, as returned by the
+	 * backend with the last login or refresh. The token certifies the user
+	 * to servers that do not keep the session, see
+	 * {@link LoginResult#getToken()}.
+	 * 
+	 * @return the session token, or null if there is none
+	 */
+	@Nullable
+	public static final String getSessionToken() {
+		return refresher.getToken();
 	}
 
 	/**
@@ -229,7 +421,16 @@ public final class Persona {
 	 * @return the current login status
 	 */
 	public static final Status getStatus() {
-		return status;
+		return state.getStatus();
+	}
+
+	/**
+	 * Returns the authentication latency metrics.
+	 * 
+	 * @return the metrics
+	 */
+	public static final PersonaMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -240,7 +441,7 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthLoggedInHandler(AuthLoggedInHandler handler) {
-		return AuthLoggedInEvent.register(eventBus, handler);
+		return track(AuthLoggedInEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -251,7 +452,7 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthLoggedOutHandler(AuthLoggedOutHandler handler) {
-		return AuthLoggedOutEvent.register(eventBus, handler);
+		return track(AuthLoggedOutEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -262,7 +463,7 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthLoggingInHandler(AuthLoggingInHandler handler) {
-		return AuthLoggingInEvent.register(eventBus, handler);
+		return track(AuthLoggingInEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -273,7 +474,7 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthLoggingOutHandler(AuthLoggingOutHandler handler) {
-		return AuthLoggingOutEvent.register(eventBus, handler);
+		return track(AuthLoggingOutEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -284,7 +485,7 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthCancelledHandler(AuthCancelledHandler handler) {
-		return AuthCancelledEvent.register(eventBus, handler);
+		return track(AuthCancelledEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -295,7 +496,44 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addAuthErrorHandler(AuthErrorHandler handler) {
-		return AuthErrorEvent.register(eventBus, handler);
+		return track(AuthErrorEvent.register(eventBus, handler));
+	}
+
+	/**
+	 * Adds a script load failure handler.
+	 * 
+	 * @param handler
+	 *            the load failure handler to be added
+	 * @return an object to deregister the handler
+	 */
+	public static final HandlerRegistration addAuthLoadFailedHandler(AuthLoadFailedHandler handler) {
+		return track(AuthLoadFailedEvent.register(eventBus, handler));
+	}
+
+	/**
+	 * Adds a timing handler, called each time an authentication phase ends.
+	 * 
+	 * @param handler
+	 *            the timing handler to be added
+	 * @return an object to deregister the handler
+	 * 
+	 * @see PersonaMetrics
+	 */
+	public static final HandlerRegistration addAuthTimingHandler(AuthTimingHandler handler) {
+		return track(AuthTimingEvent.register(eventBus, handler));
+	}
+
+	/**
+	 * Adds a session refresh handler.
+	 * 
+	 * @param handler
+	 *            the refresh handler to be added
+	 * @return an object to deregister the handler
+	 * 
+	 * @see RefreshablePersonaBackend
+	 */
+	public static final HandlerRegistration addAuthRefreshedHandler(AuthRefreshedHandler handler) {
+		return track(AuthRefreshedEvent.register(eventBus, handler));
 	}
 
 	/**
@@ -306,59 +544,121 @@ public final class Persona {
 	 * @return an object to deregister the handler
 	 */
 	public static final HandlerRegistration addHandler(AuthHandler handler) {
-		final Set<HandlerRegistration> handlers = Sets.newHashSet();
-		handlers.add(addAuthLoggedInHandler(handler));
-		handlers.add(addAuthLoggedOutHandler(handler));
-		handlers.add(addAuthLoggingInHandler(handler));
-		handlers.add(addAuthLoggingOutHandler(handler));
-		handlers.add(addAuthCancelledHandler(handler));
-		handlers.add(addAuthErrorHandler(handler));
+		return addHandler(handler, HandlerPriority.NORMAL);
+	}
+
+	/**
+	 * Adds an authentication handler with a given priority.
+	 * <p>
+	 * Critical handlers are called before any other handler, and always
+	 * synchronously.
+	 * 
+	 * @param handler
+	 *            the authentication handler to be added
+	 * @param priority
+	 *            the handler priority
+	 * @return an object to deregister the handler
+	 * 
+	 * @see #setDeferredDispatch(boolean)
+	 */
+	public static final HandlerRegistration addHandler(AuthHandler handler, HandlerPriority priority) {
+		return track(state.addHandler(handler, checkNotNull(priority)));
+	}
+
+	/**
+	 * Returns the number of handlers added to Persona and not yet removed.
+	 * <p>
+	 * A number that keeps growing, for example across login and logout
+	 * cycles, points to handlers that are never removed.
+	 * 
+	 * @return the number of registered handlers
+	 */
+	public static final int getHandlerCount() {
+		return handlerCount;
+	}
 
+	private static HandlerRegistration track(final HandlerRegistration registration) {
+		handlerCount++;
 		return new HandlerRegistration() {
+			private boolean removed;
+
 			@Override
 			public void removeHandler() {
-				for (HandlerRegistration h : handlers) {
-					h.removeHandler();
+				if (!removed) {
+					removed = true;
+					handlerCount--;
+					registration.removeHandler();
 				}
 			}
 		};
 	}
 
-	private static final void onLogin(String assertion) {
-		setStatus(Status.LOGGINGIN, new AuthLoggingInEvent(), true);
+	private static final void onReady() {
+		metrics.stop(Phase.WATCH, Outcome.SUCCESS);
+	}
 
-		backend.doLogin(assertion, new AsyncCallback<String>() {
+	private static final void onLogin(final String assertion) {
+		metrics.stop(Phase.WATCH, Outcome.SUCCESS);
+		metrics.stop(Phase.REQUEST, Outcome.SUCCESS);
+		if (!state.startLogin(assertion, Assertions.peekEmail(assertion)))
+			return;
+		metrics.start(Phase.LOGIN);
+		refresher.stop();
+		if (sessionCache != null)
+			sessionCache.clear();
+
+		final PersonaBackend backend = Persona.backend;
+		backend.doLogin(assertion, new AsyncCallback<LoginResult>() {
 			@Override
-			public void onSuccess(String result) {
-				currentUser = checkNotNull(result);
-				setStatus(Status.LOGGEDIN, new AuthLoggedInEvent(result), false);
+			public void onSuccess(LoginResult result) {
+				if (!state.isLoggingIn(assertion))
+					return;
+				// Track the session before the logged in handlers run
+				refresher.start(backend, result);
+				state.completeLogin(assertion, result);
+				metrics.stop(Phase.LOGIN, Outcome.SUCCESS);
+				if (sessionCache != null)
+					sessionCache.put(result.getUser());
 			}
 
 			@Override
 			public void onFailure(Throwable caught) {
-				setStatus(Status.LOGGEDOUT, new AuthErrorEvent(caught.getMessage()), true);
+				if (state.failLogin(assertion, AuthErrorCode.of(caught), caught.getMessage()))
+					metrics.stop(Phase.LOGIN, Outcome.FAILURE);
 			}
 		});
 	}
 
 	private static final void onLogout() {
-		setStatus(Status.LOGGINGOUT, new AuthLoggingOutEvent(), false);
+		metrics.stop(Phase.WATCH, Outcome.SUCCESS);
+		if (!state.startLogout()) {
+			metrics.discard(Phase.LOGOUT);
+			return;
+		}
+		metrics.startIfIdle(Phase.LOGOUT);
+		if (sessionCache != null)
+			sessionCache.clear();
 
 		backend.doLogout(new AsyncCallback<Void>() {
 			@Override
 			public void onSuccess(Void result) {
-				setStatus(Status.LOGGEDOUT, new AuthLoggedOutEvent(), true);
+				if (state.completeLogout()) {
+					refresher.stop();
+					metrics.stop(Phase.LOGOUT, Outcome.SUCCESS);
+				}
 			}
 
 			@Override
 			public void onFailure(Throwable caught) {
-				setStatus(Status.LOGGEDIN, new AuthErrorEvent(caught.getMessage()), false);
+				if (state.failLogout(AuthErrorCode.of(caught), caught.getMessage()))
+					metrics.stop(Phase.LOGOUT, Outcome.FAILURE);
 			}
 		});
 	}
 
 	private static final void onCancel() {
-		setStatus(status, new AuthCancelledEvent(), false);
+		metrics.stop(Phase.REQUEST, Outcome.CANCEL);
+		state.cancel();
 	}
 
 }
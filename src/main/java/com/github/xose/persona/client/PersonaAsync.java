@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.RunAsyncCallback;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * Code split facade for {@link Persona}.
+ * <p>
+ * Each call is issued through {@link GWT#runAsync(Class, RunAsyncCallback)},
+ * so the Persona client code, its events and their dependencies are left out
+ * of the initial download and only fetched when first needed. Calls made
+ * before the code fragment arrives are buffered and replayed in order.
+ * <p>
+ * All calls share the {@code Persona.class} split point. To configure Persona
+ * (backend, site name, ...) without pulling it into the initial download, use
+ * the same split point:
+ * 
+ * <pre>
+ * GWT.runAsync(Persona.class, new RunAsyncCallback() {
+ * 	public void onSuccess() {
+ * 		Persona.setBackend(...);
+ * 	}
+ * 	...
+ * });
+ * </pre>
+ * 
+ * If the code fragment cannot be downloaded, the load failure handlers are
+ * called once and the buffered calls are kept. The next call tries to
+ * download the fragment again, and the kept calls are replayed before it, in
+ * order.
+ * <p>
+ * The build writes a compile report: check that the Persona classes are
+ * listed under the {@code Persona} split point instead of the initial
+ * download.
+ */
+public final class PersonaAsync {
+
+	private static final List<AuthLoadFailedHandler> loadFailedHandlers = new ArrayList<AuthLoadFailedHandler>();
+
+	/** Calls waiting for the code fragment. */
+	private static int pending;
+	/** Whether the calls waiting for the code fragment have already failed. */
+	private static boolean failed;
+	/** Calls whose download failed, replayed on the next call. */
+	private static final List<Callback> failedCalls = new ArrayList<Callback>();
+
+	private PersonaAsync() {
+	}
+
+	/**
+	 * Starts fetching the Persona code fragment in the background.
+	 */
+	public static void prefetch() {
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				Persona.load();
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link Persona#watch()}.
+	 */
+	public static void watch() {
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				Persona.watch();
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link Persona#watch(String)}.
+	 * 
+	 * @param loggedInUser
+	 *            the expected logged in user, null if no user is expected
+	 */
+	public static void watch(final String loggedInUser) {
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				Persona.watch(loggedInUser);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link Persona#request()}.
+	 */
+	public static void request() {
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				Persona.request();
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link Persona#logout()}.
+	 */
+	public static void logout() {
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				Persona.logout();
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link Persona#addHandler(AuthHandler)}.
+	 * <p>
+	 * The handler is registered once the code fragment has been loaded. If the
+	 * returned registration is removed before that, the handler is never
+	 * registered.
+	 * 
+	 * @param handler
+	 *            the authentication handler to be added
+	 * @return an object to deregister the handler
+	 */
+	public static HandlerRegistration addHandler(final AuthHandler handler) {
+		final DeferredRegistration registration = new DeferredRegistration();
+
+		runAsync(new Callback() {
+			@Override
+			void run() {
+				if (!registration.removed)
+					registration.delegate = Persona.addHandler(handler);
+			}
+		});
+
+		return registration;
+	}
+
+	/**
+	 * Adds a load failure handler.
+	 * <p>
+	 * The handler is called when the code fragment could not be downloaded.
+	 * Handlers added to {@link Persona} are not called in this case, as the
+	 * fragment they live in is not available.
+	 * 
+	 * @param handler
+	 *            the load failure handler to be added
+	 * @return an object to deregister the handler
+	 */
+	public static HandlerRegistration addAuthLoadFailedHandler(final AuthLoadFailedHandler handler) {
+		loadFailedHandlers.add(handler);
+
+		return new HandlerRegistration() {
+			@Override
+			public void removeHandler() {
+				loadFailedHandlers.remove(handler);
+			}
+		};
+	}
+
+	/**
+	 * Issues a call through the split point, after the calls whose download
+	 * failed.
+	 */
+	private static void runAsync(Callback callback) {
+		final List<Callback> retries = new ArrayList<Callback>(failedCalls);
+		failedCalls.clear();
+		for (Callback retry : retries) {
+			pending++;
+			GWT.runAsync(Persona.class, retry);
+		}
+		pending++;
+		GWT.runAsync(Persona.class, callback);
+	}
+
+	/**
+	 * Split point callback. Each buffered call has its own callback, so the
+	 * failure of a download is reported by the first callback only.
+	 */
+	private static abstract class Callback implements RunAsyncCallback {
+		@Override
+		public final void onSuccess() {
+			pending--;
+			run();
+		}
+
+		@Override
+		public final void onFailure(Throwable reason) {
+			final boolean first = !failed;
+			failed = --pending > 0;
+			failedCalls.add(this);
+			if (!first)
+				return;
+
+			for (AuthLoadFailedHandler handler : new ArrayList<AuthLoadFailedHandler>(loadFailedHandlers)) {
+				handler.onAuthLoadFailed(false);
+			}
+		}
+
+		abstract void run();
+	}
+
+	private static final class DeferredRegistration implements HandlerRegistration {
+		private HandlerRegistration delegate;
+		private boolean removed;
+
+		@Override
+		public void removeHandler() {
+			removed = true;
+			if (delegate != null) {
+				delegate.removeHandler();
+				delegate = null;
+			}
+		}
+	}
+
+}
@@ -26,6 +26,20 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
  * </p>
  * This can be implemented, for example, with a redirect, XHR request, RPC call,
  * WebSocket message, ...
+ * <p>
+ * Failures should be reported with a {@link PersonaBackendException}, so that
+ * the error code reaches the {@link AuthErrorHandler}s and decorators such as
+ * {@link ResilientPersonaBackend} can tell transient errors apart.
+ * <p>
+ * The backend used by {@link Persona} is created with deferred binding, set
+ * by the {@code persona.backend} property in the application module:
+ * 
+ * <pre>
+ * &lt;set-property name="persona.backend" value="json" /&gt;
+ * </pre>
+ * 
+ * A custom backend, which must have a public default constructor, can be
+ * bound with a replace-with rule for this interface instead.
  */
 public interface PersonaBackend {
 
@@ -34,8 +48,9 @@ public interface PersonaBackend {
 	 * <p>
 	 * The backend must verify the assertion and call the appropriate callback:
 	 * <ul>
-	 * <li> {@link AsyncCallback#onSuccess} Call with the user email when the
-	 * assertion has been correctly verified and the user is logged in.
+	 * <li> {@link AsyncCallback#onSuccess} Call with the user email, and
+	 * optionally application data, when the assertion has been correctly
+	 * verified and the user is logged in.
 	 * <li> {@link AsyncCallback#onFailure} Call when the assertion is invalid or
 	 * an error occurs.
 	 * </ul>
@@ -45,7 +60,7 @@ public interface PersonaBackend {
 	 * @param callback
 	 *            the callback function
 	 */
-	void doLogin(String assertion, AsyncCallback<String> callback);
+	void doLogin(String assertion, AsyncCallback<LoginResult> callback);
 
 	/**
 	 * Called when the user requests to log out of Persona.
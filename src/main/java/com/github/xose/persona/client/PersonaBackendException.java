@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Exception reported by {@link PersonaBackend} implementations, carrying an
+ * error code.
+ * <p>
+ * Serializable with GWT-RPC, so that services such as {@link PersonaService}
+ * can throw it.
+ */
+public class PersonaBackendException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private AuthErrorCode code;
+
+	/**
+	 * Constructor for serialization.
+	 */
+	protected PersonaBackendException() {
+		code = AuthErrorCode.UNKNOWN;
+	}
+
+	/**
+	 * Creates a new backend exception.
+	 * 
+	 * @param code
+	 *            the error code
+	 * @param message
+	 *            the error message
+	 */
+	public PersonaBackendException(AuthErrorCode code, String message) {
+		super(message);
+		this.code = checkNotNull(code);
+	}
+
+	/**
+	 * Creates a new backend exception.
+	 * 
+	 * @param code
+	 *            the error code
+	 * @param message
+	 *            the error message
+	 * @param cause
+	 *            the cause
+	 */
+	public PersonaBackendException(AuthErrorCode code, String message, Throwable cause) {
+		super(message, cause);
+		this.code = checkNotNull(code);
+	}
+
+	/**
+	 * Returns the error code.
+	 * 
+	 * @return the error code
+	 */
+	public AuthErrorCode getCode() {
+		return code;
+	}
+
+}
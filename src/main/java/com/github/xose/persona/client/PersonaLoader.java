@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.core.client.ScriptInjector;
+import com.google.web.bindery.event.shared.EventBus;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Asynchronous loader for the Persona script.
+ * <p>
+ * The script is injected into the top window with {@link ScriptInjector}, so
+ * it works with the iframe based linkers (std, xsiframe). Commands executed
+ * before {@code navigator.id} is available are queued and replayed in order
+ * once the script has loaded. Every queued command is run even if some of
+ * them throw, and the exceptions are then thrown together in an
+ * {@link UmbrellaException}.
+ */
+final class PersonaLoader {
+
+	static final String DEFAULT_SCRIPT_URL = "https://login.persona.org/include.js";
+	static final int DEFAULT_TIMEOUT = 30000;
+
+	private static enum State {
+		NOT_LOADED, LOADING, LOADED, FAILED;
+	}
+
+	private final EventBus eventBus;
+	private final List<ScheduledCommand> pending = Lists.newArrayList();
+
+	private State state = State.NOT_LOADED;
+	private int attempt;
+
+	private String scriptUrl = DEFAULT_SCRIPT_URL;
+	private int timeout = DEFAULT_TIMEOUT;
+
+	PersonaLoader(EventBus eventBus) {
+		this.eventBus = checkNotNull(eventBus);
+	}
+
+	void setScriptUrl(String scriptUrl) {
+		this.scriptUrl = checkNotNull(scriptUrl);
+	}
+
+	void setTimeout(int timeout) {
+		checkArgument(timeout > 0);
+		this.timeout = timeout;
+	}
+
+	boolean isLoaded() {
+		return state == State.LOADED;
+	}
+
+	/**
+	 * Executes the command now if the script is loaded, or queues it and
+	 * starts loading the script otherwise.
+	 */
+	void execute(ScheduledCommand command) {
+		if (state == State.LOADED) {
+			command.execute();
+			return;
+		}
+
+		pending.add(checkNotNull(command));
+		load();
+	}
+
+	/**
+	 * Starts loading the script, if not already loaded or loading.
+	 */
+	void load() {
+		if (state == State.LOADED || state == State.LOADING)
+			return;
+
+		if (isAvailable()) {
+			onLoaded();
+			return;
+		}
+
+		state = State.LOADING;
+		final int current = ++attempt;
+
+		ScriptInjector.fromUrl(scriptUrl).setWindow(ScriptInjector.TOP_WINDOW).setCallback(new Callback<Void, Exception>() {
+			@Override
+			public void onSuccess(Void result) {
+				// A late load after a timeout is still accepted
+				if (isAvailable())
+					onLoaded();
+				else if (current == attempt)
+					onFailed(false);
+			}
+
+			@Override
+			public void onFailure(Exception reason) {
+				if (current == attempt)
+					onFailed(false);
+			}
+		}).inject();
+
+		Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				if (current == attempt && state == State.LOADING)
+					onFailed(true);
+				return false;
+			}
+		}, timeout);
+	}
+
+	private void onLoaded() {
+		if (state == State.LOADED)
+			return;
+
+		state = State.LOADED;
+
+		final List<ScheduledCommand> commands = Lists.newArrayList(pending);
+		pending.clear();
+
+		Set<Throwable> causes = null;
+		for (ScheduledCommand command : commands) {
+			try {
+				command.execute();
+			} catch (Throwable e) {
+				if (causes == null)
+					causes = new HashSet<Throwable>();
+				causes.add(e);
+			}
+		}
+
+		if (causes != null)
+			throw new UmbrellaException(causes);
+	}
+
+	private void onFailed(boolean timedOut) {
+		state = State.FAILED;
+		eventBus.fireEvent(new AuthLoadFailedEvent(timedOut));
+	}
+
+	private static native boolean isAvailable() /*-{
+		return !!($wnd.navigator && $wnd.navigator.id);
+	}-*/;
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.gwt.core.client.Duration;
+import com.google.web.bindery.event.shared.EventBus;
+
+/**
+ * Latency metrics for the authentication phases.
+ * <p>
+ * Every phase is timed from its start to its outcome, and the elapsed time is
+ * added to a histogram kept for each phase and outcome. Timings are also
+ * published as they are taken to the handlers added with
+ * {@link Persona#addAuthTimingHandler(AuthTimingHandler)}.
+ * 
+ * @see Persona#getMetrics()
+ */
+public final class PersonaMetrics {
+
+	/**
+	 * Timed authentication phases.
+	 */
+	public static enum Phase {
+		/** From {@link Persona#watch()} to the first Persona callback. */
+		WATCH,
+		/** From receiving an assertion to the backend login result. */
+		LOGIN,
+		/** From {@link Persona#request()} to an assertion or a cancel. */
+		REQUEST,
+		/** From {@link Persona#logout()} to the backend logout result. */
+		LOGOUT;
+	}
+
+	/**
+	 * Phase outcomes.
+	 */
+	public static enum Outcome {
+		/** The phase completed. */
+		SUCCESS,
+		/** The phase failed. */
+		FAILURE,
+		/** The user cancelled the phase. */
+		CANCEL;
+	}
+
+	/**
+	 * Upper bounds of the histogram buckets, in milliseconds. A last bucket
+	 * holds everything above the largest bound.
+	 */
+	private static final double[] BOUNDS = { 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+	private static final int OUTCOMES = Outcome.values().length;
+
+	private final EventBus eventBus;
+	private final double[] started = new double[Phase.values().length];
+	private final Histogram[] histograms = new Histogram[started.length * OUTCOMES];
+
+	PersonaMetrics(EventBus eventBus) {
+		this.eventBus = checkNotNull(eventBus);
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new Histogram();
+		for (int i = 0; i < started.length; i++)
+			started[i] = Double.NaN;
+	}
+
+	/**
+	 * Returns the histogram for a phase and outcome.
+	 * 
+	 * @param phase
+	 *            the phase
+	 * @param outcome
+	 *            the outcome
+	 * @return the live histogram, updated as new timings are taken
+	 */
+	public Histogram getHistogram(Phase phase, Outcome outcome) {
+		return histograms[phase.ordinal() * OUTCOMES + outcome.ordinal()];
+	}
+
+	/**
+	 * Returns how many times a phase ended with a given outcome.
+	 * 
+	 * @param phase
+	 *            the phase
+	 * @param outcome
+	 *            the outcome
+	 * @return the number of timings taken
+	 */
+	public int getCount(Phase phase, Outcome outcome) {
+		return getHistogram(phase, outcome).getCount();
+	}
+
+	/**
+	 * Clears all histograms. Phases in progress are still timed.
+	 */
+	public void reset() {
+		for (Histogram h : histograms)
+			h.clear();
+	}
+
+	/**
+	 * Starts timing a phase, restarting it if already in progress.
+	 */
+	void start(Phase phase) {
+		started[phase.ordinal()] = Duration.currentTimeMillis();
+	}
+
+	/**
+	 * Starts timing a phase, unless already in progress.
+	 */
+	void startIfIdle(Phase phase) {
+		if (!isStarted(phase))
+			start(phase);
+	}
+
+	/**
+	 * Stops timing a phase without recording it.
+	 */
+	void discard(Phase phase) {
+		started[phase.ordinal()] = Double.NaN;
+	}
+
+	boolean isStarted(Phase phase) {
+		return !Double.isNaN(started[phase.ordinal()]);
+	}
+
+	/**
+	 * Ends timing a phase. Does nothing if the phase was not started.
+	 */
+	void stop(Phase phase, Outcome outcome) {
+		final double start = started[phase.ordinal()];
+		if (Double.isNaN(start))
+			return;
+		started[phase.ordinal()] = Double.NaN;
+
+		final double elapsed = Math.max(0, Duration.currentTimeMillis() - start);
+		getHistogram(phase, outcome).add(elapsed);
+		eventBus.fireEvent(new AuthTimingEvent(phase, outcome, elapsed));
+	}
+
+	/**
+	 * Running histogram of elapsed times, with fixed buckets.
+	 */
+	public static final class Histogram {
+
+		private final int[] buckets = new int[BOUNDS.length + 1];
+		private int count;
+		private double sum;
+		private double min;
+		private double max;
+
+		private Histogram() {
+		}
+
+		void add(double value) {
+			int i = 0;
+			while (i < BOUNDS.length && value > BOUNDS[i])
+				i++;
+			buckets[i]++;
+
+			if (count == 0 || value < min)
+				min = value;
+			if (count == 0 || value > max)
+				max = value;
+			sum += value;
+			count++;
+		}
+
+		void clear() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = 0;
+			count = 0;
+			sum = min = max = 0;
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the smallest value recorded, or 0 if none
+		 */
+		public double getMin() {
+			return min;
+		}
+
+		/**
+		 * @return the largest value recorded, or 0 if none
+		 */
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * @return the mean of the values recorded, or 0 if none
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * Estimates a percentile from the buckets.
+		 * 
+		 * @param percentile
+		 *            the percentile, between 0 and 100
+		 * @return the upper bound of the bucket holding the percentile, capped
+		 *         to the largest value recorded, or 0 if none
+		 */
+		public double getPercentile(double percentile) {
+			checkArgument(percentile >= 0 && percentile <= 100);
+			if (count == 0)
+				return 0;
+
+			final double rank = percentile / 100 * count;
+			int seen = 0;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(BOUNDS[i], max);
+			}
+			return max;
+		}
+
+		/**
+		 * Returns the upper bounds of the buckets, in milliseconds. The last
+		 * bucket, at index {@code getBucketBounds().length}, has no bound.
+		 * 
+		 * @return a copy of the bucket bounds
+		 */
+		public double[] getBucketBounds() {
+			final double[] copy = new double[BOUNDS.length];
+			System.arraycopy(BOUNDS, 0, copy, 0, BOUNDS.length);
+			return copy;
+		}
+
+		/**
+		 * @param bucket
+		 *            the bucket index
+		 * @return the number of values recorded in the bucket
+		 */
+		public int getBucketCount(int bucket) {
+			return buckets[bucket];
+		}
+
+	}
+
+}
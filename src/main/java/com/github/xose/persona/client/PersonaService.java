@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.user.client.rpc.RemoteService;
+import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
+
+/**
+ * GWT-RPC service verifying Persona assertions.
+ * <p>
+ * Implemented on the server by
+ * {@code com.github.xose.persona.server.PersonaServiceImpl}, mapped to
+ * {@value #PATH} under the module base URL.
+ * 
+ * @see RpcPersonaBackend
+ */
+@RemoteServiceRelativePath(PersonaService.PATH)
+public interface PersonaService extends RemoteService {
+
+	/** Default servlet path, relative to the module base URL. */
+	String PATH = "persona-rpc";
+
+	/**
+	 * Verifies an assertion and logs the user in.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @return the new session
+	 * @throws PersonaBackendException
+	 *             if the assertion is not valid
+	 */
+	PersonaSession login(String assertion) throws PersonaBackendException;
+
+	/**
+	 * Extends the session of the logged in user.
+	 * 
+	 * @return the extended session
+	 * @throws PersonaBackendException
+	 *             if no user is logged in
+	 */
+	PersonaSession refresh() throws PersonaBackendException;
+
+	/**
+	 * Logs the user out.
+	 */
+	void logout();
+
+}
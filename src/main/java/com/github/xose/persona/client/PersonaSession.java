@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * Session of a logged in user, as returned by {@link PersonaService}.
+ */
+public class PersonaSession implements IsSerializable {
+
+	private String user;
+	private double expires;
+
+	/**
+	 * Constructor for serialization.
+	 */
+	protected PersonaSession() {
+	}
+
+	/**
+	 * Creates a new session.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param expires
+	 *            the session expiry time, in milliseconds since the epoch, or
+	 *            0 if unknown
+	 */
+	public PersonaSession(String user, double expires) {
+		this.user = user;
+		this.expires = expires;
+	}
+
+	/**
+	 * @return the logged in user
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * @return the session expiry time, in milliseconds since the epoch, or 0
+	 *         if unknown
+	 */
+	public double getExpires() {
+		return expires;
+	}
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+/**
+ * Message channel used by {@link SocketPersonaBackend}, usually a WebSocket
+ * the application keeps open.
+ * <p>
+ * The application passes the frames it receives to
+ * {@link SocketPersonaBackend#onMessage(String)}, and tells the backend when
+ * the channel closes with {@link SocketPersonaBackend#onClose()}.
+ */
+public interface PersonaSocket {
+
+	/**
+	 * Sends a text frame.
+	 * 
+	 * @param frame
+	 *            the frame
+	 * @throws IllegalStateException
+	 *             if the channel is not open
+	 */
+	void send(String frame);
+
+}
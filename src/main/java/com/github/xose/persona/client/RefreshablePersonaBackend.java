@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * A {@link PersonaBackend} able to extend a server session without a new
+ * assertion.
+ * <p>
+ * When a login result tells when the session expires, Persona calls
+ * {@link #doRefresh(String, AsyncCallback)} ahead of that time, so that the
+ * session never expires while the user is logged in.
+ * 
+ * @see Persona#setRefreshLead(int)
+ */
+public interface RefreshablePersonaBackend extends PersonaBackend {
+
+	/**
+	 * Called to extend the session of the logged in user.
+	 * <p>
+	 * The backend must call the appropriate callback:
+	 * <ul>
+	 * <li> {@link AsyncCallback#onSuccess} Call with the user and the new
+	 * expiry time when the session has been extended. A payload is passed to
+	 * the refreshed handlers.
+	 * <li> {@link AsyncCallback#onFailure} Call when the session cannot be
+	 * extended, preferably with a {@link PersonaBackendException}.
+	 * </ul>
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param callback
+	 *            the callback function
+	 */
+	void doRefresh(String user, AsyncCallback<LoginResult> callback);
+
+}
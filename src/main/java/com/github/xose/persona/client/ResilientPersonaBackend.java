@@ -0,0 +1,291 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Persona backend decorator adding timeouts, retries and a circuit breaker.
+ * <p>
+ * Each call to the wrapped backend is failed with
+ * {@link AuthErrorCode#TIMEOUT} if it does not complete in time, and a late
+ * result is ignored. The retry of a timed out login is sent as a new request
+ * by {@link JsonPersonaBackend}, rather than attached to the one that timed
+ * out. Calls failing with a {@linkplain AuthErrorCode#isRetryable()
+ * retryable} error are retried after an exponential backoff with full jitter,
+ * so that many clients failing together do not retry together.
+ * <p>
+ * After a number of consecutive retryable failures the circuit opens and
+ * calls fail immediately with {@link AuthErrorCode#CIRCUIT_OPEN}. Once the
+ * open time has passed, a single trial call is let through: the circuit
+ * closes if it succeeds and opens again otherwise.
+ */
+public class ResilientPersonaBackend implements RefreshablePersonaBackend {
+
+	/** Default call timeout, in milliseconds. */
+	public static final int DEFAULT_TIMEOUT = 10000;
+
+	/** Default maximum number of attempts per call, including the first. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/** Default backoff before the first retry, in milliseconds. */
+	public static final int DEFAULT_INITIAL_BACKOFF = 250;
+
+	/** Default maximum backoff between retries, in milliseconds. */
+	public static final int DEFAULT_MAX_BACKOFF = 5000;
+
+	/** Default number of consecutive failures that opens the circuit. */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	/** Default time the circuit stays open, in milliseconds. */
+	public static final int DEFAULT_OPEN_TIME = 30000;
+
+	private static enum Circuit {
+		CLOSED, OPEN, HALF_OPEN;
+	}
+
+	private final PersonaBackend delegate;
+
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private int initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private int maxBackoff = DEFAULT_MAX_BACKOFF;
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private int openTime = DEFAULT_OPEN_TIME;
+
+	private Circuit circuit = Circuit.CLOSED;
+	private int failures;
+	private double openUntil;
+
+	/**
+	 * Creates a new resilient backend.
+	 * 
+	 * @param delegate
+	 *            the backend to wrap
+	 */
+	public ResilientPersonaBackend(PersonaBackend delegate) {
+		this.delegate = checkNotNull(delegate);
+	}
+
+	/**
+	 * Sets the time to wait for each call to the wrapped backend.
+	 * 
+	 * @param timeout
+	 *            the call timeout, in milliseconds
+	 */
+	public void setTimeout(int timeout) {
+		checkArgument(timeout > 0);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets the retry policy.
+	 * 
+	 * @param maxAttempts
+	 *            the maximum number of attempts per call, 1 to disable retries
+	 * @param initialBackoff
+	 *            the backoff before the first retry, in milliseconds
+	 * @param maxBackoff
+	 *            the maximum backoff between retries, in milliseconds
+	 */
+	public void setRetry(int maxAttempts, int initialBackoff, int maxBackoff) {
+		checkArgument(maxAttempts > 0);
+		checkArgument(initialBackoff > 0 && maxBackoff >= initialBackoff);
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Sets the circuit breaker policy.
+	 * 
+	 * @param failureThreshold
+	 *            the number of consecutive failures that opens the circuit
+	 * @param openTime
+	 *            the time the circuit stays open, in milliseconds
+	 */
+	public void setCircuitBreaker(int failureThreshold, int openTime) {
+		checkArgument(failureThreshold > 0);
+		checkArgument(openTime > 0);
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Returns whether calls are currently failing fast.
+	 * 
+	 * @return true if the circuit is open
+	 */
+	public boolean isOpen() {
+		return circuit == Circuit.OPEN && Duration.currentTimeMillis() < openUntil;
+	}
+
+	@Override
+	public void doLogin(final String assertion, AsyncCallback<LoginResult> callback) {
+		new Call<LoginResult>(callback) {
+			@Override
+			void invoke(AsyncCallback<LoginResult> attempt) {
+				delegate.doLogin(assertion, attempt);
+			}
+		}.attempt();
+	}
+
+	@Override
+	public void doRefresh(final String user, AsyncCallback<LoginResult> callback) {
+		new Call<LoginResult>(callback) {
+			@Override
+			void invoke(AsyncCallback<LoginResult> attempt) {
+				SessionRefresher.doRefresh(delegate, user, attempt);
+			}
+		}.attempt();
+	}
+
+	@Override
+	public void doLogout(AsyncCallback<Void> callback) {
+		new Call<Void>(callback) {
+			@Override
+			void invoke(AsyncCallback<Void> attempt) {
+				delegate.doLogout(attempt);
+			}
+		}.attempt();
+	}
+
+	private boolean allowCall() {
+		switch (circuit) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (Duration.currentTimeMillis() < openUntil)
+				return false;
+			circuit = Circuit.HALF_OPEN;
+			return true;
+		default:
+			// A trial call is in flight
+			return false;
+		}
+	}
+
+	private void onCallSucceeded() {
+		circuit = Circuit.CLOSED;
+		failures = 0;
+	}
+
+	private void onCallFailed() {
+		if (circuit == Circuit.HALF_OPEN || ++failures >= failureThreshold) {
+			circuit = Circuit.OPEN;
+			openUntil = Duration.currentTimeMillis() + openTime;
+			failures = 0;
+		}
+	}
+
+	private int getBackoff(int attempt) {
+		final double ceiling = Math.min(maxBackoff, initialBackoff * Math.pow(2, attempt - 1));
+		return Math.max(1, (int) (Math.random() * ceiling));
+	}
+
+	/**
+	 * A call to the wrapped backend, with its retries.
+	 */
+	private abstract class Call<T> {
+		private final AsyncCallback<T> callback;
+		private int attempts;
+
+		Call(AsyncCallback<T> callback) {
+			this.callback = checkNotNull(callback);
+		}
+
+		abstract void invoke(AsyncCallback<T> attempt);
+
+		void attempt() {
+			if (!allowCall()) {
+				callback.onFailure(new PersonaBackendException(AuthErrorCode.CIRCUIT_OPEN, "Backend unavailable"));
+				return;
+			}
+			attempts++;
+
+			final Attempt attempt = new Attempt();
+			Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+				@Override
+				public boolean execute() {
+					attempt.onFailure(new PersonaBackendException(AuthErrorCode.TIMEOUT, "Backend timed out"));
+					return false;
+				}
+			}, timeout);
+			invoke(attempt);
+		}
+
+		void retryOrFail(Throwable caught) {
+			final AuthErrorCode code = AuthErrorCode.of(caught);
+			if (!code.isRetryable()) {
+				// The backend answered, it is not the backend failing
+				onCallSucceeded();
+				callback.onFailure(caught);
+				return;
+			}
+
+			onCallFailed();
+			if (attempts >= maxAttempts || circuit == Circuit.OPEN) {
+				callback.onFailure(caught);
+				return;
+			}
+
+			Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+				@Override
+				public boolean execute() {
+					attempt();
+					return false;
+				}
+			}, getBackoff(attempts));
+		}
+
+		/**
+		 * A single attempt. Only its first result is used.
+		 */
+		private final class Attempt implements AbandonableCallback<T> {
+			private boolean done;
+
+			@Override
+			public boolean isAbandoned() {
+				return done;
+			}
+
+			@Override
+			public void onSuccess(T result) {
+				if (done)
+					return;
+				done = true;
+				onCallSucceeded();
+				callback.onSuccess(result);
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				if (done)
+					return;
+				done = true;
+				retryOrFail(caught);
+			}
+		}
+	}
+
+}
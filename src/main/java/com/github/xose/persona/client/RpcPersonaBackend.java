@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.InvocationException;
+import com.google.gwt.user.client.rpc.StatusCodeException;
+
+/**
+ * Persona backend using GWT-RPC.
+ * <p>
+ * Logins go through {@link PersonaService}, over the same connections as
+ * the other RPC calls of the application, and are answered with compact RPC
+ * payloads instead of JSON. Its login results have no payload, see
+ * {@link LoginResult#getPayload()}.
+ */
+public class RpcPersonaBackend implements RefreshablePersonaBackend {
+
+	private final PersonaServiceAsync service;
+
+	/**
+	 * Creates a new RPC backend with the default service path.
+	 * <p>
+	 * This is the backend created when the {@code persona.backend} property is
+	 * set to {@code rpc}.
+	 */
+	public RpcPersonaBackend() {
+		this(GWT.<PersonaServiceAsync> create(PersonaService.class));
+	}
+
+	/**
+	 * Creates a new RPC backend using a given service proxy, for example one
+	 * with a custom entry point or request builder.
+	 * 
+	 * @param service
+	 *            the service proxy
+	 */
+	public RpcPersonaBackend(PersonaServiceAsync service) {
+		this.service = checkNotNull(service);
+	}
+
+	@Override
+	public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+		service.login(assertion, new SessionCallback(callback));
+	}
+
+	@Override
+	public void doRefresh(String user, AsyncCallback<LoginResult> callback) {
+		service.refresh(new SessionCallback(callback));
+	}
+
+	@Override
+	public void doLogout(final AsyncCallback<Void> callback) {
+		service.logout(new AsyncCallback<Void>() {
+			@Override
+			public void onSuccess(Void result) {
+				callback.onSuccess(null);
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				callback.onFailure(translate(caught));
+			}
+		});
+	}
+
+	/**
+	 * Gives RPC transport failures an error code.
+	 */
+	private static Throwable translate(Throwable caught) {
+		if (caught instanceof StatusCodeException) {
+			final int status = ((StatusCodeException) caught).getStatusCode();
+			final AuthErrorCode code;
+			if (status == 0)
+				code = AuthErrorCode.NETWORK;
+			else if (status >= 500 || status == 429)
+				code = AuthErrorCode.SERVER;
+			else if (status == Response.SC_UNAUTHORIZED || status == Response.SC_FORBIDDEN)
+				code = AuthErrorCode.REJECTED;
+			else
+				code = AuthErrorCode.UNKNOWN;
+			return new PersonaBackendException(code, caught.getMessage(), caught);
+		}
+		if (caught instanceof InvocationException)
+			return new PersonaBackendException(AuthErrorCode.NETWORK, caught.getMessage(), caught);
+		return caught;
+	}
+
+	private static final class SessionCallback implements AsyncCallback<PersonaSession> {
+		private final AsyncCallback<LoginResult> callback;
+
+		SessionCallback(AsyncCallback<LoginResult> callback) {
+			this.callback = checkNotNull(callback);
+		}
+
+		@Override
+		public void onSuccess(PersonaSession result) {
+			callback.onSuccess(new LoginResult(result.getUser(), null, result.getExpires()));
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			callback.onFailure(translate(caught));
+		}
+	}
+
+}
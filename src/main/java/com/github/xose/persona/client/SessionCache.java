@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.storage.client.Storage;
+
+/**
+ * Client side cache of the verified user.
+ * <p>
+ * When set with {@link Persona#setSessionCache(SessionCache)},
+ * {@link Persona#watch()} restores the {@link Persona.Status#LOGGEDIN} status
+ * from the cache instantly, and then checks it against Persona in the
+ * background. If Persona does not confirm the cached user, the usual logout
+ * or login procedure rolls the status back.
+ * <p>
+ * The cache lifetime should not exceed the lifetime of the server session.
+ */
+public final class SessionCache {
+
+	static final String KEY = "persona.session";
+
+	/**
+	 * Creates a cache backed by {@code localStorage}, shared by all windows
+	 * and kept across browser restarts.
+	 * 
+	 * @param ttl
+	 *            the cache lifetime, in milliseconds
+	 * @return the cache, or null if {@code localStorage} is not supported
+	 */
+	@Nullable
+	public static SessionCache local(int ttl) {
+		final Storage storage = Storage.getLocalStorageIfSupported();
+		return storage != null ? new SessionCache(storage, ttl) : null;
+	}
+
+	/**
+	 * Creates a cache backed by {@code sessionStorage}, only kept for the
+	 * current browser window.
+	 * 
+	 * @param ttl
+	 *            the cache lifetime, in milliseconds
+	 * @return the cache, or null if {@code sessionStorage} is not supported
+	 */
+	@Nullable
+	public static SessionCache session(int ttl) {
+		final Storage storage = Storage.getSessionStorageIfSupported();
+		return storage != null ? new SessionCache(storage, ttl) : null;
+	}
+
+	private final Storage storage;
+	private final int ttl;
+
+	private SessionCache(Storage storage, int ttl) {
+		checkArgument(ttl > 0);
+		this.storage = checkNotNull(storage);
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the cached user, if not expired.
+	 * 
+	 * @return the cached user, or null if there is none
+	 */
+	@Nullable
+	String get() {
+		final String value = storage.getItem(KEY);
+		if (value == null)
+			return null;
+
+		final int separator = value.indexOf(':');
+		if (separator > 0) {
+			try {
+				final double expires = Double.parseDouble(value.substring(0, separator));
+				if (expires > Duration.currentTimeMillis())
+					return value.substring(separator + 1);
+			} catch (NumberFormatException e) {
+				// Fall through and drop the invalid entry
+			}
+		}
+
+		clear();
+		return null;
+	}
+
+	void put(String user) {
+		final long expires = (long) Duration.currentTimeMillis() + ttl;
+		storage.setItem(KEY, expires + ":" + checkNotNull(user));
+	}
+
+	void clear() {
+		storage.removeItem(KEY);
+	}
+
+}
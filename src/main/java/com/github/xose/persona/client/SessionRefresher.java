@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.github.xose.persona.client.Persona.Status;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.web.bindery.event.shared.EventBus;
+
+/**
+ * Keeps the server session of the logged in user alive.
+ * <p>
+ * When the backend tells when the session expires, a refresh is scheduled
+ * ahead of that time, and again after each refresh. Failed refreshes are
+ * retried with a growing delay while there is time left. If the session
+ * still expires, the user is logged out, so that the application never
+ * works with an expired session.
+ */
+final class SessionRefresher {
+
+	static final int DEFAULT_LEAD = 60000;
+
+	private static final int MIN_RETRY_DELAY = 1000;
+
+	private final EventBus eventBus;
+	private final AuthStateMachine state;
+	private final ScheduledCommand onExpired;
+
+	private int lead = DEFAULT_LEAD;
+	private int generation;
+	private String user;
+	private double expires;
+	private String token;
+
+	SessionRefresher(EventBus eventBus, AuthStateMachine state, ScheduledCommand onExpired) {
+		this.eventBus = checkNotNull(eventBus);
+		this.state = checkNotNull(state);
+		this.onExpired = checkNotNull(onExpired);
+	}
+
+	void setLead(int lead) {
+		checkArgument(lead >= 0);
+		this.lead = lead;
+	}
+
+	/**
+	 * @return the session expiry time, or 0 if unknown
+	 */
+	double getExpires() {
+		return expires;
+	}
+
+	/**
+	 * @return the session token, or null if there is none
+	 */
+	String getToken() {
+		return token;
+	}
+
+	/**
+	 * Starts tracking the session of a user that has just logged in.
+	 */
+	void start(PersonaBackend backend, LoginResult result) {
+		stop();
+		user = result.getUser();
+		expires = result.getExpires();
+		token = result.getToken();
+		if (expires > 0)
+			scheduleRefresh(backend, 0);
+	}
+
+	/**
+	 * Stops tracking the session, cancelling any scheduled refresh.
+	 */
+	void stop() {
+		generation++;
+		user = null;
+		expires = 0;
+		token = null;
+	}
+
+	private void scheduleRefresh(final PersonaBackend backend, final int retries) {
+		if (!(backend instanceof RefreshablePersonaBackend)) {
+			scheduleExpiry();
+			return;
+		}
+
+		final double remaining = expires - Duration.currentTimeMillis();
+		final double delay;
+		if (retries == 0)
+			// Never closer to the expiry than half the session lifetime
+			delay = Math.max(remaining - lead, remaining / 2);
+		else
+			delay = Math.min(remaining / 2, MIN_RETRY_DELAY * Math.pow(2, retries - 1));
+
+		if (retries > 0 && delay < MIN_RETRY_DELAY) {
+			scheduleExpiry();
+			return;
+		}
+
+		schedule(delay, new ScheduledCommand() {
+			@Override
+			public void execute() {
+				refresh((RefreshablePersonaBackend) backend, retries);
+			}
+		});
+	}
+
+	private void refresh(final RefreshablePersonaBackend backend, final int retries) {
+		if (state.getStatus() != Status.LOGGEDIN || !user.equals(state.getCurrentUser())) {
+			stop();
+			return;
+		}
+
+		final int current = generation;
+		backend.doRefresh(user, new AsyncCallback<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				if (current != generation)
+					return;
+				if (!state.refreshed(user, result)) {
+					stop();
+					return;
+				}
+
+				expires = result.getExpires();
+				if (result.getToken() != null)
+					token = result.getToken();
+				eventBus.fireEvent(new AuthRefreshedEvent(null, expires, result.getPayload()));
+				if (current == generation && expires > 0)
+					scheduleRefresh(backend, 0);
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				if (current != generation)
+					return;
+
+				final AuthErrorCode code = AuthErrorCode.of(caught);
+				eventBus.fireEvent(new AuthRefreshedEvent(code, expires, null));
+				if (current != generation)
+					return;
+				if (code.isRetryable())
+					scheduleRefresh(backend, retries + 1);
+				else
+					scheduleExpiry();
+			}
+		});
+	}
+
+	private void scheduleExpiry() {
+		final String expiring = user;
+		schedule(expires - Duration.currentTimeMillis(), new ScheduledCommand() {
+			@Override
+			public void execute() {
+				stop();
+				if (state.expire(expiring))
+					onExpired.execute();
+			}
+		});
+	}
+
+	private void schedule(double delay, final ScheduledCommand command) {
+		final int current = generation;
+		Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				if (current == generation)
+					command.execute();
+				return false;
+			}
+		}, (int) Math.max(0, Math.min(delay, Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Calls {@link RefreshablePersonaBackend#doRefresh} if the backend
+	 * supports it, or fails with {@link AuthErrorCode#UNSUPPORTED}.
+	 */
+	static void doRefresh(PersonaBackend backend, String user, AsyncCallback<LoginResult> callback) {
+		if (backend instanceof RefreshablePersonaBackend)
+			((RefreshablePersonaBackend) backend).doRefresh(user, callback);
+		else
+			callback.onFailure(new PersonaBackendException(AuthErrorCode.UNSUPPORTED, "Refresh not supported"));
+	}
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gwt.json.client.JSONException;
+import com.google.gwt.json.client.JSONNumber;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Persona backend sending requests as JSON frames over a
+ * {@link PersonaSocket}, saving the HTTP setup and headers of each login.
+ * <p>
+ * Each request carries an id, which the server echoes in its reply:
+ * 
+ * <pre>
+ * {"type": "persona.login", "id": 1, "assertion": "..."}
+ * {"type": "persona.refresh", "id": 2}
+ * {"type": "persona.logout", "id": 3}
+ * {"type": "persona.reply", "id": 1, "status": "okay", "email": "user@example.com"}
+ * {"type": "persona.reply", "id": 2, "status": "failure", "reason": "..."}
+ * {"type": "persona.reply", "id": 3, "status": "error", "reason": "..."}
+ * </pre>
+ * 
+ * Replies are answered like {@link JsonPersonaBackend} replies, and may hold
+ * the session {@code expires} time and a {@code payload}. A {@code failure}
+ * reply rejects the request, while an {@code error} reply is a temporary
+ * server failure, which {@link ResilientPersonaBackend} and
+ * {@link FailoverPersonaBackend} retry. Replies may come in any order, and
+ * other traffic can share the channel: frames that are not Persona replies
+ * are left to the application.
+ * <p>
+ * Requests get no reply if the channel drops them. Wrap this backend in a
+ * {@link ResilientPersonaBackend} to time them out. Requests whose callers
+ * have given up on them are forgotten when the next request is sent, and
+ * their replies ignored.
+ */
+public class SocketPersonaBackend implements RefreshablePersonaBackend {
+
+	private static final String TYPE_PREFIX = "persona.";
+	private static final String TYPE_REPLY = TYPE_PREFIX + "reply";
+
+	private static final String STATUS_OKAY = "okay";
+	private static final String STATUS_ERROR = "error";
+
+	private final PersonaSocket socket;
+	private final Map<Integer, Reply<?>> pending = Maps.newHashMap();
+	private int nextId = 1;
+
+	/**
+	 * Creates a new socket backend.
+	 * 
+	 * @param socket
+	 *            the channel requests are sent over
+	 */
+	public SocketPersonaBackend(PersonaSocket socket) {
+		this.socket = checkNotNull(socket);
+	}
+
+	@Override
+	public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+		final JSONObject request = new JSONObject();
+		request.put("assertion", new JSONString(assertion));
+		send("login", request, new LoginReply(callback));
+	}
+
+	@Override
+	public void doRefresh(String user, AsyncCallback<LoginResult> callback) {
+		send("refresh", new JSONObject(), new LoginReply(callback));
+	}
+
+	@Override
+	public void doLogout(AsyncCallback<Void> callback) {
+		send("logout", new JSONObject(), new Reply<Void>(callback) {
+			@Override
+			public void onSuccess(JSONObject result) {
+				callback.onSuccess(null);
+			}
+		});
+	}
+
+	/**
+	 * Handles a frame received from the channel.
+	 * 
+	 * @param frame
+	 *            the frame
+	 * @return true if the frame was a reply to this backend, false if it is
+	 *         left to the application
+	 */
+	public boolean onMessage(String frame) {
+		final JSONObject reply;
+		try {
+			final JSONValue value = JSONParser.parseStrict(frame);
+			reply = value.isObject();
+		} catch (JSONException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+
+		if (reply == null || !TYPE_REPLY.equals(JsonPersonaBackend.getString(reply, "type")))
+			return false;
+
+		final Reply<?> callback = pending.remove((int) JsonPersonaBackend.getNumber(reply, "id"));
+		if (callback == null)
+			return true;
+
+		final String status = JsonPersonaBackend.getString(reply, "status");
+		final String reason = JsonPersonaBackend.getString(reply, "reason");
+		if (STATUS_OKAY.equals(status))
+			callback.onSuccess(reply);
+		else if (STATUS_ERROR.equals(status))
+			callback.onFailure(new PersonaBackendException(AuthErrorCode.SERVER, reason != null ? reason : "Server error"));
+		else
+			callback.onFailure(new PersonaBackendException(AuthErrorCode.REJECTED, reason != null ? reason : "Rejected"));
+		return true;
+	}
+
+	/**
+	 * Fails the requests waiting for a reply, when the channel has closed.
+	 */
+	public void onClose() {
+		final List<Reply<?>> callbacks = Lists.newArrayList(pending.values());
+		pending.clear();
+		for (Reply<?> c : callbacks) {
+			c.onFailure(new PersonaBackendException(AuthErrorCode.NETWORK, "Socket closed"));
+		}
+	}
+
+	private void send(String type, JSONObject request, Reply<?> callback) {
+		removeAbandoned();
+
+		final int id = nextId++;
+		request.put("type", new JSONString(TYPE_PREFIX + type));
+		request.put("id", new JSONNumber(id));
+
+		pending.put(id, callback);
+		try {
+			socket.send(request.toString());
+		} catch (IllegalStateException e) {
+			pending.remove(id);
+			callback.onFailure(new PersonaBackendException(AuthErrorCode.NETWORK, "Socket not open", e));
+		}
+	}
+
+	/**
+	 * Forgets the requests nobody waits for any more, such as requests the
+	 * channel dropped and {@link ResilientPersonaBackend} timed out, which
+	 * would otherwise be kept until the channel closes.
+	 */
+	private void removeAbandoned() {
+		for (Iterator<Reply<?>> it = pending.values().iterator(); it.hasNext();) {
+			if (it.next().isAbandoned())
+				it.remove();
+		}
+	}
+
+	/**
+	 * Reply handler of a request, answering the caller's callback.
+	 */
+	private abstract static class Reply<T> implements AsyncCallback<JSONObject> {
+		final AsyncCallback<T> callback;
+
+		Reply(AsyncCallback<T> callback) {
+			this.callback = checkNotNull(callback);
+		}
+
+		/**
+		 * Returns whether the caller has stopped waiting for the reply.
+		 */
+		boolean isAbandoned() {
+			return callback instanceof AbandonableCallback && ((AbandonableCallback<?>) callback).isAbandoned();
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			callback.onFailure(caught);
+		}
+	}
+
+	/**
+	 * Turns a login or refresh reply into a login result.
+	 */
+	private static final class LoginReply extends Reply<LoginResult> {
+		LoginReply(AsyncCallback<LoginResult> callback) {
+			super(callback);
+		}
+
+		@Override
+		public void onSuccess(JSONObject result) {
+			final String email = JsonPersonaBackend.getString(result, "email");
+			if (email == null)
+				callback.onFailure(new PersonaBackendException(AuthErrorCode.INVALID_RESPONSE, "Invalid response"));
+			else
+				callback.onSuccess(new LoginResult(email, JsonPersonaBackend.getPayload(result), JsonPersonaBackend.getNumber(result, "expires")));
+		}
+	}
+
+}
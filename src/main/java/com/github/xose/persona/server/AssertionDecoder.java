@@ -0,0 +1,567 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+/**
+ * Streaming decoder for Persona assertions.
+ * <p>
+ * Decodes the base64url segments of each token straight into reusable
+ * buffers, and scans the JSON with a tokenizer that only extracts the
+ * claims needed for verification ({@code alg}, {@code iss}, {@code aud},
+ * {@code exp}, {@code public-key} and {@code principal.email}), skipping
+ * everything else. Apart from the extracted strings, decoding does not
+ * allocate once the buffers have grown to fit.
+ * <p>
+ * Instances are not thread safe, use {@link #get()} to obtain the one for
+ * the current thread.
+ */
+final class AssertionDecoder {
+
+	/** Value of {@link Token#exp} when the claim is missing. */
+	static final long MISSING = Long.MIN_VALUE;
+
+	private static final int MAX_TOKENS = 8;
+
+	private static final ThreadLocal<AssertionDecoder> instances = new ThreadLocal<AssertionDecoder>() {
+		@Override
+		protected AssertionDecoder initialValue() {
+			return new AssertionDecoder();
+		}
+	};
+
+	private static final byte[] BASE64URL = new byte[128];
+
+	static {
+		Arrays.fill(BASE64URL, (byte) -1);
+		for (int i = 0; i < 26; i++) {
+			BASE64URL['A' + i] = (byte) i;
+			BASE64URL['a' + i] = (byte) (26 + i);
+		}
+		for (int i = 0; i < 10; i++) {
+			BASE64URL['0' + i] = (byte) (52 + i);
+		}
+		BASE64URL['-'] = 62;
+		BASE64URL['_'] = 63;
+	}
+
+	// Scanning contexts
+	private static final int HEADER = 0;
+	private static final int PAYLOAD = 1;
+	private static final int PUBLIC_KEY = 2;
+	private static final int PRINCIPAL = 3;
+
+	private static final byte[] ALG = ascii("alg");
+	private static final byte[] ISS = ascii("iss");
+	private static final byte[] AUD = ascii("aud");
+	private static final byte[] EXP = ascii("exp");
+	private static final byte[] PUBLIC_KEY_NAME = ascii("public-key");
+	private static final byte[] PRINCIPAL_NAME = ascii("principal");
+	private static final byte[] EMAIL = ascii("email");
+	private static final byte[] ALGORITHM = ascii("algorithm");
+
+	/**
+	 * The claims of a single token.
+	 */
+	static final class Token {
+		byte[] signingInput = new byte[1024];
+		int signingInputLength;
+		byte[] signature = new byte[256];
+		int signatureLength;
+
+		String alg;
+		String iss;
+		String aud;
+		String email;
+		long exp;
+
+		String keyAlgorithm;
+		String n;
+		String e;
+		String y;
+		String p;
+		String q;
+		String g;
+
+		private void reset() {
+			signingInputLength = 0;
+			signatureLength = 0;
+			alg = iss = aud = email = null;
+			exp = MISSING;
+			keyAlgorithm = n = e = y = p = q = g = null;
+		}
+	}
+
+	static AssertionDecoder get() {
+		return instances.get();
+	}
+
+	private Token[] tokens = { new Token(), new Token() };
+	private int count;
+
+	private byte[] json = new byte[2048];
+	private int pos;
+	private int limit;
+	private Token token;
+
+	private final StringBuilder chars = new StringBuilder();
+	private byte[] der = new byte[80];
+	private final Map<String, Signature> signatures = Maps.newHashMap();
+
+	private AssertionDecoder() {
+	}
+
+	/**
+	 * Decodes a {@code cert~...~assertion} backed identity assertion.
+	 * 
+	 * @return the number of tokens, at least two
+	 * @throws VerificationException
+	 *             if the assertion is malformed
+	 */
+	int decode(String assertion) throws VerificationException {
+		count = 0;
+		int start = 0;
+		while (true) {
+			int end = assertion.indexOf('~', start);
+			if (end < 0)
+				end = assertion.length();
+
+			if (count == MAX_TOKENS)
+				throw new VerificationException("Certificate chain too long");
+			if (count == tokens.length) {
+				tokens = Arrays.copyOf(tokens, count * 2);
+				for (int i = count; i < tokens.length; i++) {
+					tokens[i] = new Token();
+				}
+			}
+
+			token = tokens[count++];
+			token.reset();
+			decodeToken(assertion, start, end);
+
+			if (end == assertion.length())
+				break;
+			start = end + 1;
+		}
+
+		token = null;
+		if (count < 2)
+			throw new VerificationException("Malformed assertion");
+		return count;
+	}
+
+	Token token(int index) {
+		return tokens[index];
+	}
+
+	/**
+	 * Returns a signature instance for the current thread.
+	 */
+	Signature signature(String algorithm) throws NoSuchAlgorithmException {
+		Signature signature = signatures.get(algorithm);
+		if (signature == null) {
+			signature = Signature.getInstance(algorithm);
+			signatures.put(algorithm, signature);
+		}
+		return signature;
+	}
+
+	/**
+	 * Converts a raw {@code r || s} DSA signature to DER, into a reusable
+	 * buffer.
+	 * 
+	 * @return the DER length
+	 */
+	int toDer(Token token) throws VerificationException {
+		final int length = token.signatureLength;
+		if (length == 0 || length % 2 != 0 || length > 64)
+			throw new VerificationException("Invalid signature");
+
+		final int half = length / 2;
+		int i = 2;
+		i = putInteger(token.signature, 0, half, i);
+		i = putInteger(token.signature, half, half, i);
+		der[0] = 0x30;
+		der[1] = (byte) (i - 2);
+		return i;
+	}
+
+	byte[] der() {
+		return der;
+	}
+
+	private int putInteger(byte[] src, int offset, int length, int i) {
+		int start = offset;
+		final int end = offset + length;
+		while (start < end - 1 && src[start] == 0)
+			start++;
+
+		final boolean pad = (src[start] & 0x80) != 0;
+		final int size = end - start + (pad ? 1 : 0);
+		der[i++] = 0x02;
+		der[i++] = (byte) size;
+		if (pad)
+			der[i++] = 0;
+		System.arraycopy(src, start, der, i, end - start);
+		return i + end - start;
+	}
+
+	private void decodeToken(String s, int start, int end) throws VerificationException {
+		final int first = s.indexOf('.', start);
+		if (first < 0 || first >= end)
+			throw new VerificationException("Malformed token");
+		final int second = s.indexOf('.', first + 1);
+		if (second < 0 || second >= end)
+			throw new VerificationException("Malformed token");
+		final int third = s.indexOf('.', second + 1);
+		if (third >= 0 && third < end)
+			throw new VerificationException("Malformed token");
+
+		// Signing input, as ASCII bytes
+		final int inputLength = second - start;
+		if (token.signingInput.length < inputLength)
+			token.signingInput = new byte[Integer.highestOneBit(inputLength) << 1];
+		for (int i = 0; i < inputLength; i++) {
+			final char c = s.charAt(start + i);
+			if (c >= 128)
+				throw new VerificationException("Malformed token");
+			token.signingInput[i] = (byte) c;
+		}
+		token.signingInputLength = inputLength;
+
+		limit = decodeBase64(s, start, first);
+		pos = 0;
+		scanObject(HEADER);
+
+		limit = decodeBase64(s, first + 1, second);
+		pos = 0;
+		scanObject(PAYLOAD);
+
+		final int signatureLength = (end - second - 1) * 3 / 4;
+		if (token.signature.length < signatureLength)
+			token.signature = new byte[Integer.highestOneBit(signatureLength) << 1];
+		token.signatureLength = decodeBase64(s, second + 1, end, token.signature);
+	}
+
+	private int decodeBase64(String s, int start, int end) throws VerificationException {
+		final int length = (end - start) * 3 / 4;
+		if (json.length < length)
+			json = new byte[Integer.highestOneBit(length) << 1];
+		return decodeBase64(s, start, end, json);
+	}
+
+	/**
+	 * Decodes unpadded base64url data into a buffer large enough to hold it.
+	 * 
+	 * @return the number of bytes decoded
+	 */
+	static int decodeBase64(String s, int start, int end, byte[] out) throws VerificationException {
+		while (end > start && s.charAt(end - 1) == '=')
+			end--;
+		if ((end - start) % 4 == 1)
+			throw new VerificationException("Invalid base64url data");
+
+		int bits = 0;
+		int buffer = 0;
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			final int value = c < 128 ? BASE64URL[c] : -1;
+			if (value < 0)
+				throw new VerificationException("Invalid base64url data");
+
+			buffer = (buffer << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				out[length++] = (byte) (buffer >> bits);
+			}
+		}
+		return length;
+	}
+
+	private void scanObject(int context) throws VerificationException {
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return;
+		}
+
+		while (true) {
+			skipWhitespace();
+			expect('"');
+			final int keyStart = pos;
+			while (peek() != '"') {
+				if (json[pos] == '\\')
+					pos++;
+				pos++;
+			}
+			final int keyEnd = pos++;
+
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			scanMember(context, keyStart, keyEnd);
+
+			skipWhitespace();
+			final byte c = next();
+			if (c == '}')
+				return;
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private void scanMember(int context, int keyStart, int keyEnd) throws VerificationException {
+		switch (context) {
+		case HEADER:
+			if (keyEquals(keyStart, keyEnd, ALG)) {
+				token.alg = readString();
+				return;
+			}
+			break;
+		case PAYLOAD:
+			if (keyEquals(keyStart, keyEnd, ISS)) {
+				token.iss = readString();
+				return;
+			} else if (keyEquals(keyStart, keyEnd, AUD)) {
+				token.aud = readString();
+				return;
+			} else if (keyEquals(keyStart, keyEnd, EXP)) {
+				token.exp = readLong();
+				return;
+			} else if (keyEquals(keyStart, keyEnd, PUBLIC_KEY_NAME)) {
+				scanObject(PUBLIC_KEY);
+				return;
+			} else if (keyEquals(keyStart, keyEnd, PRINCIPAL_NAME)) {
+				scanObject(PRINCIPAL);
+				return;
+			}
+			break;
+		case PUBLIC_KEY:
+			if (keyEquals(keyStart, keyEnd, ALGORITHM)) {
+				token.keyAlgorithm = readString();
+				return;
+			} else if (keyEnd - keyStart == 1) {
+				switch (json[keyStart]) {
+				case 'n':
+					token.n = readString();
+					return;
+				case 'e':
+					token.e = readString();
+					return;
+				case 'y':
+					token.y = readString();
+					return;
+				case 'p':
+					token.p = readString();
+					return;
+				case 'q':
+					token.q = readString();
+					return;
+				case 'g':
+					token.g = readString();
+					return;
+				default:
+					break;
+				}
+			}
+			break;
+		case PRINCIPAL:
+			if (keyEquals(keyStart, keyEnd, EMAIL)) {
+				token.email = readString();
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+
+		skipValue();
+	}
+
+	private String readString() throws VerificationException {
+		expect('"');
+		final int start = pos;
+		while (true) {
+			final byte c = next();
+			if (c == '"')
+				return new String(json, start, pos - start - 1, Charsets.UTF_8);
+			if (c == '\\')
+				break;
+		}
+
+		// Slow path for escaped strings
+		pos = start;
+		chars.setLength(0);
+		while (true) {
+			final int runStart = pos;
+			byte c;
+			while ((c = next()) != '"' && c != '\\') {
+				// Copy unescaped runs at once, to keep UTF-8 sequences whole
+			}
+			chars.append(new String(json, runStart, pos - runStart - 1, Charsets.UTF_8));
+			if (c == '"')
+				return chars.toString();
+
+			final byte e = next();
+			switch (e) {
+			case '"':
+			case '\\':
+			case '/':
+				chars.append((char) e);
+				break;
+			case 'b':
+				chars.append('\b');
+				break;
+			case 'f':
+				chars.append('\f');
+				break;
+			case 'n':
+				chars.append('\n');
+				break;
+			case 'r':
+				chars.append('\r');
+				break;
+			case 't':
+				chars.append('\t');
+				break;
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					final int digit = Character.digit(next(), 16);
+					if (digit < 0)
+						throw error();
+					value = (value << 4) | digit;
+				}
+				chars.append((char) value);
+				break;
+			default:
+				throw error();
+			}
+		}
+	}
+
+	private long readLong() throws VerificationException {
+		final boolean negative = peek() == '-';
+		if (negative)
+			pos++;
+
+		long value = 0;
+		int digits = 0;
+		while (pos < limit && json[pos] >= '0' && json[pos] <= '9') {
+			if (value > (Long.MAX_VALUE - 9) / 10)
+				throw error();
+			value = value * 10 + (json[pos++] - '0');
+			digits++;
+		}
+		if (digits == 0)
+			throw error();
+
+		// Drop any fractional part
+		if (pos < limit && json[pos] == '.') {
+			pos++;
+			while (pos < limit && json[pos] >= '0' && json[pos] <= '9')
+				pos++;
+		}
+
+		return negative ? -value : value;
+	}
+
+	private void skipValue() throws VerificationException {
+		final byte c = peek();
+		if (c == '"') {
+			pos++;
+			skipString();
+		} else if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				final byte b = next();
+				if (b == '"')
+					skipString();
+				else if (b == '{' || b == '[')
+					depth++;
+				else if (b == '}' || b == ']')
+					depth--;
+			} while (depth > 0);
+		} else {
+			// Numbers and literals
+			while (pos < limit && json[pos] != ',' && json[pos] != '}' && json[pos] != ']' && json[pos] > ' ')
+				pos++;
+		}
+	}
+
+	private void skipString() throws VerificationException {
+		while (true) {
+			final byte c = next();
+			if (c == '"')
+				return;
+			if (c == '\\')
+				next();
+		}
+	}
+
+	private boolean keyEquals(int start, int end, byte[] key) {
+		if (end - start != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (json[start + i] != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void skipWhitespace() {
+		while (pos < limit && (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r'))
+			pos++;
+	}
+
+	private void expect(char c) throws VerificationException {
+		if (next() != c)
+			throw error();
+	}
+
+	private byte peek() throws VerificationException {
+		if (pos >= limit)
+			throw error();
+		return json[pos];
+	}
+
+	private byte next() throws VerificationException {
+		final byte c = peek();
+		pos++;
+		return c;
+	}
+
+	private static VerificationException error() {
+		return new VerificationException("Malformed token");
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(Charsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.PublicKey;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Fetches issuer keys from their {@code /.well-known/browserid} support
+ * document over HTTPS.
+ * <p>
+ * Issuers are taken from assertions, so they are chosen by the client. Only
+ * public host names are fetched: issuers resolving to loopback, private or
+ * link-local addresses are rejected, and documents are limited to
+ * {@value #MAX_DOCUMENT_SIZE} bytes. Documents are fetched directly, without
+ * a proxy, and the address of each HTTPS connection is checked again once
+ * connected, as the host name may resolve differently the second time.
+ * <p>
+ * A support document may delegate to another domain with an
+ * {@code authority} field, which is followed up to
+ * {@value #MAX_DELEGATIONS} times: the key of the last domain is returned.
+ * Issuers whose document is {@code disabled} are rejected.
+ */
+public class HttpIssuerKeyFetcher implements IssuerKeyFetcher {
+
+	/** The maximum size of a support document, in bytes. */
+	public static final int MAX_DOCUMENT_SIZE = 65536;
+
+	/** The maximum number of authority delegations followed. */
+	public static final int MAX_DELEGATIONS = 6;
+
+	private static final int TIMEOUT = 10000;
+
+	private static final Pattern HOST_NAME = Pattern.compile("[a-z0-9]([a-z0-9-]*[a-z0-9])?(\\.[a-z0-9]([a-z0-9-]*[a-z0-9])?)+");
+
+	@Override
+	public PublicKey fetch(String issuer) throws VerificationException {
+		String domain = checkNotNull(issuer);
+		for (int i = 0; i <= MAX_DELEGATIONS; i++) {
+			final Map<String, Object> document = Json.parseObject(fetchDocument(domain));
+			if (Boolean.TRUE.equals(document.get("disabled")))
+				throw new VerificationException("Persona support disabled for " + domain);
+
+			final Object authority = document.get("authority");
+			if (authority == null)
+				return PublicKeys.parse(Json.getObject(document, "public-key"));
+			if (!(authority instanceof String))
+				throw new VerificationException("Invalid authority for " + domain);
+			domain = (String) authority;
+		}
+
+		throw new VerificationException("Too many authority delegations for " + issuer);
+	}
+
+	/**
+	 * Returns the URL of the support document of the given issuer.
+	 * <p>
+	 * Override to fetch documents from somewhere else, for example a local
+	 * server in tests.
+	 * 
+	 * @param issuer
+	 *            the issuer domain
+	 * @return the support document URL
+	 * @throws MalformedURLException
+	 *             if the issuer is not a valid host name
+	 */
+	protected URL getUrl(String issuer) throws MalformedURLException {
+		return new URL("https", issuer, "/.well-known/browserid");
+	}
+
+	/**
+	 * Checks whether support documents may be fetched from an address.
+	 * <p>
+	 * By default, loopback, wildcard, private, link-local and multicast
+	 * addresses are rejected, so that issuers cannot reach internal servers.
+	 * Private addresses include IPv6 unique local addresses
+	 * ({@code fc00::/7}) and carrier-grade NAT addresses
+	 * ({@code 100.64.0.0/10}).
+	 * 
+	 * @param address
+	 *            an address of the host of the support document
+	 * @return true if the address may be used
+	 */
+	protected boolean isAllowed(InetAddress address) {
+		return !address.isLoopbackAddress() && !address.isAnyLocalAddress() && !address.isSiteLocalAddress() && !address.isLinkLocalAddress()
+				&& !address.isMulticastAddress() && !isUniqueLocal(address) && !isSharedAddress(address);
+	}
+
+	/**
+	 * Returns whether an address is an IPv6 unique local address,
+	 * {@code fc00::/7}. {@link InetAddress#isSiteLocalAddress()} only covers
+	 * the deprecated {@code fec0::/10} range.
+	 */
+	private static boolean isUniqueLocal(InetAddress address) {
+		return address instanceof Inet6Address && (address.getAddress()[0] & 0xfe) == 0xfc;
+	}
+
+	/**
+	 * Returns whether an address is in the carrier-grade NAT range,
+	 * {@code 100.64.0.0/10}.
+	 */
+	private static boolean isSharedAddress(InetAddress address) {
+		final byte[] bytes = address.getAddress();
+		return address instanceof Inet4Address && (bytes[0] & 0xff) == 100 && (bytes[1] & 0xc0) == 64;
+	}
+
+	private String fetchDocument(String issuer) throws VerificationException {
+		if (!HOST_NAME.matcher(issuer.toLowerCase(Locale.ENGLISH)).matches())
+			throw new VerificationException("Invalid issuer: " + issuer);
+
+		InputStream in = null;
+		try {
+			final URL url = getUrl(issuer);
+			checkHost(url.getHost());
+
+			final HttpURLConnection connection = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
+			if (connection instanceof HttpsURLConnection) {
+				final HttpsURLConnection https = (HttpsURLConnection) connection;
+				https.setSSLSocketFactory(new CheckedSocketFactory(this, https.getSSLSocketFactory()));
+			}
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setInstanceFollowRedirects(false);
+
+			final int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK)
+				throw new VerificationException("Cannot fetch support document for " + issuer + ": HTTP " + status, null, status >= 500);
+			if (connection.getContentLength() > MAX_DOCUMENT_SIZE)
+				throw new VerificationException("Support document too large for " + issuer);
+
+			in = connection.getInputStream();
+			return read(in, issuer);
+		} catch (IOException e) {
+			for (Throwable t = e; t != null; t = t.getCause()) {
+				if (t instanceof HostNotAllowedException)
+					throw new VerificationException("Issuer host not allowed: " + issuer);
+			}
+			throw new VerificationException("Cannot fetch support document for " + issuer, e, true);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private void checkHost(String host) throws UnknownHostException, VerificationException {
+		for (InetAddress address : InetAddress.getAllByName(host)) {
+			if (!isAllowed(address))
+				throw new VerificationException("Issuer host not allowed: " + host);
+		}
+	}
+
+	private static String read(InputStream in, String issuer) throws IOException, VerificationException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			if (out.size() + n > MAX_DOCUMENT_SIZE)
+				throw new VerificationException("Support document too large for " + issuer);
+			out.write(buffer, 0, n);
+		}
+		return new String(out.toByteArray(), Charsets.UTF_8);
+	}
+
+	/**
+	 * Thrown when a connection is made to an address that is not allowed.
+	 */
+	static final class HostNotAllowedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		HostNotAllowedException(@Nullable InetAddress address) {
+			super("Address not allowed: " + address);
+		}
+	}
+
+	/**
+	 * Checks the address of each connected socket before starting TLS on it.
+	 * <p>
+	 * No unconnected sockets are created, so the HTTPS client connects a plain
+	 * socket and layers TLS over it with
+	 * {@link #createSocket(Socket, String, int, boolean)}.
+	 */
+	static final class CheckedSocketFactory extends SSLSocketFactory {
+		private final HttpIssuerKeyFetcher fetcher;
+		private final SSLSocketFactory delegate;
+
+		CheckedSocketFactory(HttpIssuerKeyFetcher fetcher, SSLSocketFactory delegate) {
+			this.fetcher = checkNotNull(fetcher);
+			this.delegate = checkNotNull(delegate);
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			check(socket);
+			return delegate.createSocket(socket, host, port, autoClose);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return check(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return check(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return check(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return check(delegate.createSocket(address, port, localAddress, localPort));
+		}
+
+		private Socket check(Socket socket) throws IOException {
+			final InetAddress address = socket.getInetAddress();
+			if (address == null || !fetcher.isAllowed(address)) {
+				socket.close();
+				throw new HostNotAllowedException(address);
+			}
+			return socket;
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Caching issuer key resolver.
+ * <p>
+ * Keys are kept for a fixed time to live. Once three quarters of it have
+ * passed, the next lookup triggers a refresh in the background and keeps
+ * returning the cached key meanwhile. After the time to live, a stale key is
+ * still served for up to the same time while it is being refreshed, or if
+ * refreshing fails; after that it is evicted and lookups block until the key
+ * has been fetched again.
+ * <p>
+ * Concurrent lookups for the same issuer share a single fetch. A failed fetch
+ * is remembered for {@value #FAILURE_TTL} milliseconds, or only
+ * {@value #TEMPORARY_FAILURE_TTL} milliseconds if the failure is temporary,
+ * such as a network error or a server error response: meanwhile, lookups for
+ * that issuer fail at once with the same error, and a stale key is served
+ * without trying to refresh it.
+ * <p>
+ * This class is thread safe.
+ */
+public class IssuerKeyCache implements IssuerKeyResolver {
+
+	/** The default key time to live, in milliseconds. */
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(6);
+
+	/** The time a failed fetch is remembered, in milliseconds. */
+	public static final long FAILURE_TTL = 60000;
+
+	/** The time a temporarily failed fetch is remembered, in milliseconds. */
+	public static final long TEMPORARY_FAILURE_TTL = 5000;
+
+	private final IssuerKeyFetcher fetcher;
+	private final Executor executor;
+	private final Ticker ticker;
+	private final long ttl;
+	private final long refreshAfter;
+
+	private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+	private final ConcurrentMap<String, FutureTask<PublicKey>> fetches = Maps.newConcurrentMap();
+	private final ConcurrentMap<String, Failure> failures = Maps.newConcurrentMap();
+
+	/**
+	 * Creates a cache with the default time to live.
+	 * 
+	 * @param fetcher
+	 *            the source of issuer keys
+	 */
+	public IssuerKeyCache(IssuerKeyFetcher fetcher) {
+		this(fetcher, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a cache refreshing keys on a pool of daemon threads.
+	 * 
+	 * @param fetcher
+	 *            the source of issuer keys
+	 * @param ttl
+	 *            the key time to live
+	 * @param unit
+	 *            the time unit of {@code ttl}
+	 */
+	public IssuerKeyCache(IssuerKeyFetcher fetcher, long ttl, TimeUnit unit) {
+		this(fetcher, ttl, unit, Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("persona-key-refresh-%d").build()));
+	}
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param fetcher
+	 *            the source of issuer keys
+	 * @param ttl
+	 *            the key time to live
+	 * @param unit
+	 *            the time unit of {@code ttl}
+	 * @param executor
+	 *            the executor background refreshes run on
+	 */
+	public IssuerKeyCache(IssuerKeyFetcher fetcher, long ttl, TimeUnit unit, Executor executor) {
+		this(fetcher, ttl, unit, executor, Ticker.systemTicker());
+	}
+
+	IssuerKeyCache(IssuerKeyFetcher fetcher, long ttl, TimeUnit unit, Executor executor, Ticker ticker) {
+		checkArgument(ttl > 0);
+		this.fetcher = checkNotNull(fetcher);
+		this.executor = checkNotNull(executor);
+		this.ticker = checkNotNull(ticker);
+		this.ttl = unit.toNanos(ttl);
+		this.refreshAfter = this.ttl / 4 * 3;
+	}
+
+	@Override
+	public PublicKey resolve(String issuer) throws VerificationException {
+		checkNotNull(issuer);
+
+		final long now = ticker.read();
+		final Entry entry = entries.get(issuer);
+		if (entry != null) {
+			final long age = now - entry.fetched;
+			if (age < refreshAfter)
+				return entry.key;
+
+			if (age < 2 * ttl) {
+				if (getFailure(issuer, now) == null)
+					refresh(issuer);
+				return entry.key;
+			}
+
+			entries.remove(issuer, entry);
+		}
+
+		final Failure failure = getFailure(issuer, now);
+		if (failure != null)
+			throw new VerificationException(failure.error.getMessage(), failure.error, failure.error.isTemporary());
+
+		return load(issuer);
+	}
+
+	/**
+	 * Removes all keys past their maximum stale time.
+	 * <p>
+	 * Stale keys are evicted when looked up, call this method periodically to
+	 * also evict keys for issuers that are no longer used.
+	 */
+	public void cleanUp() {
+		final long now = ticker.read();
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (now - it.next().fetched >= 2 * ttl)
+				it.remove();
+		}
+		for (Iterator<Failure> it = failures.values().iterator(); it.hasNext();) {
+			if (now - it.next().expires >= 0)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Removes the key of an issuer, so it is fetched again on the next lookup.
+	 * 
+	 * @param issuer
+	 *            the issuer domain
+	 */
+	public void invalidate(String issuer) {
+		entries.remove(issuer);
+		failures.remove(issuer);
+	}
+
+	/**
+	 * Returns the last failed fetch for an issuer, if it is recent.
+	 */
+	private Failure getFailure(String issuer, long now) {
+		final Failure failure = failures.get(issuer);
+		if (failure == null)
+			return null;
+		if (now - failure.expires < 0)
+			return failure;
+
+		failures.remove(issuer, failure);
+		return null;
+	}
+
+	/**
+	 * Fetches a key and waits for it, sharing any fetch already in progress.
+	 */
+	private PublicKey load(String issuer) throws VerificationException {
+		final FutureTask<PublicKey> task = newFetch(issuer);
+		FutureTask<PublicKey> fetch = fetches.putIfAbsent(issuer, task);
+		if (fetch == null) {
+			fetch = task;
+			task.run();
+		}
+
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new VerificationException("Interrupted while fetching key for " + issuer, e, true);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof VerificationException)
+				throw (VerificationException) e.getCause();
+			throw new VerificationException("Cannot fetch key for " + issuer, e.getCause(), true);
+		}
+	}
+
+	/**
+	 * Starts a background fetch, unless one is already in progress.
+	 */
+	private void refresh(String issuer) {
+		final FutureTask<PublicKey> task = newFetch(issuer);
+		if (fetches.putIfAbsent(issuer, task) != null)
+			return;
+
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Keep serving the cached key, and try again on the next lookup
+			fetches.remove(issuer, task);
+		}
+	}
+
+	private FutureTask<PublicKey> newFetch(final String issuer) {
+		return new FutureTask<PublicKey>(new Callable<PublicKey>() {
+			@Override
+			public PublicKey call() throws VerificationException {
+				try {
+					final PublicKey key = fetcher.fetch(issuer);
+					entries.put(issuer, new Entry(key, ticker.read()));
+					failures.remove(issuer);
+					return key;
+				} catch (VerificationException e) {
+					failures.put(issuer, new Failure(e, ticker.read()));
+					throw e;
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				// Leave any newer fetch for the same issuer in place
+				fetches.remove(issuer, this);
+			}
+		};
+	}
+
+	private static final class Failure {
+		final VerificationException error;
+		final long expires;
+
+		Failure(VerificationException error, long failed) {
+			this.error = error;
+			this.expires = failed + TimeUnit.MILLISECONDS.toNanos(error.isTemporary() ? TEMPORARY_FAILURE_TTL : FAILURE_TTL);
+		}
+	}
+
+	private static final class Entry {
+		final PublicKey key;
+		final long fetched;
+
+		Entry(PublicKey key, long fetched) {
+			this.key = checkNotNull(key);
+			this.fetched = fetched;
+		}
+	}
+
+}
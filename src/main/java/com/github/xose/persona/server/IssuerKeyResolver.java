@@ -0,0 +1,40 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.security.PublicKey;
+
+/**
+ * Resolves the public key of a certificate issuer.
+ * <p>
+ * Issuers publish their key in their {@code /.well-known/browserid} support
+ * document.
+ */
+public interface IssuerKeyResolver {
+
+	/**
+	 * Returns the public key of the given issuer.
+	 * 
+	 * @param issuer
+	 *            the issuer domain
+	 * @return the issuer public key
+	 * @throws VerificationException
+	 *             if the key cannot be resolved
+	 */
+	PublicKey resolve(String issuer) throws VerificationException;
+
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for support documents and requests, and string quoting
+ * for responses.
+ * <p>
+ * Assertions are decoded with the faster {@link AssertionDecoder}.
+ * <p>
+ * Objects are parsed to {@link Map}, arrays to {@link List}, and numbers to
+ * {@link Long} or {@link Double}. Objects and arrays may be nested up to
+ * {@value #MAX_DEPTH} levels, so that hostile input cannot overflow the
+ * stack.
+ */
+final class Json {
+
+	/** The maximum nesting depth of objects and arrays. */
+	static final int MAX_DEPTH = 32;
+
+	private final String text;
+	private int pos;
+	private int depth;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON object.
+	 * 
+	 * @throws VerificationException
+	 *             if the text is not a valid JSON object
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> parseObject(String text) throws VerificationException {
+		final Json json = new Json(text);
+		json.skipWhitespace();
+		if (json.peek() != '{')
+			throw new VerificationException("Invalid JSON object");
+
+		final Object value = json.parseValue();
+		json.skipWhitespace();
+		if (json.pos != text.length())
+			throw new VerificationException("Invalid JSON object");
+
+		return (Map<String, Object>) value;
+	}
+
+	/**
+	 * Quotes a string as a JSON string literal.
+	 */
+	static String quote(String s) {
+		final StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	static String getString(Map<String, Object> map, String key) throws VerificationException {
+		final Object value = map.get(key);
+		if (!(value instanceof String))
+			throw new VerificationException("Missing " + key);
+		return (String) value;
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> getObject(Map<String, Object> map, String key) throws VerificationException {
+		final Object value = map.get(key);
+		if (!(value instanceof Map))
+			throw new VerificationException("Missing " + key);
+		return (Map<String, Object>) value;
+	}
+
+	private Object parseValue() throws VerificationException {
+		skipWhitespace();
+		final char c = peek();
+		switch (c) {
+		case '{':
+			return parseMap();
+		case '[':
+			return parseList();
+		case '"':
+			return parseString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+				return parseNumber();
+			throw error();
+		}
+	}
+
+	private Map<String, Object> parseMap() throws VerificationException {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		enter();
+		skipWhitespace();
+		if (peek() == '}') {
+			leave();
+			return map;
+		}
+
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error();
+			final String key = parseString();
+			skipWhitespace();
+			expect(":");
+			map.put(key, parseValue());
+			skipWhitespace();
+			final char c = next();
+			if (c == '}') {
+				depth--;
+				return map;
+			}
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private List<Object> parseList() throws VerificationException {
+		final List<Object> list = new ArrayList<Object>();
+		enter();
+		skipWhitespace();
+		if (peek() == ']') {
+			leave();
+			return list;
+		}
+
+		while (true) {
+			list.add(parseValue());
+			skipWhitespace();
+			final char c = next();
+			if (c == ']') {
+				depth--;
+				return list;
+			}
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private String parseString() throws VerificationException {
+		pos++;
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			final char c = next();
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+
+			final char e = next();
+			switch (e) {
+			case '"':
+			case '\\':
+			case '/':
+				sb.append(e);
+				break;
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > text.length())
+					throw error();
+				try {
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException ex) {
+					throw error();
+				}
+				pos += 4;
+				break;
+			default:
+				throw error();
+			}
+		}
+	}
+
+	private Number parseNumber() throws VerificationException {
+		final int start = pos;
+		boolean integral = true;
+		while (pos < text.length()) {
+			final char c = text.charAt(pos);
+			if (c == '.' || c == 'e' || c == 'E')
+				integral = false;
+			else if (c != '-' && c != '+' && (c < '0' || c > '9'))
+				break;
+			pos++;
+		}
+
+		final String number = text.substring(start, pos);
+		try {
+			return integral ? (Number) Long.valueOf(number) : (Number) Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw error();
+		}
+	}
+
+	/**
+	 * Consumes the opening bracket of an object or array.
+	 */
+	private void enter() throws VerificationException {
+		if (++depth > MAX_DEPTH)
+			throw new VerificationException("JSON nested too deeply at position " + pos);
+		pos++;
+	}
+
+	/**
+	 * Consumes the closing bracket of an object or array.
+	 */
+	private void leave() {
+		depth--;
+		pos++;
+	}
+
+	private void expect(String token) throws VerificationException {
+		if (!text.startsWith(token, pos))
+			throw error();
+		pos += token.length();
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	private char peek() throws VerificationException {
+		if (pos >= text.length())
+			throw error();
+		return text.charAt(pos);
+	}
+
+	private char next() throws VerificationException {
+		final char c = peek();
+		pos++;
+		return c;
+	}
+
+	private VerificationException error() {
+		return new VerificationException("Invalid JSON at position " + pos);
+	}
+
+}
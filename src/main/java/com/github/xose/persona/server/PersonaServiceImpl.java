@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import com.github.xose.persona.client.AuthErrorCode;
+import com.github.xose.persona.client.PersonaBackendException;
+import com.github.xose.persona.client.PersonaService;
+import com.github.xose.persona.client.PersonaSession;
+import com.google.common.collect.ImmutableSet;
+import com.google.gwt.user.server.rpc.RemoteServiceServlet;
+
+/**
+ * Server implementation of {@link PersonaService}, for
+ * {@link com.github.xose.persona.client.RpcPersonaBackend}.
+ * <p>
+ * Map the servlet to {@value PersonaService#PATH} under the module base URL,
+ * for example {@code /app/persona-rpc}. Assertions are verified with a
+ * {@link Verifier} on the container thread handling the call.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>{@code audience}: the site origin assertions must be issued for, for
+ * example {@code https://example.com}. Required, it is never taken from the
+ * request, whose host name the client controls.
+ * </ul>
+ * On a successful login, the user email is stored in the
+ * {@value PersonaServlet#USER_ATTRIBUTE} session attribute, as done by
+ * {@link PersonaServlet}. Override
+ * {@link #onLogin(HttpServletRequest, VerifiedAssertion)},
+ * {@link #onLogout(HttpServletRequest)} and
+ * {@link #getLoggedInUser(HttpServletRequest)} to set up sessions
+ * differently.
+ */
+public class PersonaServiceImpl extends RemoteServiceServlet implements PersonaService {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient Verifier verifier;
+	private String audience;
+
+	@Override
+	public void init() throws ServletException {
+		audience = getInitParameter("audience");
+		if (audience == null)
+			throw new ServletException("Missing audience parameter");
+		verifier = createVerifier();
+	}
+
+	/**
+	 * Creates the assertion verifier.
+	 * <p>
+	 * By default, issuer keys are fetched over HTTPS and cached, and
+	 * assertions can only be used once.
+	 * 
+	 * @return the verifier
+	 * @throws ServletException
+	 *             if the verifier cannot be created
+	 */
+	protected Verifier createVerifier() throws ServletException {
+		return new Verifier(new IssuerKeyCache(new HttpIssuerKeyFetcher()), ImmutableSet.of(Verifier.DEFAULT_FALLBACK_ISSUER), new ReplayCache(
+				PersonaServlet.DEFAULT_REPLAY_CACHE_SIZE));
+	}
+
+	/**
+	 * Called when a user has logged in.
+	 * <p>
+	 * By default, any existing session is invalidated and a new one is
+	 * created, as done by {@link PersonaServlet}.
+	 * 
+	 * @param request
+	 *            the login request
+	 * @param assertion
+	 *            the verified assertion
+	 */
+	protected void onLogin(HttpServletRequest request, VerifiedAssertion assertion) {
+		final HttpSession session = request.getSession(false);
+		if (session != null)
+			session.invalidate();
+		request.getSession(true).setAttribute(PersonaServlet.USER_ATTRIBUTE, assertion.getEmail());
+	}
+
+	/**
+	 * Returns the user a refresh request is made for.
+	 * <p>
+	 * By default, the {@value PersonaServlet#USER_ATTRIBUTE} session attribute
+	 * is used.
+	 * 
+	 * @param request
+	 *            the refresh request
+	 * @return the logged in user, or null if none
+	 */
+	@Nullable
+	protected String getLoggedInUser(HttpServletRequest request) {
+		final HttpSession session = request.getSession(false);
+		final Object user = session != null ? session.getAttribute(PersonaServlet.USER_ATTRIBUTE) : null;
+		return user instanceof String ? (String) user : null;
+	}
+
+	/**
+	 * Called when a user logs out.
+	 * 
+	 * @param request
+	 *            the logout request
+	 */
+	protected void onLogout(HttpServletRequest request) {
+		final HttpSession session = request.getSession(false);
+		if (session != null)
+			session.invalidate();
+	}
+
+	@Override
+	public PersonaSession login(String assertion) throws PersonaBackendException {
+		if (assertion == null)
+			throw new PersonaBackendException(AuthErrorCode.REJECTED, "Missing assertion");
+
+		final HttpServletRequest req = getThreadLocalRequest();
+		final VerifiedAssertion verified;
+		try {
+			verified = verifier.verify(assertion, audience);
+		} catch (VerificationException e) {
+			throw new PersonaBackendException(e.isTemporary() ? AuthErrorCode.SERVER : AuthErrorCode.REJECTED, e.getMessage());
+		}
+
+		onLogin(req, verified);
+		return newSession(req, verified.getEmail());
+	}
+
+	@Override
+	public PersonaSession refresh() throws PersonaBackendException {
+		final HttpServletRequest req = getThreadLocalRequest();
+		final String user = getLoggedInUser(req);
+		if (user == null)
+			throw new PersonaBackendException(AuthErrorCode.REJECTED, "Not logged in");
+
+		return newSession(req, user);
+	}
+
+	@Override
+	public void logout() {
+		onLogout(getThreadLocalRequest());
+	}
+
+	/**
+	 * Creates a session expiring with the HTTP session, if it has a timeout.
+	 */
+	private static PersonaSession newSession(HttpServletRequest req, String user) {
+		final HttpSession session = req.getSession(false);
+		final double expires = session != null && session.getMaxInactiveInterval() > 0 ? System.currentTimeMillis()
+				+ session.getMaxInactiveInterval() * 1000L : 0;
+		return new PersonaSession(user, expires);
+	}
+
+}
@@ -0,0 +1,653 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Server endpoint for {@link com.github.xose.persona.client.JsonPersonaBackend}.
+ * <p>
+ * Map the servlet to a path such as {@code /persona/*} with async support
+ * enabled, and point the backend to {@code /persona/login},
+ * {@code /persona/logout} and, to keep sessions alive,
+ * {@code /persona/refresh}. Assertions are verified with a {@link Verifier}
+ * on a dedicated executor, so slow steps such as fetching issuer keys do not
+ * hold container threads.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>{@code audience}: required, the site origin assertions must be issued
+ * for, for example {@code https://example.com}. It is never taken from the
+ * request, whose host name the client controls.
+ * <li>{@code threads}: the number of verification threads, defaults to twice
+ * the number of processors.
+ * <li>{@code virtualThreads}: {@code true} to verify on virtual threads, if
+ * the JVM supports them.
+ * <li>{@code maxPending}: the maximum number of logins queued or being
+ * verified, defaults to 1000. Further logins are rejected with HTTP 503.
+ * <li>{@code timeout}: the maximum time to verify a login, in milliseconds,
+ * defaults to 30000.
+ * <li>{@code maxBatch}: the maximum number of assertions in a batch, defaults
+ * to 0, which disables the batch endpoint.
+ * <li>{@code tokenTtl}: the lifetime of session tokens, in milliseconds,
+ * defaults to one hour.
+ * </ul>
+ * Gateways and test harnesses can verify many assertions at once, without
+ * logging anybody in, by posting {@code {"assertions": [...]}} to
+ * {@code /persona/batch}, once it has been enabled by setting
+ * {@code maxBatch} to a positive number such as 100. The assertions are
+ * verified in parallel, sharing issuer key lookups and certificate checks,
+ * and the response holds a {@code results} array with the status of each
+ * one: {@code okay} with the {@code email}, {@code failure} with the
+ * {@code reason} the assertion was rejected, or {@code error} if it could not
+ * be verified for now. The request body is limited to
+ * {@value #MAX_BATCH_ASSERTION_SIZE} bytes per assertion allowed in a batch.
+ * <p>
+ * The batch endpoint is not authenticated. Valid assertions it verifies are
+ * recorded in the replay cache, so they cannot be used to log in afterwards,
+ * and its issuer key fetches run on the same threads as logins. Before
+ * enabling it, restrict {@code /persona/batch} to trusted callers, for
+ * example with a security constraint or a filter.
+ * <p>
+ * Logins that cannot be verified because of a temporary failure, such as an
+ * unreachable issuer or a full replay cache, are answered with HTTP 503
+ * rather than rejected.
+ * <p>
+ * On a successful login, the user email is stored in the
+ * {@value #USER_ATTRIBUTE} session attribute. Override
+ * {@link #onLogin(HttpServletRequest, VerifiedAssertion)} and
+ * {@link #onLogout(HttpServletRequest)} to set up sessions differently, and
+ * {@link #getLoginPayload(HttpServletRequest, VerifiedAssertion)} to send
+ * application data along with the login reply.
+ * <p>
+ * If {@link #createSessionTokens()} is overridden, the login response also
+ * holds a signed {@code token} and its {@code expires} time, so that other
+ * servers can authenticate the user with {@link SessionTokens} and no
+ * session store. Otherwise, {@code expires} is taken from the session
+ * timeout.
+ * <p>
+ * A refresh request extends the session of the user returned by
+ * {@link #getLoggedInUser(HttpServletRequest)}, and is answered like a login,
+ * with a new token if tokens are issued.
+ */
+public class PersonaServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The session attribute holding the logged in user. */
+	public static final String USER_ATTRIBUTE = "persona.user";
+
+	private static final int DEFAULT_MAX_PENDING = 1000;
+	private static final int DEFAULT_MAX_BATCH = 0;
+	private static final int MAX_BATCH_ASSERTION_SIZE = 16384;
+	private static final long DEFAULT_TIMEOUT = 30000;
+	static final int DEFAULT_REPLAY_CACHE_SIZE = 100000;
+	private static final long DEFAULT_TOKEN_TTL = 3600000;
+	private static final String BEARER = "Bearer ";
+
+	private transient Verifier verifier;
+	private transient ExecutorService executor;
+	private transient Semaphore pending;
+	private transient SessionTokens sessionTokens;
+	private String audience;
+	private long timeout;
+	private long tokenTtl;
+	private int maxBatch;
+
+	@Override
+	public void init() throws ServletException {
+		audience = getInitParameter("audience");
+		if (audience == null)
+			throw new ServletException("Missing audience parameter");
+		timeout = getLongParameter("timeout", DEFAULT_TIMEOUT);
+		pending = new Semaphore((int) getLongParameter("maxPending", DEFAULT_MAX_PENDING));
+		maxBatch = (int) getLongParameter("maxBatch", DEFAULT_MAX_BATCH);
+		tokenTtl = getLongParameter("tokenTtl", DEFAULT_TOKEN_TTL);
+		verifier = createVerifier();
+		sessionTokens = createSessionTokens();
+		executor = createExecutor();
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates the assertion verifier.
+	 * <p>
+	 * By default, issuer keys are fetched over HTTPS and cached, and
+	 * assertions can only be used once.
+	 * 
+	 * @return the verifier
+	 * @throws ServletException
+	 *             if the verifier cannot be created
+	 */
+	protected Verifier createVerifier() throws ServletException {
+		return new Verifier(new IssuerKeyCache(new HttpIssuerKeyFetcher()), ImmutableSet.of(Verifier.DEFAULT_FALLBACK_ISSUER), new ReplayCache(
+				DEFAULT_REPLAY_CACHE_SIZE));
+	}
+
+	/**
+	 * Creates the executor assertions are verified on.
+	 * <p>
+	 * The number of queued tasks is limited by the {@code maxPending} init
+	 * parameter, so the executor does not need a bounded queue.
+	 * 
+	 * @return the executor
+	 * @throws ServletException
+	 *             if the executor cannot be created
+	 */
+	protected ExecutorService createExecutor() throws ServletException {
+		if (Boolean.parseBoolean(getInitParameter("virtualThreads"))) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				log("Virtual threads not available, using a thread pool");
+			}
+		}
+
+		final int threads = (int) getLongParameter("threads", 2 * Runtime.getRuntime().availableProcessors());
+		return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("persona-verifier-%d").build());
+	}
+
+	/**
+	 * Creates the signer of the session tokens returned on login.
+	 * <p>
+	 * Returns null by default, so no tokens are issued.
+	 * 
+	 * @return the session tokens, or null to not issue tokens
+	 * @throws ServletException
+	 *             if the session tokens cannot be created
+	 */
+	@Nullable
+	protected SessionTokens createSessionTokens() throws ServletException {
+		return null;
+	}
+
+	/**
+	 * Called when a user has logged in.
+	 * <p>
+	 * Called from a verification thread, before the response is sent. Not
+	 * called if the login has already been answered as timed out.
+	 * <p>
+	 * By default, any existing session is invalidated and a new one is
+	 * created, so that a session id set before the login cannot be used to
+	 * take over the logged in session.
+	 * 
+	 * @param request
+	 *            the login request
+	 * @param assertion
+	 *            the verified assertion
+	 */
+	protected void onLogin(HttpServletRequest request, VerifiedAssertion assertion) {
+		final HttpSession session = request.getSession(false);
+		if (session != null)
+			session.invalidate();
+		request.getSession(true).setAttribute(USER_ATTRIBUTE, assertion.getEmail());
+	}
+
+	/**
+	 * Returns application data to send along with a successful login, such as
+	 * the user profile, saving the client a request.
+	 * <p>
+	 * Called from a verification thread, after
+	 * {@link #onLogin(HttpServletRequest, VerifiedAssertion)}. Returns null by
+	 * default.
+	 * 
+	 * @param request
+	 *            the login request
+	 * @param assertion
+	 *            the verified assertion
+	 * @return the payload as a JSON value, or null to send none
+	 */
+	@Nullable
+	protected String getLoginPayload(HttpServletRequest request, VerifiedAssertion assertion) {
+		return null;
+	}
+
+	/**
+	 * Returns the user a refresh request is made for.
+	 * <p>
+	 * By default, a valid session token sent as an
+	 * {@code Authorization: Bearer} header is used if tokens are issued, and
+	 * the {@value #USER_ATTRIBUTE} session attribute otherwise.
+	 * 
+	 * @param request
+	 *            the refresh request
+	 * @return the logged in user, or null if none
+	 */
+	@Nullable
+	protected String getLoggedInUser(HttpServletRequest request) {
+		if (sessionTokens != null) {
+			final String authorization = request.getHeader("Authorization");
+			if (authorization != null && authorization.startsWith(BEARER))
+				return sessionTokens.getEmail(authorization.substring(BEARER.length()), System.currentTimeMillis());
+		}
+
+		final HttpSession session = request.getSession(false);
+		final Object user = session != null ? session.getAttribute(USER_ATTRIBUTE) : null;
+		return user instanceof String ? (String) user : null;
+	}
+
+	/**
+	 * Called when a user logs out.
+	 * 
+	 * @param request
+	 *            the logout request
+	 */
+	protected void onLogout(HttpServletRequest request) {
+		final HttpSession session = request.getSession(false);
+		if (session != null)
+			session.invalidate();
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final String path = req.getPathInfo();
+		if ("/logout".equals(path)) {
+			onLogout(req);
+			writeOkay(resp);
+		} else if ("/login".equals(path)) {
+			login(req, resp);
+		} else if ("/refresh".equals(path)) {
+			refresh(req, resp);
+		} else if ("/batch".equals(path)) {
+			batch(req, resp);
+		} else {
+			writeFailure(resp, HttpServletResponse.SC_NOT_FOUND, "Not found");
+		}
+	}
+
+	private void login(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		final String assertion = req.getParameter("assertion");
+		if (assertion == null) {
+			writeFailure(resp, HttpServletResponse.SC_BAD_REQUEST, "Missing assertion");
+			return;
+		}
+
+		if (!pending.tryAcquire()) {
+			writeBusy(resp);
+			return;
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AsyncContext async;
+		try {
+			async = startAsync(req, resp, done);
+		} catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+
+		final boolean submitted = execute(new Runnable() {
+			@Override
+			public void run() {
+				// Whether this task answers the request, rather than the timeout
+				boolean answering = false;
+				try {
+					if (done.get())
+						return;
+
+					final VerifiedAssertion verified;
+					try {
+						verified = verifier.verify(assertion, audience);
+					} catch (VerificationException e) {
+						answering = done.compareAndSet(false, true);
+						if (answering) {
+							if (e.isTemporary())
+								writeFailure(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+							else
+								writeFailure(resp, HttpServletResponse.SC_OK, e.getMessage());
+							async.complete();
+						}
+						return;
+					}
+
+					// Claim the response before logging in, so that a login
+					// the client has already been told timed out has no effect
+					answering = done.compareAndSet(false, true);
+					if (!answering)
+						return;
+
+					onLogin(req, verified);
+					writeLogin(req, resp, verified.getEmail(), getLoginPayload(req, verified));
+					async.complete();
+				} catch (Exception e) {
+					log("Login failed", e);
+					if (answering || done.compareAndSet(false, true))
+						writeError(resp, async);
+				} finally {
+					pending.release();
+				}
+			}
+		});
+
+		if (!submitted) {
+			pending.release();
+			if (done.compareAndSet(false, true))
+				writeBusy(resp, async);
+		}
+	}
+
+	private void refresh(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		final String user = getLoggedInUser(req);
+		if (user == null)
+			writeFailure(resp, HttpServletResponse.SC_OK, "Not logged in");
+		else
+			writeLogin(req, resp, user, null);
+	}
+
+	/**
+	 * Verifies a batch of assertions without logging anybody in.
+	 * <p>
+	 * The request body is a JSON object with an {@code assertions} array. The
+	 * response has a {@code results} array with a status object for each
+	 * assertion, in the same order.
+	 */
+	private void batch(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		if (maxBatch <= 0) {
+			writeFailure(resp, HttpServletResponse.SC_NOT_FOUND, "Not found");
+			return;
+		}
+
+		final String body = readBody(req, (int) Math.min((long) maxBatch * MAX_BATCH_ASSERTION_SIZE, Integer.MAX_VALUE));
+		if (body == null) {
+			writeFailure(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request too large");
+			return;
+		}
+
+		final List<String> assertions;
+		try {
+			assertions = parseAssertions(body);
+		} catch (VerificationException e) {
+			writeFailure(resp, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		if (assertions.size() > maxBatch) {
+			writeFailure(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Too many assertions");
+			return;
+		}
+
+		if (!pending.tryAcquire(assertions.size())) {
+			writeBusy(resp);
+			return;
+		}
+
+		final Verifier.Batch batch = verifier.newBatch();
+		final VerificationResult[] results = new VerificationResult[assertions.size()];
+		final AtomicInteger remaining = new AtomicInteger(results.length + 1);
+		final AtomicBoolean done = new AtomicBoolean();
+		final AsyncContext async;
+		try {
+			async = startAsync(req, resp, done);
+		} catch (RuntimeException e) {
+			pending.release(results.length);
+			throw e;
+		}
+
+		final Runnable complete = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() != 0 || !done.compareAndSet(false, true))
+					return;
+
+				try {
+					writeResults(resp, results);
+				} catch (IOException e) {
+					log("Batch verification failed", e);
+				} finally {
+					async.complete();
+				}
+			}
+		};
+
+		for (int i = 0; i < results.length; i++) {
+			final int index = i;
+			final boolean submitted = execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!done.get())
+							results[index] = batch.verifyQuietly(assertions.get(index), audience);
+					} finally {
+						pending.release();
+						complete.run();
+					}
+				}
+			});
+
+			if (!submitted) {
+				// Tasks already submitted see the request done and skip
+				pending.release(results.length - i);
+				if (done.compareAndSet(false, true))
+					writeBusy(resp, async);
+				return;
+			}
+		}
+
+		complete.run();
+	}
+
+	/**
+	 * Starts async processing, answering with HTTP 503 on timeout.
+	 */
+	private AsyncContext startAsync(HttpServletRequest req, final HttpServletResponse resp, final AtomicBoolean done) {
+		final AsyncContext async = req.startAsync();
+		async.setTimeout(timeout);
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					writeFailure(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Verification timed out");
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				done.set(true);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+		});
+		return async;
+	}
+
+	/**
+	 * Runs a task on the executor.
+	 * 
+	 * @return false if the executor rejected the task, as it is shutting down
+	 */
+	private boolean execute(Runnable task) {
+		try {
+			executor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a request body, returning null if it is longer than the limit.
+	 */
+	@Nullable
+	private static String readBody(HttpServletRequest req, int limit) throws IOException {
+		if (req.getContentLength() > limit)
+			return null;
+
+		final Reader reader = req.getReader();
+		final StringBuilder body = new StringBuilder();
+		final char[] buffer = new char[4096];
+		int n;
+		while ((n = reader.read(buffer)) >= 0) {
+			if (body.length() + n > limit)
+				return null;
+			body.append(buffer, 0, n);
+		}
+		return body.toString();
+	}
+
+	private static List<String> parseAssertions(String body) throws VerificationException {
+		final Object assertions = Json.parseObject(body).get("assertions");
+		if (!(assertions instanceof List))
+			throw new VerificationException("Missing assertions");
+
+		final List<String> result = Lists.newArrayList();
+		for (Object assertion : (List<?>) assertions) {
+			if (!(assertion instanceof String))
+				throw new VerificationException("Invalid assertion");
+			result.add((String) assertion);
+		}
+		return result;
+	}
+
+	private static void writeResults(HttpServletResponse resp, VerificationResult[] results) throws IOException {
+		final StringBuilder json = new StringBuilder("{\"status\":\"okay\",\"results\":[");
+		for (int i = 0; i < results.length; i++) {
+			if (i > 0)
+				json.append(',');
+
+			final VerificationResult result = results[i];
+			if (result != null && result.isValid())
+				json.append("{\"status\":\"okay\",\"email\":").append(Json.quote(result.getAssertion().getEmail())).append('}');
+			else if (result != null && !result.isTemporary())
+				json.append("{\"status\":\"failure\",\"reason\":").append(Json.quote(result.getReason())).append('}');
+			else
+				json.append("{\"status\":\"error\",\"reason\":").append(Json.quote(result != null ? result.getReason() : "Not verified")).append('}');
+		}
+		write(resp, HttpServletResponse.SC_OK, json.append("]}").toString());
+	}
+
+	private void writeLogin(HttpServletRequest req, HttpServletResponse resp, String email, String payload) throws IOException {
+		final StringBuilder json = new StringBuilder("{\"status\":\"okay\",\"email\":").append(Json.quote(email));
+		final long now = System.currentTimeMillis();
+		if (sessionTokens != null) {
+			final long expires = now + tokenTtl;
+			json.append(",\"token\":").append(Json.quote(sessionTokens.issue(email, expires))).append(",\"expires\":").append(expires);
+		} else {
+			final HttpSession session = req.getSession(false);
+			if (session != null && session.getMaxInactiveInterval() > 0)
+				json.append(",\"expires\":").append(now + session.getMaxInactiveInterval() * 1000L);
+		}
+		if (payload != null)
+			json.append(",\"payload\":").append(payload);
+		write(resp, HttpServletResponse.SC_OK, json.append('}').toString());
+	}
+
+	private static void writeOkay(HttpServletResponse resp) throws IOException {
+		write(resp, HttpServletResponse.SC_OK, "{\"status\":\"okay\"}");
+	}
+
+	private static void writeFailure(HttpServletResponse resp, int status, String reason) throws IOException {
+		write(resp, status, "{\"status\":\"failure\",\"reason\":" + Json.quote(String.valueOf(reason)) + "}");
+	}
+
+	/**
+	 * Answers with HTTP 500 if nothing has been sent yet, and completes the
+	 * request.
+	 */
+	private void writeError(HttpServletResponse resp, AsyncContext async) {
+		try {
+			if (!resp.isCommitted()) {
+				resp.reset();
+				writeFailure(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error");
+			}
+		} catch (Exception e) {
+			log("Cannot send error response", e);
+		} finally {
+			async.complete();
+		}
+	}
+
+	private static void writeBusy(HttpServletResponse resp) throws IOException {
+		resp.setHeader("Retry-After", "1");
+		writeFailure(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy");
+	}
+
+	/**
+	 * Answers an async request with HTTP 503, and completes it.
+	 */
+	private void writeBusy(HttpServletResponse resp, AsyncContext async) {
+		try {
+			writeBusy(resp);
+		} catch (IOException e) {
+			log("Cannot send busy response", e);
+		} finally {
+			async.complete();
+		}
+	}
+
+	private static void write(HttpServletResponse resp, int status, String json) throws IOException {
+		resp.setStatus(status);
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-store");
+		final PrintWriter writer = resp.getWriter();
+		writer.write(json);
+		writer.flush();
+	}
+
+	private long getLongParameter(String name, long defaultValue) throws ServletException {
+		final String value = getInitParameter(name);
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + name + " parameter: " + value, e);
+		}
+	}
+
+}
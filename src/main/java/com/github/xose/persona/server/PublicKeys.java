@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Map;
+
+import com.github.xose.persona.server.AssertionDecoder.Token;
+
+/**
+ * BrowserID public keys and signatures.
+ * <p>
+ * Keys are serialized as JSON objects: RSA keys ({@code "algorithm": "RS"})
+ * with the decimal {@code n} and {@code e} values, and DSA keys (
+ * {@code "algorithm": "DS"}) with the hexadecimal {@code y}, {@code p},
+ * {@code q} and {@code g} values. DSA signatures are the concatenation of the
+ * fixed size {@code r} and {@code s} values.
+ */
+final class PublicKeys {
+
+	private PublicKeys() {
+	}
+
+	/**
+	 * Parses a serialized public key.
+	 * 
+	 * @throws VerificationException
+	 *             if the key is invalid or uses an unknown algorithm
+	 */
+	static PublicKey parse(Map<String, Object> key) throws VerificationException {
+		final String algorithm = Json.getString(key, "algorithm");
+		if ("RS".equals(algorithm))
+			return parse(algorithm, Json.getString(key, "n"), Json.getString(key, "e"), null, null, null, null);
+		else if ("DS".equals(algorithm))
+			return parse(algorithm, null, null, Json.getString(key, "y"), Json.getString(key, "p"), Json.getString(key, "q"), Json.getString(key, "g"));
+		throw new VerificationException("Unsupported key algorithm: " + algorithm);
+	}
+
+	/**
+	 * Parses the public key certified by a certificate.
+	 * 
+	 * @throws VerificationException
+	 *             if the key is missing, invalid or uses an unknown algorithm
+	 */
+	static PublicKey parse(Token cert) throws VerificationException {
+		if (cert.keyAlgorithm == null)
+			throw new VerificationException("Missing public-key");
+		return parse(cert.keyAlgorithm, cert.n, cert.e, cert.y, cert.p, cert.q, cert.g);
+	}
+
+	private static PublicKey parse(String algorithm, String n, String e, String y, String p, String q, String g) throws VerificationException {
+		try {
+			if ("RS".equals(algorithm) && n != null && e != null) {
+				return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(new BigInteger(n), new BigInteger(e)));
+			} else if ("DS".equals(algorithm) && y != null && p != null && q != null && g != null) {
+				return KeyFactory.getInstance("DSA").generatePublic(
+						new DSAPublicKeySpec(new BigInteger(y, 16), new BigInteger(p, 16), new BigInteger(q, 16), new BigInteger(g, 16)));
+			}
+		} catch (NumberFormatException ex) {
+			throw new VerificationException("Invalid public key", ex);
+		} catch (GeneralSecurityException ex) {
+			throw new VerificationException("Invalid public key", ex);
+		}
+
+		throw new VerificationException("Invalid public key");
+	}
+
+	/**
+	 * Verifies the signature of a token.
+	 * 
+	 * @throws VerificationException
+	 *             if the signature is invalid or does not match the key
+	 */
+	static void verify(Token token, PublicKey key, AssertionDecoder decoder) throws VerificationException {
+		if (token.alg == null)
+			throw new VerificationException("Missing alg");
+
+		final boolean valid;
+		try {
+			final Signature signature = decoder.signature(getSignatureAlgorithm(token.alg, key));
+			signature.initVerify(key);
+			signature.update(token.signingInput, 0, token.signingInputLength);
+			if (token.alg.startsWith("DS"))
+				valid = signature.verify(decoder.der(), 0, decoder.toDer(token));
+			else
+				valid = signature.verify(token.signature, 0, token.signatureLength);
+		} catch (GeneralSecurityException e) {
+			throw new VerificationException("Invalid signature", e);
+		}
+
+		if (!valid)
+			throw new VerificationException("Invalid signature");
+	}
+
+	static String getSignatureAlgorithm(String algorithm, PublicKey key) throws VerificationException {
+		if (("RS256".equals(algorithm) || "RS128".equals(algorithm) || "RS64".equals(algorithm)) && "RSA".equals(key.getAlgorithm()))
+			return "SHA256withRSA";
+		if ("DS128".equals(algorithm) && "DSA".equals(key.getAlgorithm()))
+			return "SHA1withDSA";
+		if ("DS256".equals(algorithm) && "DSA".equals(key.getAlgorithm()))
+			return "SHA256withDSA";
+
+		throw new VerificationException("Unsupported signature algorithm: " + algorithm);
+	}
+
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Bounded cache of seen assertions, to reject replayed assertions.
+ * <p>
+ * Assertions are stored as a 128 bit digest and their expiry time, in
+ * striped open addressing tables of primitive arrays. All memory is
+ * allocated up front: 24 bytes per slot, with at most three quarters of the
+ * slots in use, that is at most 32 bytes per entry plus array headers.
+ * <p>
+ * Expired entries are purged when a stripe fills up. If a stripe is still
+ * full after that, new assertions are rejected rather than forgetting
+ * unexpired ones, so a full cache never lets a replay through.
+ * <p>
+ * This class is thread safe.
+ */
+public final class ReplayCache {
+
+	/** Result of {@link ReplayCache#add(String, long, long)}. */
+	public static enum Result {
+		/** The assertion had not been seen before, and has been added. */
+		ADDED,
+		/** The assertion has already been seen. */
+		REPLAYED,
+		/** The cache is full, the assertion could not be added. */
+		FULL;
+	}
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[4096];
+		}
+	};
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	/**
+	 * Creates a cache with 16 stripes.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of assertions kept
+	 */
+	public ReplayCache(int maxEntries) {
+		this(maxEntries, 16);
+	}
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of assertions kept
+	 * @param concurrencyLevel
+	 *            the expected number of concurrently adding threads, rounded
+	 *            up to a power of two stripes
+	 */
+	public ReplayCache(int maxEntries, int concurrencyLevel) {
+		checkArgument(maxEntries > 0);
+		checkArgument(concurrencyLevel > 0);
+
+		final int count = Math.min(concurrencyLevel == 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1, Integer.highestOneBit(maxEntries));
+		final int perStripe = (maxEntries + count - 1) / count;
+
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(perStripe);
+		}
+		stripeMask = count - 1;
+	}
+
+	/**
+	 * Records an assertion as seen.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @param expires
+	 *            the assertion expiry time, in milliseconds since the epoch
+	 * @param now
+	 *            the current time, in milliseconds since the epoch
+	 * @return whether the assertion was added, had already been seen, or the
+	 *         cache is full
+	 */
+	public Result add(String assertion, long expires, long now) {
+		final MessageDigest digest = digests.get();
+		final int length = assertion.length();
+		byte[] buffer = buffers.get();
+		if (buffer.length < length) {
+			buffer = new byte[Integer.highestOneBit(length) << 1];
+			buffers.set(buffer);
+		}
+
+		// Assertions are ASCII, no need for an encoder
+		for (int i = 0; i < length; i++) {
+			buffer[i] = (byte) assertion.charAt(i);
+		}
+		digest.update(buffer, 0, length);
+
+		try {
+			digest.digest(buffer, 0, 32);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return add(toLong(buffer, 0), toLong(buffer, 8), expires, now);
+	}
+
+	/**
+	 * Records an assertion digest as seen.
+	 */
+	Result add(long hi, long lo, long expires, long now) {
+		return stripes[(int) (hi >>> 32) & stripeMask].add(hi, lo, Math.max(expires, 1), now);
+	}
+
+	/**
+	 * Returns the number of entries, including expired ones not purged yet.
+	 * 
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	private static long toLong(byte[] b, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (b[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Open addressing table with linear probing. A zero expiry time marks an
+	 * empty slot.
+	 */
+	private static final class Stripe {
+		private final long[] his;
+		private final long[] los;
+		private final long[] expiries;
+		private final int mask;
+		private final int maxSize;
+		private int size;
+
+		Stripe(int maxSize) {
+			final int capacity = Integer.highestOneBit(Math.max(maxSize * 4 / 3, 2) - 1) << 1;
+			this.his = new long[capacity];
+			this.los = new long[capacity];
+			this.expiries = new long[capacity];
+			this.mask = capacity - 1;
+			this.maxSize = maxSize;
+		}
+
+		synchronized Result add(long hi, long lo, long expires, long now) {
+			int i = (int) lo & mask;
+			while (expiries[i] != 0) {
+				if (his[i] == hi && los[i] == lo) {
+					if (expiries[i] > now)
+						return Result.REPLAYED;
+					expiries[i] = expires;
+					return Result.ADDED;
+				}
+				i = (i + 1) & mask;
+			}
+
+			if (size >= maxSize) {
+				purge(now);
+				if (size >= maxSize)
+					return Result.FULL;
+				return add(hi, lo, expires, now);
+			}
+
+			his[i] = hi;
+			los[i] = lo;
+			expiries[i] = expires;
+			size++;
+			return Result.ADDED;
+		}
+
+		private void purge(long now) {
+			int i = 0;
+			while (i <= mask) {
+				if (expiries[i] != 0 && expiries[i] <= now)
+					delete(i);
+				else
+					i++;
+			}
+		}
+
+		/**
+		 * Deletes a slot, shifting back the following entries of the probe
+		 * sequence so no lookup stops early at the new hole.
+		 */
+		private void delete(int hole) {
+			int i = hole;
+			while (true) {
+				i = (i + 1) & mask;
+				if (expiries[i] == 0)
+					break;
+
+				final int home = (int) los[i] & mask;
+				// Move the entry if its home slot is not in (hole, i]
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					his[hole] = his[i];
+					los[hole] = los[i];
+					expiries[hole] = expiries[i];
+					hole = i;
+				}
+			}
+
+			expiries[hole] = 0;
+			size--;
+		}
+	}
+
+}
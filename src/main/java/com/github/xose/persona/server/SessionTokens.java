@@ -0,0 +1,310 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Stateless session tokens, signed with HMAC-SHA256.
+ * <p>
+ * A token holds the user email and an expiry time, so any server sharing the
+ * keys can authenticate a request without looking up a session store:
+ * 
+ * <pre>
+ * kid.expires.email.mac
+ * </pre>
+ * 
+ * where {@code kid} names the signing key, {@code expires} is the expiry time
+ * in milliseconds since the epoch, and {@code email} and {@code mac} are
+ * base64url encoded without padding. Tokens only contain URL-safe characters
+ * and can be sent in a header or a cookie.
+ * <p>
+ * Several keys can be active at once, to rotate them: add the new key, switch
+ * signing to it once every server knows it, and remove the old key once the
+ * tokens it signed have expired. Instances are immutable, replace them to
+ * change the keys.
+ * <p>
+ * {@link #verify(CharSequence, long)} does not allocate: the token is checked
+ * in place, using per-thread buffers and digests. This class is thread safe.
+ */
+public final class SessionTokens {
+
+	private static final int MAX_LENGTH = 1024;
+	private static final int BLOCK_LENGTH = 64;
+	private static final int MAC_LENGTH = 32;
+	private static final int MAC_CHARS = 43;
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final BaseEncoding EMAIL_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+	private static final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+		@Override
+		protected Context initialValue() {
+			return new Context();
+		}
+	};
+
+	private final String[] kids;
+	private final byte[][] innerPads;
+	private final byte[][] outerPads;
+	private final int signingKey;
+
+	/**
+	 * Creates a new token signer and verifier.
+	 * 
+	 * @param keys
+	 *            the active keys, by key id. Key ids may only contain letters,
+	 *            digits, {@code -} and {@code _}. Keys should be at least 32
+	 *            random bytes.
+	 * @param signingKid
+	 *            the id of the key new tokens are signed with
+	 */
+	public SessionTokens(Map<String, byte[]> keys, String signingKid) {
+		checkArgument(keys.containsKey(checkNotNull(signingKid)), "Unknown signing key");
+
+		kids = new String[keys.size()];
+		innerPads = new byte[kids.length][];
+		outerPads = new byte[kids.length][];
+
+		int i = 0;
+		int signing = -1;
+		final MessageDigest digest = newDigest();
+		for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+			final String kid = entry.getKey();
+			checkArgument(isValidKid(kid), "Invalid key id: %s", kid);
+			byte[] key = entry.getValue();
+			checkArgument(key.length > 0, "Empty key: %s", kid);
+			if (key.length > BLOCK_LENGTH)
+				key = digest.digest(key);
+
+			kids[i] = kid;
+			innerPads[i] = pad(key, 0x36);
+			outerPads[i] = pad(key, 0x5c);
+			if (kid.equals(signingKid))
+				signing = i;
+			i++;
+		}
+		signingKey = signing;
+	}
+
+	/**
+	 * Issues a token.
+	 * 
+	 * @param email
+	 *            the user email
+	 * @param expires
+	 *            the expiry time, in milliseconds since the epoch
+	 * @return the signed token
+	 */
+	public String issue(String email, long expires) {
+		checkArgument(expires >= 0);
+		final StringBuilder token = new StringBuilder(kids[signingKey]).append('.').append(expires).append('.')
+				.append(EMAIL_ENCODING.encode(email.getBytes(Charsets.UTF_8)));
+		checkArgument(token.length() + 1 + MAC_CHARS <= MAX_LENGTH, "Email too long");
+
+		final Context context = contexts.get();
+		final int length = token.length();
+		for (int i = 0; i < length; i++)
+			context.input[i] = (byte) token.charAt(i);
+		mac(signingKey, length, context);
+
+		token.append('.');
+		for (int i = 0; i < MAC_CHARS; i++)
+			token.append(ALPHABET[sextet(context.mac, i)]);
+		return token.toString();
+	}
+
+	/**
+	 * Verifies a token, without allocating.
+	 * 
+	 * @param token
+	 *            the token
+	 * @param now
+	 *            the current time, in milliseconds since the epoch
+	 * @return true if the token is correctly signed with an active key and
+	 *         has not expired
+	 */
+	public boolean verify(CharSequence token, long now) {
+		final int length = token.length();
+		if (length > MAX_LENGTH)
+			return false;
+
+		final int first = indexOf(token, 0);
+		final int second = indexOf(token, first + 1);
+		final int third = indexOf(token, second + 1);
+		if (first <= 0 || second < 0 || third < 0 || length - third - 1 != MAC_CHARS)
+			return false;
+
+		final int key = findKey(token, first);
+		final long expires = parseLong(token, first + 1, second);
+		if (key < 0 || expires <= now)
+			return false;
+
+		final Context context = contexts.get();
+		for (int i = 0; i < third; i++) {
+			final char c = token.charAt(i);
+			if (c > 0x7f)
+				return false;
+			context.input[i] = (byte) c;
+		}
+		mac(key, third, context);
+
+		// Constant time comparison
+		int diff = 0;
+		for (int i = 0; i < MAC_CHARS; i++)
+			diff |= ALPHABET[sextet(context.mac, i)] ^ token.charAt(third + 1 + i);
+		return diff == 0;
+	}
+
+	/**
+	 * Verifies a token and returns its user.
+	 * 
+	 * @param token
+	 *            the token
+	 * @param now
+	 *            the current time, in milliseconds since the epoch
+	 * @return the user email, or null if the token is not valid
+	 */
+	@Nullable
+	public String getEmail(CharSequence token, long now) {
+		if (!verify(token, now))
+			return null;
+
+		final int second = indexOf(token, indexOf(token, 0) + 1);
+		final int third = indexOf(token, second + 1);
+		try {
+			return new String(EMAIL_ENCODING.decode(token.subSequence(second + 1, third)), Charsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private void mac(int key, int length, Context context) {
+		final MessageDigest digest = context.digest;
+		try {
+			digest.update(innerPads[key]);
+			digest.update(context.input, 0, length);
+			digest.digest(context.mac, 0, MAC_LENGTH);
+			digest.update(outerPads[key]);
+			digest.update(context.mac, 0, MAC_LENGTH);
+			digest.digest(context.mac, 0, MAC_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int findKey(CharSequence token, int end) {
+		for (int k = 0; k < kids.length; k++) {
+			final String kid = kids[k];
+			if (kid.length() != end)
+				continue;
+
+			int i = 0;
+			while (i < end && kid.charAt(i) == token.charAt(i))
+				i++;
+			if (i == end)
+				return k;
+		}
+		return -1;
+	}
+
+	private static int indexOf(CharSequence s, int from) {
+		for (int i = from; i < s.length(); i++) {
+			if (s.charAt(i) == '.')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a non-negative decimal number of up to 18 digits.
+	 * 
+	 * @return the number, or -1 if not valid
+	 */
+	private static long parseLong(CharSequence s, int start, int end) {
+		if (start >= end || end - start > 18)
+			return -1;
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the base64 digit at a given position of a byte array.
+	 */
+	private static int sextet(byte[] bytes, int index) {
+		final int bit = index * 6;
+		final int i = bit >> 3;
+		int window = (bytes[i] & 0xff) << 8;
+		if (i + 1 < bytes.length)
+			window |= bytes[i + 1] & 0xff;
+		return (window >> (10 - (bit & 7))) & 0x3f;
+	}
+
+	private static boolean isValidKid(String kid) {
+		if (kid.isEmpty())
+			return false;
+		for (int i = 0; i < kid.length(); i++) {
+			final char c = kid.charAt(i);
+			if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_'))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] pad(byte[] key, int value) {
+		final byte[] pad = new byte[BLOCK_LENGTH];
+		for (int i = 0; i < BLOCK_LENGTH; i++)
+			pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ value);
+		return pad;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Per-thread verification state.
+	 */
+	private static final class Context {
+		final MessageDigest digest = newDigest();
+		final byte[] input = new byte[MAX_LENGTH];
+		final byte[] mac = new byte[MAC_LENGTH];
+	}
+
+}
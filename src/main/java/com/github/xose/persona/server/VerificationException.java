@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+/**
+ * Thrown when an assertion cannot be verified.
+ * <p>
+ * Most failures are final: the assertion is invalid and will never verify.
+ * Temporary failures, such as an issuer key that could not be fetched or a
+ * full replay cache, say nothing about the assertion, and a new login may
+ * succeed later.
+ */
+public class VerificationException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean temporary;
+
+	/**
+	 * Creates a new exception.
+	 * 
+	 * @param message
+	 *            the reason the assertion was rejected
+	 */
+	public VerificationException(String message) {
+		this(message, null, false);
+	}
+
+	/**
+	 * Creates a new exception.
+	 * 
+	 * @param message
+	 *            the reason the assertion was rejected
+	 * @param cause
+	 *            the underlying cause
+	 */
+	public VerificationException(String message, Throwable cause) {
+		this(message, cause, false);
+	}
+
+	/**
+	 * Creates a new exception.
+	 * 
+	 * @param message
+	 *            the reason the assertion was rejected
+	 * @param cause
+	 *            the underlying cause, may be null
+	 * @param temporary
+	 *            whether the failure is temporary
+	 */
+	public VerificationException(String message, Throwable cause, boolean temporary) {
+		super(message, cause);
+		this.temporary = temporary;
+	}
+
+	/**
+	 * Returns whether the failure is temporary, so that the assertion was not
+	 * found invalid and the server should report an error rather than a
+	 * rejection.
+	 * 
+	 * @return true if the failure is temporary
+	 */
+	public boolean isTemporary() {
+		return temporary;
+	}
+
+}
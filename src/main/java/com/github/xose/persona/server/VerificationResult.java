@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+/**
+ * The result of verifying an assertion in a batch.
+ */
+public final class VerificationResult {
+
+	private final VerifiedAssertion assertion;
+	private final String reason;
+	private final boolean temporary;
+
+	VerificationResult(VerifiedAssertion assertion) {
+		this.assertion = checkNotNull(assertion);
+		this.reason = null;
+		this.temporary = false;
+	}
+
+	VerificationResult(VerificationException error) {
+		this.assertion = null;
+		this.reason = String.valueOf(error.getMessage());
+		this.temporary = error.isTemporary();
+	}
+
+	/**
+	 * Returns whether the assertion is valid.
+	 * 
+	 * @return true if the assertion is valid
+	 */
+	public boolean isValid() {
+		return assertion != null;
+	}
+
+	/**
+	 * Returns the verified assertion.
+	 * 
+	 * @return the verified assertion, or null if the assertion is not valid
+	 */
+	@Nullable
+	public VerifiedAssertion getAssertion() {
+		return assertion;
+	}
+
+	/**
+	 * Returns the reason the assertion was rejected.
+	 * 
+	 * @return the rejection reason, or null if the assertion is valid
+	 */
+	@Nullable
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns whether the assertion could not be verified because of a
+	 * temporary failure, see {@link VerificationException#isTemporary()}.
+	 * 
+	 * @return true if verification failed temporarily
+	 */
+	public boolean isTemporary() {
+		return temporary;
+	}
+
+	@Override
+	public String toString() {
+		return assertion != null ? assertion.toString() : "VerificationResult[" + reason + "]";
+	}
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A successfully verified Persona assertion.
+ */
+public final class VerifiedAssertion {
+
+	private final String email;
+	private final String audience;
+	private final String issuer;
+	private final long expires;
+
+	VerifiedAssertion(String email, String audience, String issuer, long expires) {
+		this.email = checkNotNull(email);
+		this.audience = checkNotNull(audience);
+		this.issuer = checkNotNull(issuer);
+		this.expires = expires;
+	}
+
+	/**
+	 * Returns the email address of the user.
+	 * 
+	 * @return the verified email address
+	 */
+	public String getEmail() {
+		return email;
+	}
+
+	/**
+	 * Returns the audience the assertion was issued for.
+	 * 
+	 * @return the assertion audience
+	 */
+	public String getAudience() {
+		return audience;
+	}
+
+	/**
+	 * Returns the domain that issued the user certificate.
+	 * 
+	 * @return the certificate issuer
+	 */
+	public String getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * Returns the assertion expiry time.
+	 * 
+	 * @return the expiry time, in milliseconds since the epoch
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	@Override
+	public String toString() {
+		return "VerifiedAssertion[" + email + ", " + issuer + "]";
+	}
+
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+import com.github.xose.persona.server.AssertionDecoder.Token;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Verifies Persona assertions locally.
+ * <p>
+ * A Persona assertion is a backed identity assertion: one or more user
+ * certificates followed by the assertion itself, separated by {@code ~}.
+ * Each part is a signed JSON web token. The first certificate is signed by
+ * the issuer, each following certificate by the key certified by the
+ * previous one, and the assertion by the key in the last certificate.
+ * <p>
+ * The issuer must be the domain of the certified email address (primary
+ * identity provider), or one of the trusted fallback issuers (by default,
+ * {@value #DEFAULT_FALLBACK_ISSUER}). Issuer keys are obtained from an
+ * {@link IssuerKeyResolver}, so no request to a remote verifier is needed.
+ * <p>
+ * If a {@link ReplayCache} is given, each assertion is only accepted once.
+ * <p>
+ * This class is thread safe.
+ */
+public class Verifier {
+
+	/** The Persona fallback identity provider. */
+	public static final String DEFAULT_FALLBACK_ISSUER = "login.persona.org";
+
+	private final IssuerKeyResolver keys;
+	private final Set<String> fallbackIssuers;
+	private final ReplayCache replayCache;
+
+	/**
+	 * Creates a verifier trusting the default fallback issuer.
+	 * 
+	 * @param keys
+	 *            the issuer key resolver
+	 */
+	public Verifier(IssuerKeyResolver keys) {
+		this(keys, ImmutableSet.of(DEFAULT_FALLBACK_ISSUER));
+	}
+
+	/**
+	 * Creates a verifier trusting the given fallback issuers.
+	 * 
+	 * @param keys
+	 *            the issuer key resolver
+	 * @param fallbackIssuers
+	 *            the issuers trusted to certify any email address
+	 */
+	public Verifier(IssuerKeyResolver keys, Set<String> fallbackIssuers) {
+		this(keys, fallbackIssuers, null);
+	}
+
+	/**
+	 * Creates a verifier trusting the given fallback issuers and rejecting
+	 * replayed assertions.
+	 * 
+	 * @param keys
+	 *            the issuer key resolver
+	 * @param fallbackIssuers
+	 *            the issuers trusted to certify any email address
+	 * @param replayCache
+	 *            the cache of seen assertions, or null to accept replays
+	 */
+	public Verifier(IssuerKeyResolver keys, Set<String> fallbackIssuers, @Nullable ReplayCache replayCache) {
+		this.keys = checkNotNull(keys);
+		this.fallbackIssuers = ImmutableSet.copyOf(fallbackIssuers);
+		this.replayCache = replayCache;
+	}
+
+	/**
+	 * Verifies an assertion.
+	 * 
+	 * @param assertion
+	 *            the assertion returned by Persona
+	 * @param audience
+	 *            the expected audience, the origin of the site (for example
+	 *            {@code https://example.com})
+	 * @return the verified assertion
+	 * @throws VerificationException
+	 *             if the assertion is not valid
+	 */
+	public VerifiedAssertion verify(String assertion, String audience) throws VerificationException {
+		return verify(assertion, audience, null);
+	}
+
+	/**
+	 * Verifies many assertions in parallel.
+	 * <p>
+	 * Issuer key lookups and certificate signature checks are shared by all
+	 * the assertions in the batch.
+	 * 
+	 * @param assertions
+	 *            the assertions returned by Persona
+	 * @param audience
+	 *            the expected audience, the origin of the site
+	 * @param executor
+	 *            the executor the assertions are verified on
+	 * @return the result for each assertion, in the same order
+	 */
+	public List<VerificationResult> verifyAll(List<String> assertions, final String audience, Executor executor) {
+		final Batch batch = newBatch();
+
+		final List<FutureTask<VerificationResult>> tasks = Lists.newArrayListWithCapacity(assertions.size());
+		for (final String assertion : assertions) {
+			final FutureTask<VerificationResult> task = new FutureTask<VerificationResult>(new Callable<VerificationResult>() {
+				@Override
+				public VerificationResult call() {
+					return batch.verifyQuietly(assertion, audience);
+				}
+			});
+			tasks.add(task);
+
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+		}
+
+		final List<VerificationResult> results = Lists.newArrayListWithCapacity(tasks.size());
+		for (FutureTask<VerificationResult> task : tasks) {
+			results.add(Futures.getUnchecked(task));
+		}
+		return results;
+	}
+
+	/**
+	 * Creates a batch to verify related assertions.
+	 * <p>
+	 * Issuer key lookups and certificate signature checks are done once per
+	 * batch, so a batch should only be used for a short time.
+	 * 
+	 * @return a new batch
+	 */
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	private VerifiedAssertion verify(String assertion, String audience, @Nullable Batch batch) throws VerificationException {
+		checkNotNull(assertion);
+		checkNotNull(audience);
+
+		final AssertionDecoder decoder = AssertionDecoder.get();
+		final int count = decoder.decode(assertion);
+		final long now = System.currentTimeMillis();
+
+		// Run the cheap checks before any signature is verified
+		for (int i = 0; i < count - 1; i++) {
+			final long exp = decoder.token(i).exp;
+			if (exp == AssertionDecoder.MISSING)
+				throw new VerificationException("Missing exp");
+			if (exp < now)
+				throw new VerificationException("Certificate expired");
+		}
+
+		final Token signed = decoder.token(count - 1);
+		final long expires = signed.exp;
+		if (expires == AssertionDecoder.MISSING)
+			throw new VerificationException("Missing exp");
+		if (expires < now)
+			throw new VerificationException("Assertion expired");
+
+		final String aud = signed.aud;
+		if (aud == null)
+			throw new VerificationException("Missing aud");
+		if (!aud.equals(audience) && !normalizeOrigin(aud).equals(normalizeOrigin(audience)))
+			throw new VerificationException("Audience mismatch");
+
+		final String issuer = decoder.token(0).iss;
+		if (issuer == null)
+			throw new VerificationException("Missing iss");
+		final String email = decoder.token(count - 2).email;
+		if (email == null)
+			throw new VerificationException("Missing principal");
+		checkIssuer(issuer, email);
+
+		// Verify the certificate chain, starting from the issuer key
+		PublicKey key = batch != null ? batch.resolve(issuer) : keys.resolve(issuer);
+		int end = -1;
+		for (int i = 0; i < count - 1; i++) {
+			final Token cert = decoder.token(i);
+			if (batch != null) {
+				end = assertion.indexOf('~', end + 1);
+				key = batch.certify(assertion.substring(0, end), cert, key, decoder);
+			} else {
+				key = certify(cert, key, decoder);
+			}
+		}
+		PublicKeys.verify(signed, key, decoder);
+
+		// Only record assertions with a valid signature, so the cache cannot
+		// be filled with forged ones
+		if (replayCache != null) {
+			switch (replayCache.add(assertion, expires, now)) {
+			case REPLAYED:
+				throw new VerificationException("Assertion already used");
+			case FULL:
+				throw new VerificationException("Replay cache full", null, true);
+			default:
+				break;
+			}
+		}
+
+		return new VerifiedAssertion(email, aud, issuer, expires);
+	}
+
+	/**
+	 * Verifies a certificate and returns the key it certifies.
+	 */
+	private static PublicKey certify(Token cert, PublicKey signer, AssertionDecoder decoder) throws VerificationException {
+		PublicKeys.verify(cert, signer, decoder);
+		return PublicKeys.parse(cert);
+	}
+
+	private void checkIssuer(String issuer, String email) throws VerificationException {
+		final int at = email.lastIndexOf('@');
+		if (at < 0)
+			throw new VerificationException("Invalid email address");
+
+		final String domain = email.substring(at + 1).toLowerCase(Locale.ENGLISH);
+		if (!domain.equals(issuer.toLowerCase(Locale.ENGLISH)) && !fallbackIssuers.contains(issuer))
+			throw new VerificationException("Issuer " + issuer + " may not certify " + email);
+	}
+
+	/**
+	 * Normalizes an origin to {@code scheme://host:port}.
+	 * <p>
+	 * Accepts the legacy {@code host:port} audience format.
+	 */
+	static String normalizeOrigin(String origin) throws VerificationException {
+		String s = origin;
+		if (!s.contains("://"))
+			s = (s.endsWith(":443") ? "https://" : "http://") + s;
+
+		final URI uri;
+		try {
+			uri = new URI(s);
+		} catch (URISyntaxException e) {
+			throw new VerificationException("Invalid audience", e);
+		}
+
+		if (uri.getScheme() == null || uri.getHost() == null)
+			throw new VerificationException("Invalid audience");
+
+		final String scheme = uri.getScheme().toLowerCase(Locale.ENGLISH);
+		int port = uri.getPort();
+		if (port < 0)
+			port = "https".equals(scheme) ? 443 : 80;
+
+		return scheme + "://" + uri.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+	}
+
+	/**
+	 * A batch of related assertions, sharing issuer key lookups and
+	 * certificate signature checks.
+	 * <p>
+	 * This class is thread safe.
+	 */
+	public final class Batch {
+
+		private final ConcurrentMap<String, FutureTask<PublicKey>> issuerKeys = Maps.newConcurrentMap();
+		private final ConcurrentMap<String, FutureTask<PublicKey>> certifiedKeys = Maps.newConcurrentMap();
+
+		private Batch() {
+		}
+
+		/**
+		 * Verifies an assertion.
+		 * 
+		 * @param assertion
+		 *            the assertion returned by Persona
+		 * @param audience
+		 *            the expected audience, the origin of the site
+		 * @return the verified assertion
+		 * @throws VerificationException
+		 *             if the assertion is not valid
+		 * @see Verifier#verify(String, String)
+		 */
+		public VerifiedAssertion verify(String assertion, String audience) throws VerificationException {
+			return Verifier.this.verify(assertion, audience, this);
+		}
+
+		/**
+		 * Verifies an assertion, returning the result.
+		 * 
+		 * @param assertion
+		 *            the assertion returned by Persona
+		 * @param audience
+		 *            the expected audience, the origin of the site
+		 * @return the verification result
+		 */
+		public VerificationResult verifyQuietly(String assertion, String audience) {
+			try {
+				return new VerificationResult(verify(assertion, audience));
+			} catch (VerificationException e) {
+				return new VerificationResult(e);
+			}
+		}
+
+		PublicKey resolve(final String issuer) throws VerificationException {
+			return memoize(issuerKeys, issuer, new Callable<PublicKey>() {
+				@Override
+				public PublicKey call() throws VerificationException {
+					return keys.resolve(issuer);
+				}
+			});
+		}
+
+		/**
+		 * Verifies a certificate, keyed by the chain up to it, as the same
+		 * certificate may be signed by different keys in different chains.
+		 */
+		PublicKey certify(String chain, final Token cert, final PublicKey signer, final AssertionDecoder decoder) throws VerificationException {
+			return memoize(certifiedKeys, chain, new Callable<PublicKey>() {
+				@Override
+				public PublicKey call() throws VerificationException {
+					return Verifier.certify(cert, signer, decoder);
+				}
+			});
+		}
+
+		private PublicKey memoize(ConcurrentMap<String, FutureTask<PublicKey>> memo, String key, Callable<PublicKey> callable)
+				throws VerificationException {
+			final FutureTask<PublicKey> task = new FutureTask<PublicKey>(callable);
+			FutureTask<PublicKey> existing = memo.putIfAbsent(key, task);
+			if (existing == null) {
+				existing = task;
+				task.run();
+			}
+
+			try {
+				return existing.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new VerificationException("Interrupted", e, true);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof VerificationException)
+					throw (VerificationException) e.getCause();
+				throw new VerificationException("Verification failed", e.getCause(), true);
+			}
+		}
+
+	}
+
+}
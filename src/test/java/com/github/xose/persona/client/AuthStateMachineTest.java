@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.xose.persona.client.Persona.Status;
+import com.google.common.collect.Lists;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Transition table of {@link AuthStateMachine}, and the events fired on each
+ * transition. Runs on the JVM, without a dispatcher.
+ */
+public class AuthStateMachineTest {
+
+	private static final String USER = "user@example.com";
+	private static final String OTHER = "other@example.com";
+
+	private final SimpleEventBus eventBus = new SimpleEventBus();
+	private final AuthStateMachine state = new AuthStateMachine(eventBus);
+	private final List<String> events = Lists.newArrayList();
+
+	@Before
+	public void setUp() {
+		state.addHandler(new RecordingHandler(events), HandlerPriority.NORMAL);
+	}
+
+	@Test
+	public void startsUnknown() {
+		assertEquals(Status.UNKNOWN, state.getStatus());
+		assertNull(state.getCurrentUser());
+	}
+
+	@Test
+	public void logsIn() {
+		assertTrue(state.startLogin("a1", USER));
+		assertEquals(Status.LOGGINGIN, state.getStatus());
+		assertTrue(state.isLoggingIn("a1"));
+
+		final LoginResult result = new LoginResult(USER);
+		assertTrue(state.completeLogin("a1", result));
+		assertEquals(Status.LOGGEDIN, state.getStatus());
+		assertEquals(USER, state.getCurrentUser());
+		assertFalse(state.isLoggingIn("a1"));
+		assertEvents("loggingIn", "loggedIn " + USER);
+	}
+
+	@Test
+	public void dropsRepeatedLogin() {
+		assertTrue(state.startLogin("a1", USER));
+		assertFalse(state.startLogin("a1", USER));
+		assertTrue(state.completeLogin("a1", new LoginResult(USER)));
+
+		// Same assertion, or a new one for the same user
+		assertFalse(state.startLogin("a1", USER));
+		assertFalse(state.startLogin("a2", USER));
+		assertFalse(state.completeLogin("a1", new LoginResult(USER)));
+		assertEvents("loggingIn", "loggedIn " + USER);
+
+		// A different user, or an assertion with no known email
+		assertTrue(state.startLogin("a3", OTHER));
+		assertTrue(state.startLogin("a4", null));
+		assertTrue(state.isLoggingIn("a4"));
+		assertNull(state.getCurrentUser());
+	}
+
+	@Test
+	public void ignoresStaleLoginResult() {
+		assertTrue(state.startLogin("a1", USER));
+		assertTrue(state.startLogin("a2", OTHER));
+
+		assertFalse(state.completeLogin("a1", new LoginResult(USER)));
+		assertFalse(state.failLogin("a1", AuthErrorCode.REJECTED, "stale"));
+		assertEquals(Status.LOGGINGIN, state.getStatus());
+
+		assertTrue(state.failLogin("a2", AuthErrorCode.REJECTED, "rejected"));
+		assertEquals(Status.LOGGEDOUT, state.getStatus());
+		assertEvents("loggingIn", "loggingIn", "error REJECTED");
+	}
+
+	@Test
+	public void restoresUser() {
+		assertTrue(state.restore(USER, false));
+		assertEquals(Status.LOGGEDIN, state.getStatus());
+		assertFalse(state.restore(USER, true));
+		assertEvents();
+
+		assertTrue(state.restore(OTHER, true));
+		assertEquals(OTHER, state.getCurrentUser());
+		assertEvents("loggedIn " + OTHER);
+
+		assertTrue(state.restore(null, true));
+		assertEquals(Status.LOGGEDOUT, state.getStatus());
+		assertNull(state.getCurrentUser());
+		assertFalse(state.restore(null, true));
+		assertEvents("loggedIn " + OTHER);
+	}
+
+	@Test
+	public void logsOut() {
+		state.restore(USER, false);
+		assertTrue(state.startLogout());
+		assertEquals(Status.LOGGINGOUT, state.getStatus());
+		assertFalse(state.startLogout());
+
+		assertTrue(state.completeLogout());
+		assertEquals(Status.LOGGEDOUT, state.getStatus());
+		assertNull(state.getCurrentUser());
+		assertFalse(state.completeLogout());
+		assertEvents("loggingOut", "loggedOut");
+	}
+
+	@Test
+	public void keepsUserOnFailedLogout() {
+		state.restore(USER, false);
+		state.startLogout();
+
+		assertTrue(state.failLogout(AuthErrorCode.NETWORK, "offline"));
+		assertEquals(Status.LOGGEDIN, state.getStatus());
+		assertEquals(USER, state.getCurrentUser());
+		assertFalse(state.failLogout(AuthErrorCode.NETWORK, "offline"));
+		assertEvents("loggingOut", "error NETWORK");
+	}
+
+	@Test
+	public void doesNotLogOutWhenLoggedOut() {
+		state.restore(null, false);
+		assertFalse(state.startLogout());
+		assertFalse(state.completeLogout());
+		assertEquals(Status.LOGGEDOUT, state.getStatus());
+
+		// From the unknown status, a logout is allowed
+		final AuthStateMachine unknown = new AuthStateMachine(eventBus);
+		assertTrue(unknown.startLogout());
+		assertTrue(unknown.failLogout(AuthErrorCode.NETWORK, "offline"));
+		assertEquals(Status.LOGGEDOUT, unknown.getStatus());
+	}
+
+	@Test
+	public void interruptsLogoutWithLogin() {
+		state.restore(USER, false);
+		state.startLogout();
+		assertTrue(state.startLogin("a1", OTHER));
+		assertFalse(state.completeLogout());
+		assertTrue(state.completeLogin("a1", new LoginResult(OTHER)));
+		assertEquals(OTHER, state.getCurrentUser());
+	}
+
+	@Test
+	public void checksRefreshedUser() {
+		state.restore(USER, false);
+		assertTrue(state.refreshed(USER, new LoginResult(USER)));
+		assertFalse(state.refreshed(USER, new LoginResult(OTHER)));
+		assertFalse(state.refreshed(OTHER, new LoginResult(OTHER)));
+
+		state.startLogout();
+		assertFalse(state.refreshed(USER, new LoginResult(USER)));
+	}
+
+	@Test
+	public void expiresCurrentUserOnly() {
+		state.restore(USER, false);
+		assertFalse(state.expire(OTHER));
+		assertTrue(state.expire(USER));
+		assertEquals(Status.LOGGEDOUT, state.getStatus());
+		assertNull(state.getCurrentUser());
+		assertFalse(state.expire(USER));
+		assertEvents("loggedOut");
+	}
+
+	@Test
+	public void callsCriticalHandlersFirst() {
+		final List<String> order = Lists.newArrayList();
+		state.addHandler(new RecordingHandler(order, "normal "), HandlerPriority.NORMAL);
+		state.addHandler(new RecordingHandler(order, "critical "), HandlerPriority.CRITICAL);
+		AuthLoggingInEvent.register(eventBus, new RecordingHandler(order, "bus "));
+
+		state.startLogin("a1", USER);
+		assertEquals(Arrays.asList("critical loggingIn", "bus loggingIn", "normal loggingIn"), order);
+	}
+
+	@Test
+	public void throwsHandlerExceptionsAfterAllHandlers() {
+		final RuntimeException failure = new RuntimeException();
+		state.addHandler(new RecordingHandler(events) {
+			@Override
+			public void onAuthLoggingIn() {
+				throw failure;
+			}
+		}, HandlerPriority.CRITICAL);
+
+		try {
+			state.startLogin("a1", USER);
+			fail("Handler exception not thrown");
+		} catch (UmbrellaException e) {
+			assertSame(failure, e.getCause());
+		}
+		assertEquals(Status.LOGGINGIN, state.getStatus());
+		assertEvents("loggingIn");
+	}
+
+	private void assertEvents(String... expected) {
+		assertEquals(Arrays.asList(expected), events);
+	}
+
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Scriptable stand-in for the {@code navigator.id} API of the Persona
+ * script, to run the client flow without {@code login.persona.org}.
+ * <p>
+ * Once installed, Persona finds {@code navigator.id} already defined and
+ * does not load the real script. The fake records the options given to
+ * {@code watch} and {@code request}, and the {@code onlogin},
+ * {@code onlogout}, {@code oncancel} and {@code onready} callbacks are then
+ * called with the {@code fire} methods, synchronously. As with the real API,
+ * {@code navigator.id.logout} calls {@code onlogout}.
+ * 
+ * <pre>
+ * FakeNavigatorId navigator = FakeNavigatorId.install();
+ * Persona.watch();
+ * navigator.fireLogin(FakeNavigatorId.createAssertion("user@example.com"));
+ * </pre>
+ */
+final class FakeNavigatorId {
+
+	private final JavaScriptObject id;
+	private final JavaScriptObject previous;
+
+	private FakeNavigatorId(JavaScriptObject id, JavaScriptObject previous) {
+		this.id = id;
+		this.previous = previous;
+	}
+
+	/**
+	 * Installs a new fake as {@code navigator.id}, in the window the Persona
+	 * script would be loaded in.
+	 * <p>
+	 * Must be installed before Persona loads the real script.
+	 * 
+	 * @return the installed fake
+	 */
+	static FakeNavigatorId install() {
+		final JavaScriptObject previous = getNavigatorId();
+		final FakeNavigatorId fake = new FakeNavigatorId(create(), previous);
+		setNavigatorId(fake.id);
+		return fake;
+	}
+
+	/**
+	 * Puts back the {@code navigator.id} found when the fake was installed.
+	 */
+	void uninstall() {
+		setNavigatorId(previous);
+	}
+
+	/**
+	 * Creates an assertion holding the given email address in its
+	 * certificate.
+	 * <p>
+	 * The assertion and certificate use {@code alg: none} and are not signed,
+	 * so verifiers reject them: they can only be accepted by a backend
+	 * stand-in.
+	 * 
+	 * @param email
+	 *            the certified email address
+	 * @return the assertion
+	 */
+	static native String createAssertion(String email) /*-{
+		var encode = function(object) {
+			return $wnd.btoa(JSON.stringify(object)).replace(/\+/g, '-').replace(/\//g, '_').replace(/=+$/, '');
+		};
+		var cert = encode({alg: 'none'}) + '.' + encode({principal: {email: email}, iss: 'fake'}) + '.';
+		var assertion = encode({alg: 'none'}) + '.' + encode({aud: $wnd.location.origin || ''}) + '.';
+		return cert + '~' + assertion;
+	}-*/;
+
+	/**
+	 * Calls the {@code onlogin} callback given to {@code watch}.
+	 * 
+	 * @param assertion
+	 *            the assertion
+	 * @throws IllegalStateException
+	 *             if {@code watch} has not been called
+	 */
+	void fireLogin(String assertion) {
+		checkState(hasCallback(id, "onlogin"), "watch not called");
+		fireLogin(id, assertion);
+	}
+
+	/**
+	 * Calls the {@code onlogout} callback given to {@code watch}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if {@code watch} has not been called
+	 */
+	void fireLogout() {
+		checkState(hasCallback(id, "onlogout"), "watch not called");
+		fire(id, "onlogout");
+	}
+
+	/**
+	 * Calls the {@code onready} callback given to {@code watch}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if {@code watch} has not been called
+	 */
+	void fireReady() {
+		checkState(hasCallback(id, "onready"), "watch not called");
+		fire(id, "onready");
+	}
+
+	/**
+	 * Calls the {@code oncancel} callback given to the last {@code request}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if {@code request} has not been called
+	 */
+	void fireCancel() {
+		checkState(hasCallback(id, "oncancel"), "request not called");
+		fire(id, "oncancel");
+	}
+
+	/**
+	 * @return the number of {@code navigator.id.watch} calls
+	 */
+	int getWatchCount() {
+		return getCount(id, "watch");
+	}
+
+	/**
+	 * @return the number of {@code navigator.id.request} calls
+	 */
+	int getRequestCount() {
+		return getCount(id, "request");
+	}
+
+	/**
+	 * @return the number of {@code navigator.id.logout} calls
+	 */
+	int getLogoutCount() {
+		return getCount(id, "logout");
+	}
+
+	private static native JavaScriptObject create() /*-{
+		var id = {
+			counts: {watch: 0, request: 0, logout: 0},
+			callbacks: {}
+		};
+		id.watch = function(opts) {
+			id.counts.watch++;
+			id.callbacks.onlogin = opts.onlogin;
+			id.callbacks.onlogout = opts.onlogout;
+			id.callbacks.onready = opts.onready;
+		};
+		id.request = function(opts) {
+			id.counts.request++;
+			id.callbacks.oncancel = opts && opts.oncancel;
+		};
+		id.logout = function() {
+			id.counts.logout++;
+			if (id.callbacks.onlogout)
+				id.callbacks.onlogout();
+		};
+		return id;
+	}-*/;
+
+	private static native JavaScriptObject getNavigatorId() /*-{
+		return $wnd.navigator.id || null;
+	}-*/;
+
+	private static native void setNavigatorId(JavaScriptObject id) /*-{
+		if (id)
+			$wnd.navigator.id = id;
+		else
+			delete $wnd.navigator.id;
+	}-*/;
+
+	private static native boolean hasCallback(JavaScriptObject id, String name) /*-{
+		return !!id.callbacks[name];
+	}-*/;
+
+	private static native void fire(JavaScriptObject id, String name) /*-{
+		id.callbacks[name]();
+	}-*/;
+
+	private static native void fireLogin(JavaScriptObject id, String assertion) /*-{
+		id.callbacks.onlogin(assertion);
+	}-*/;
+
+	private static native int getCount(JavaScriptObject id, String name) /*-{
+		return id.counts[name];
+	}-*/;
+
+}
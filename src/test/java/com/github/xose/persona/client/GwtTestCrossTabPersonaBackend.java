@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONString;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.storage.client.Storage;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Login results shared between tabs by {@link CrossTabPersonaBackend}, with
+ * two instances standing for two tabs of the same page. Needs a browser with
+ * {@code localStorage}.
+ */
+public class GwtTestCrossTabPersonaBackend extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	private static final String EMAIL = "user@example.com";
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		Storage.getLocalStorageIfSupported().clear();
+	}
+
+	public void testSharesWholeLogin() {
+
+		final JSONObject payload = new JSONObject();
+		payload.put("name", new JSONString("User"));
+		final LoginResult login = new LoginResult(EMAIL, payload, 4102444800000.0, "token");
+		final CountingBackend leaderBackend = new CountingBackend(login);
+		final CountingBackend followerBackend = new CountingBackend(null);
+		final CrossTabPersonaBackend leader = new CrossTabPersonaBackend(leaderBackend);
+		final CrossTabPersonaBackend follower = new CrossTabPersonaBackend(followerBackend);
+
+		delayTestFinish(TEST_TIMEOUT);
+		leader.doLogin(FakeNavigatorId.createAssertion(EMAIL), new Step() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				assertEquals(EMAIL, result.getUser());
+				follower.doLogin(FakeNavigatorId.createAssertion(EMAIL), new Step() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						assertEquals(1, leaderBackend.logins);
+						assertEquals(0, followerBackend.logins);
+						assertEquals(EMAIL, result.getUser());
+						assertEquals(login.getExpires(), result.getExpires());
+						assertEquals("token", result.getToken());
+						assertEquals("User", JsonPersonaBackend.getString(result.getPayload().isObject(), "name"));
+						finishTest();
+					}
+				});
+			}
+		});
+	}
+
+	public void testDoesNotShareOtherUser() {
+		final CountingBackend leaderBackend = new CountingBackend(new LoginResult(EMAIL));
+		final CountingBackend followerBackend = new CountingBackend(new LoginResult("other@example.com"));
+		final CrossTabPersonaBackend leader = new CrossTabPersonaBackend(leaderBackend);
+		final CrossTabPersonaBackend follower = new CrossTabPersonaBackend(followerBackend);
+
+		delayTestFinish(TEST_TIMEOUT);
+		leader.doLogin(FakeNavigatorId.createAssertion(EMAIL), new Step() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				follower.doLogin(FakeNavigatorId.createAssertion("other@example.com"), new Step() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						assertEquals(1, followerBackend.logins);
+						assertEquals("other@example.com", result.getUser());
+						assertEquals(0.0, result.getExpires());
+						assertNull(result.getToken());
+						assertNull(result.getPayload());
+						finishTest();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Backend answering every login with the same result.
+	 */
+	private static final class CountingBackend implements PersonaBackend {
+		private final LoginResult result;
+		int logins;
+
+		CountingBackend(LoginResult result) {
+			this.result = result;
+		}
+
+		@Override
+		public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+			logins++;
+			if (result != null)
+				callback.onSuccess(result);
+			else
+				callback.onFailure(new PersonaBackendException(AuthErrorCode.REJECTED, "Unexpected login"));
+		}
+
+		@Override
+		public void doLogout(AsyncCallback<Void> callback) {
+			callback.onSuccess(null);
+		}
+	}
+
+	/**
+	 * A step of a test, failing it on error.
+	 */
+	private abstract class Step implements AsyncCallback<LoginResult> {
+		@Override
+		public void onFailure(Throwable caught) {
+			fail(caught.toString());
+		}
+	}
+
+}
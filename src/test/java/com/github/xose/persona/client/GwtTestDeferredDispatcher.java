@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.GWT.UncaughtExceptionHandler;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.google.web.bindery.event.shared.UmbrellaException;
+
+/**
+ * Handler order, deferral and time slicing of {@link DeferredDispatcher},
+ * through the state machine that uses it.
+ */
+public class GwtTestDeferredDispatcher extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	private static final String USER = "user@example.com";
+
+	private SimpleEventBus eventBus;
+	private DeferredDispatcher dispatcher;
+	private AuthStateMachine state;
+	private List<String> events;
+	private UncaughtExceptionHandler uncaughtExceptionHandler;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		eventBus = new SimpleEventBus();
+		dispatcher = new DeferredDispatcher(eventBus);
+		// Long enough for every delivery of a test to run in a single slice
+		dispatcher.setTimeSlice(1000);
+		state = new AuthStateMachine(eventBus);
+		state.setDispatcher(dispatcher);
+		events = Lists.newArrayList();
+		uncaughtExceptionHandler = GWT.getUncaughtExceptionHandler();
+	}
+
+	@Override
+	protected void gwtTearDown() {
+		GWT.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+	}
+
+	public void testDefersAllButCriticalHandlers() {
+		state.addHandler(new RecordingHandler(events, "normal "), HandlerPriority.NORMAL);
+		state.addHandler(new RecordingHandler(events, "critical "), HandlerPriority.CRITICAL);
+		AuthLoggedInEvent.register(eventBus, new RecordingHandler(events, "bus "));
+
+		state.restore(USER, true);
+		assertEvents("critical loggedIn " + USER);
+
+		delayTestFinish(TEST_TIMEOUT);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				assertEvents("critical loggedIn " + USER, "bus loggedIn " + USER, "normal loggedIn " + USER);
+				finishTest();
+			}
+		});
+	}
+
+	public void testKeepsEventOrder() {
+		state.addHandler(new RecordingHandler(events, "first "), HandlerPriority.NORMAL);
+		state.addHandler(new RecordingHandler(events, "second "), HandlerPriority.NORMAL);
+
+		state.startLogin("assertion", USER);
+		state.completeLogin("assertion", new LoginResult(USER));
+		state.startLogout();
+		assertEvents();
+
+		delayTestFinish(TEST_TIMEOUT);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				assertEvents("first loggingIn", "second loggingIn", "first loggedIn " + USER, "second loggedIn " + USER, "first loggingOut",
+						"second loggingOut");
+				finishTest();
+			}
+		});
+	}
+
+	public void testDeliversToHandlersAtEnqueueTime() {
+		state.addHandler(new RecordingHandler(events, "early "), HandlerPriority.NORMAL);
+		state.startLogin("assertion", USER);
+		state.addHandler(new RecordingHandler(events, "late "), HandlerPriority.NORMAL);
+		state.failLogin("assertion", AuthErrorCode.REJECTED, "rejected");
+
+		delayTestFinish(TEST_TIMEOUT);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				assertEvents("early loggingIn", "early error REJECTED", "late error REJECTED");
+				finishTest();
+			}
+		});
+	}
+
+	public void testYieldsAfterTimeSlice() {
+		dispatcher.setTimeSlice(1);
+		for (int i = 0; i < 5; i++) {
+			state.addHandler(new RecordingHandler(events, "slow ") {
+				@Override
+				public void onAuthLoggingIn() {
+					super.onAuthLoggingIn();
+					busyWait(3);
+				}
+			}, HandlerPriority.NORMAL);
+		}
+
+		state.startLogin("assertion", USER);
+
+		delayTestFinish(TEST_TIMEOUT);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				// The first slice ran out of time, the rest waits for a timer
+				assertTrue(events.size() < 5);
+				Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+					@Override
+					public boolean execute() {
+						if (events.size() < 5)
+							return true;
+						assertEquals(5, events.size());
+						finishTest();
+						return false;
+					}
+				}, 20);
+			}
+		});
+	}
+
+	public void testThrowsHandlerExceptionsAfterSlice() {
+		final RuntimeException failure = new RuntimeException("handler");
+		final List<Throwable> uncaught = Lists.newArrayList();
+		GWT.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+			@Override
+			public void onUncaughtException(Throwable e) {
+				uncaught.add(e);
+			}
+		});
+
+		state.addHandler(new RecordingHandler(events, "failing ") {
+			@Override
+			public void onAuthLoggingIn() {
+				super.onAuthLoggingIn();
+				throw failure;
+			}
+		}, HandlerPriority.NORMAL);
+		state.addHandler(new RecordingHandler(events, "next "), HandlerPriority.NORMAL);
+
+		state.startLogin("assertion", USER);
+
+		delayTestFinish(TEST_TIMEOUT);
+		Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+			@Override
+			public void execute() {
+				assertEvents("failing loggingIn", "next loggingIn");
+				assertEquals(1, uncaught.size());
+				final Set<Throwable> causes = ((UmbrellaException) unwrap(uncaught.get(0))).getCauses();
+				assertEquals(1, causes.size());
+				assertSame(failure, causes.iterator().next());
+				finishTest();
+			}
+		});
+	}
+
+	private void assertEvents(String... expected) {
+		assertEquals(Arrays.asList(expected), events);
+	}
+
+	/**
+	 * Returns the umbrella exception thrown by the dispatcher, which the
+	 * scheduler may have wrapped in another.
+	 */
+	private static Throwable unwrap(Throwable e) {
+		while (!(e instanceof UmbrellaException) && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+
+	private static void busyWait(int millis) {
+		final double end = Duration.currentTimeMillis() + millis;
+		while (Duration.currentTimeMillis() < end) {
+			// Simulates a slow handler
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import java.util.Arrays;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Endpoint selection, failover and hedging, with stand-in endpoints of
+ * injected latency.
+ */
+public class GwtTestFailoverPersonaBackend extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	public void testPrefersFastestEndpoint() {
+		final StandInBackend slow = StandInBackend.succeeding("slow@example.com", 200);
+		final StandInBackend fast = StandInBackend.succeeding("fast@example.com", 20);
+		final FailoverPersonaBackend backend = newBackend(0, slow, fast);
+
+		delayTestFinish(TEST_TIMEOUT);
+		// Ties go to the first endpoint, then the unmeasured one, then the fastest
+		backend.doLogin("a1", new Expect("slow@example.com") {
+			@Override
+			void then() {
+				backend.doLogin("a2", new Expect("fast@example.com") {
+					@Override
+					void then() {
+						backend.doLogin("a3", new Expect("fast@example.com") {
+							@Override
+							void then() {
+								assertEquals(1, slow.logins);
+								assertEquals(2, fast.logins);
+								assertTrue(backend.getLatency(0) > backend.getLatency(1));
+								finishTest();
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	public void testFailsOverInOrder() {
+		final StandInBackend first = StandInBackend.failing(AuthErrorCode.SERVER, 10);
+		final StandInBackend second = StandInBackend.failing(AuthErrorCode.NETWORK, 10);
+		final StandInBackend third = StandInBackend.succeeding("third@example.com", 10);
+		final FailoverPersonaBackend backend = newBackend(0, first, second, third);
+
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("assertion", new Expect("third@example.com") {
+			@Override
+			void then() {
+				assertEquals(1, first.logins);
+				assertEquals(1, second.logins);
+				assertEquals(1, third.logins);
+				assertEquals(1.0, backend.getErrorRate(0), 0.01);
+				assertEquals(0.0, backend.getErrorRate(2), 0.01);
+				finishTest();
+			}
+		});
+	}
+
+	public void testHedgesSlowCall() {
+		final StandInBackend slow = StandInBackend.succeeding("slow@example.com", 2000);
+		final StandInBackend fast = StandInBackend.succeeding("fast@example.com", 10);
+		final FailoverPersonaBackend backend = newBackend(200, slow, fast);
+		final double start = Duration.currentTimeMillis();
+
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("assertion", new Expect("fast@example.com") {
+			@Override
+			void then() {
+				final double elapsed = Duration.currentTimeMillis() - start;
+				// Allow for timer granularity
+				assertTrue("Hedged before the delay: " + elapsed, elapsed >= 190);
+				assertTrue("Not hedged: " + elapsed, elapsed < 2000);
+				assertEquals(1, slow.logins);
+				assertEquals(1, fast.logins);
+				finishTest();
+			}
+		});
+	}
+
+	public void testIgnoresRejectionWhileAttemptRunning() {
+		// The hedged endpoint sees the assertion as replayed from a shared cache
+		final StandInBackend primary = StandInBackend.succeeding("user@example.com", 500);
+		final StandInBackend hedge = StandInBackend.failing(AuthErrorCode.REJECTED, 10);
+		final FailoverPersonaBackend backend = newBackend(100, primary, hedge);
+
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("assertion", new Expect("user@example.com") {
+			@Override
+			void then() {
+				assertEquals(1, hedge.logins);
+				finishTest();
+			}
+		});
+	}
+
+	public void testReportsRejectionOnceAllAttemptsEnd() {
+		// Rejected after the hedge starts, which fails later with a retryable error
+		final StandInBackend primary = StandInBackend.failing(AuthErrorCode.REJECTED, 150);
+		final StandInBackend hedge = StandInBackend.failing(AuthErrorCode.SERVER, 200);
+		final StandInBackend spare = StandInBackend.succeeding("user@example.com", 10);
+		final FailoverPersonaBackend backend = newBackend(100, primary, hedge, spare);
+
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("assertion", new AsyncCallback<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				fail("Rejected assertion sent to another endpoint");
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				assertEquals(AuthErrorCode.REJECTED, AuthErrorCode.of(caught));
+				assertEquals(0, spare.logins);
+				finishTest();
+			}
+		});
+	}
+
+	private static FailoverPersonaBackend newBackend(int hedgeDelay, StandInBackend... backends) {
+		final FailoverPersonaBackend backend = new FailoverPersonaBackend(Arrays.asList(backends));
+		backend.setHedgeDelay(hedgeDelay);
+		return backend;
+	}
+
+	/**
+	 * Expects a login of the given user, then runs the next step.
+	 */
+	private abstract class Expect implements AsyncCallback<LoginResult> {
+		private final String user;
+
+		Expect(String user) {
+			this.user = user;
+		}
+
+		abstract void then();
+
+		@Override
+		public void onSuccess(LoginResult result) {
+			assertEquals(user, result.getUser());
+			then();
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			fail(caught.toString());
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Session tokens of {@link JsonPersonaBackend}, against a stateless login
+ * endpoint.
+ */
+public class GwtTestJsonPersonaBackend extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	private JsonPersonaBackend backend;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		final String url = GWT.getModuleBaseURL() + "token?op=";
+		backend = new JsonPersonaBackend(url + "login", url + "logout", url + "refresh");
+	}
+
+	public void testRefreshSendsToken() {
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("valid", new Step<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				backend.doRefresh(result.getUser(), new Step<LoginResult>() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						assertEquals("user@example.com", result.getUser());
+						assertNotNull(backend.getToken());
+						finishTest();
+					}
+				});
+			}
+		});
+	}
+
+	public void testRefreshWithoutTokenKeepsToken() {
+		final String url = GWT.getModuleBaseURL() + "token?op=";
+		backend = new JsonPersonaBackend(url + "login", url + "logout", url + "extend");
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("valid", new Step<LoginResult>() {
+			@Override
+			public void onSuccess(final LoginResult login) {
+				final String token = backend.getToken();
+				backend.doRefresh(login.getUser(), new Step<LoginResult>() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						assertEquals(token, backend.getToken());
+						// Only accepted if the token is still sent
+						backend.doRefresh(login.getUser(), new Step<LoginResult>() {
+							@Override
+							public void onSuccess(LoginResult result) {
+								assertEquals(token, backend.getToken());
+								finishTest();
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	public void testFailedLoginKeepsToken() {
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("valid", new Step<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				final String token = backend.getToken();
+				assertNotNull(token);
+				backend.doLogin("stale", new AsyncCallback<LoginResult>() {
+					@Override
+					public void onSuccess(LoginResult result) {
+						fail("Invalid assertion accepted");
+					}
+
+					@Override
+					public void onFailure(Throwable caught) {
+						assertEquals(token, backend.getToken());
+						finishTest();
+					}
+				});
+			}
+		});
+	}
+
+	public void testLogoutDropsToken() {
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("valid", new Step<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				backend.doLogout(new Step<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+						assertNull(backend.getToken());
+						finishTest();
+					}
+				});
+			}
+		});
+	}
+
+	public void testRejectsForbiddenLogin() {
+		final String url = GWT.getModuleBaseURL() + "token?op=denied";
+		delayTestFinish(TEST_TIMEOUT);
+		new JsonPersonaBackend(url, url).doLogin("valid", new AsyncCallback<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				fail("Forbidden login accepted");
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				assertEquals(AuthErrorCode.REJECTED, ((PersonaBackendException) caught).getCode());
+				finishTest();
+			}
+		});
+	}
+
+	/**
+	 * A step of a test, failing it on error.
+	 */
+	private abstract class Step<T> implements AsyncCallback<T> {
+		@Override
+		public void onFailure(Throwable caught) {
+			fail(caught.toString());
+		}
+	}
+
+}
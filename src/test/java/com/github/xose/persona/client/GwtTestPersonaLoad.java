@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * Login and logout cycles through {@link Persona}, with a
+ * {@link FakeNavigatorId} in place of the Persona script.
+ */
+public class GwtTestPersonaLoad extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 60000;
+
+	private FakeNavigatorId navigator;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		navigator = FakeNavigatorId.install();
+	}
+
+	@Override
+	protected void gwtTearDown() {
+		navigator.uninstall();
+	}
+
+	public void testRunsCycles() {
+		final PersonaLoadHarness harness = new PersonaLoadHarness(navigator);
+		harness.setCycles(500);
+		run(harness, 500);
+	}
+
+	public void testRunsCyclesWithLatency() {
+		final PersonaLoadHarness harness = new PersonaLoadHarness(navigator);
+		harness.setCycles(20);
+		harness.setBackendLatency(5);
+		run(harness, 20);
+	}
+
+	public void testCancelsRequest() {
+		final boolean[] cancelled = new boolean[1];
+		final HandlerRegistration registration = Persona.addAuthCancelledHandler(new AuthCancelledHandler() {
+			@Override
+			public void onAuthCancelled() {
+				cancelled[0] = true;
+			}
+		});
+
+		Persona.request();
+		assertEquals(1, navigator.getRequestCount());
+		navigator.fireCancel();
+		registration.removeHandler();
+
+		assertTrue(cancelled[0]);
+	}
+
+	private void run(PersonaLoadHarness harness, final int cycles) {
+		delayTestFinish(TEST_TIMEOUT);
+		harness.run(new AsyncCallback<PersonaLoadHarness.Report>() {
+			@Override
+			public void onSuccess(PersonaLoadHarness.Report report) {
+				assertEquals(report.toString(), cycles, report.getCycles());
+				assertEquals(0, report.getFailures());
+				assertEquals(0, report.getLeakedHandlers());
+				assertEquals(cycles, navigator.getLogoutCount());
+				assertEquals(cycles, report.getLoginLatency().getCount());
+				finishTest();
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				fail(caught.toString());
+			}
+		});
+	}
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Timeouts and retries, and how {@link JsonPersonaBackend} shares a login
+ * request with them, against a login endpoint that stalls the first request
+ * for each assertion.
+ * <p>
+ * HtmlUnit blocks timers while a request is open, so timeouts are tested
+ * with an in-memory backend.
+ */
+public class GwtTestResilientPersonaBackend extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	private JsonPersonaBackend json;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		final String url = GWT.getModuleBaseURL() + "stall";
+		json = new JsonPersonaBackend(url, url);
+	}
+
+	public void testSharesRequestInFlight() {
+		delayTestFinish(TEST_TIMEOUT);
+		json.doLogin("shared", new ExpectUser("user1@example.com", false));
+		json.doLogin("shared", new ExpectUser("user1@example.com", true));
+	}
+
+	public void testSendsNewRequestWhenAbandoned() {
+		delayTestFinish(TEST_TIMEOUT);
+		// Attaching to the stalled request would get the first reply
+		json.doLogin("abandoned", new Abandoned());
+		json.doLogin("abandoned", new ExpectUser("user2@example.com", true));
+	}
+
+	public void testAbandonsTimedOutAttempt() {
+		final List<AsyncCallback<LoginResult>> attempts = new ArrayList<AsyncCallback<LoginResult>>();
+		final ResilientPersonaBackend backend = new ResilientPersonaBackend(new PersonaBackend() {
+			@Override
+			public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+				// Only the retry is answered
+				attempts.add(callback);
+				if (attempts.size() == 2)
+					callback.onSuccess(new LoginResult("user@example.com"));
+			}
+
+			@Override
+			public void doLogout(AsyncCallback<Void> callback) {
+				callback.onSuccess(null);
+			}
+		});
+		backend.setTimeout(100);
+		backend.setRetry(2, 1, 1);
+
+		delayTestFinish(TEST_TIMEOUT);
+		backend.doLogin("assertion", new AsyncCallback<LoginResult>() {
+			@Override
+			public void onSuccess(LoginResult result) {
+				assertEquals(2, attempts.size());
+				assertTrue(((AbandonableCallback<?>) attempts.get(0)).isAbandoned());
+				finishTest();
+			}
+
+			@Override
+			public void onFailure(Throwable caught) {
+				fail(caught.toString());
+			}
+		});
+	}
+
+	/**
+	 * A caller that has given up on its login.
+	 */
+	private static final class Abandoned implements AbandonableCallback<LoginResult> {
+		@Override
+		public boolean isAbandoned() {
+			return true;
+		}
+
+		@Override
+		public void onSuccess(LoginResult result) {
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+		}
+	}
+
+	private final class ExpectUser implements AsyncCallback<LoginResult> {
+		private final String user;
+		private final boolean finish;
+
+		ExpectUser(String user, boolean finish) {
+			this.user = user;
+			this.finish = finish;
+		}
+
+		@Override
+		public void onSuccess(LoginResult result) {
+			assertEquals(user, result.getUser());
+			if (finish)
+				finishTest();
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			fail(caught.toString());
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import java.util.List;
+
+import com.github.xose.persona.client.Persona.Status;
+import com.google.common.collect.Lists;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+/**
+ * Refresh, retry and expiry scheduling of {@link SessionRefresher}, with a
+ * scripted backend and sessions of a few seconds.
+ */
+public class GwtTestSessionRefresher extends GWTTestCase {
+
+	private static final int TEST_TIMEOUT = 10000;
+
+	/** Allowed timer lateness, and earliness from clock rounding. */
+	private static final int SLACK = 150;
+
+	private static final String USER = "user@example.com";
+
+	private AuthStateMachine state;
+	private SessionRefresher refresher;
+	private List<String> refreshed;
+	private double expiredAt;
+	private double startTime;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		final SimpleEventBus eventBus = new SimpleEventBus();
+		state = new AuthStateMachine(eventBus);
+		state.restore(USER, false);
+		refresher = new SessionRefresher(eventBus, state, new ScheduledCommand() {
+			@Override
+			public void execute() {
+				expiredAt = elapsed();
+			}
+		});
+
+		refreshed = Lists.newArrayList();
+		AuthRefreshedEvent.register(eventBus, new AuthRefreshedHandler() {
+			@Override
+			public void onAuthRefreshed(AuthErrorCode error, double expires, JSONValue payload) {
+				refreshed.add(error != null ? error.name() : "OK");
+			}
+		});
+		expiredAt = -1;
+		startTime = Duration.currentTimeMillis();
+	}
+
+	@Override
+	protected void gwtTearDown() {
+		refresher.stop();
+	}
+
+	public void testRefreshesLeadAheadOfExpiry() {
+		final ScriptedBackend backend = new ScriptedBackend(new LoginResult(USER, null, startTime + 60000, "renewed"));
+		refresher.setLead(1000);
+		refresher.start(backend, new LoginResult(USER, null, startTime + 2000, "token"));
+		assertEquals("token", refresher.getToken());
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(1500, new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(1, backend.calls.size());
+				assertBetween(1000, backend.calls.get(0));
+				assertEquals(Lists.newArrayList("OK"), refreshed);
+				assertEquals(startTime + 60000, refresher.getExpires());
+				assertEquals("renewed", refresher.getToken());
+				finishTest();
+			}
+		});
+	}
+
+	public void testRefreshesAtHalfLifetimeWhenLeadTooLong() {
+		final ScriptedBackend backend = new ScriptedBackend(new LoginResult(USER, null, startTime + 60000));
+		refresher.setLead(60000);
+		refresher.start(backend, new LoginResult(USER, null, startTime + 1600, "token"));
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(1200, new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(1, backend.calls.size());
+				assertBetween(800, backend.calls.get(0));
+				// A refresh without a token keeps the current one
+				assertEquals("token", refresher.getToken());
+				finishTest();
+			}
+		});
+	}
+
+	public void testRetriesWithBackoffThenExpires() {
+		final ScriptedBackend backend = new ScriptedBackend(AuthErrorCode.SERVER, AuthErrorCode.NETWORK, AuthErrorCode.SERVER);
+		refresher.setLead(60000);
+		refresher.start(backend, new LoginResult(USER, null, startTime + 5000));
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(5500, new Runnable() {
+			@Override
+			public void run() {
+				// At half the lifetime, then 1 s later; the next retry would
+				// leave less than the minimum delay
+				assertEquals(2, backend.calls.size());
+				assertBetween(2500, backend.calls.get(0));
+				assertBetween(3500, backend.calls.get(1));
+				assertEquals(Lists.newArrayList("SERVER", "NETWORK"), refreshed);
+
+				assertBetween(5000, expiredAt);
+				assertEquals(Status.LOGGEDOUT, state.getStatus());
+				assertEquals(0.0, refresher.getExpires());
+				assertNull(refresher.getToken());
+				finishTest();
+			}
+		});
+	}
+
+	public void testExpiresAfterRejectedRefresh() {
+		final ScriptedBackend backend = new ScriptedBackend(AuthErrorCode.REJECTED);
+		refresher.setLead(60000);
+		refresher.start(backend, new LoginResult(USER, null, startTime + 1200));
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(1600, new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(1, backend.calls.size());
+				assertEquals(Lists.newArrayList("REJECTED"), refreshed);
+				// Not logged out before the session actually expires
+				assertBetween(1200, expiredAt);
+				assertEquals(Status.LOGGEDOUT, state.getStatus());
+				finishTest();
+			}
+		});
+	}
+
+	public void testExpiresWithoutRefreshableBackend() {
+		refresher.start(new NullPersonaBackend(), new LoginResult(USER, null, startTime + 500));
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(900, new Runnable() {
+			@Override
+			public void run() {
+				assertBetween(500, expiredAt);
+				assertEquals(Status.LOGGEDOUT, state.getStatus());
+				finishTest();
+			}
+		});
+	}
+
+	public void testStopsWhenUserChanges() {
+		final ScriptedBackend backend = new ScriptedBackend(new LoginResult(USER, null, startTime + 60000));
+		refresher.setLead(60000);
+		refresher.start(backend, new LoginResult(USER, null, startTime + 800));
+		state.restore("other@example.com", false);
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(1200, new Runnable() {
+			@Override
+			public void run() {
+				assertTrue(backend.calls.isEmpty());
+				assertEquals(-1.0, expiredAt);
+				assertEquals(Status.LOGGEDIN, state.getStatus());
+				assertEquals(0.0, refresher.getExpires());
+				finishTest();
+			}
+		});
+	}
+
+	public void testIgnoresSessionWithoutExpiry() {
+		final ScriptedBackend backend = new ScriptedBackend();
+		refresher.start(backend, new LoginResult(USER));
+
+		delayTestFinish(TEST_TIMEOUT);
+		after(300, new Runnable() {
+			@Override
+			public void run() {
+				assertTrue(backend.calls.isEmpty());
+				assertEquals(-1.0, expiredAt);
+				assertEquals(0.0, refresher.getExpires());
+				finishTest();
+			}
+		});
+	}
+
+	private double elapsed() {
+		return Duration.currentTimeMillis() - startTime;
+	}
+
+	private static void assertBetween(double expected, double actual) {
+		assertTrue("Expected at " + expected + " ms, was at " + actual + " ms", actual >= expected - SLACK && actual <= expected + SLACK);
+	}
+
+	private static void after(int delay, final Runnable check) {
+		Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				check.run();
+				return false;
+			}
+		}, delay);
+	}
+
+	/**
+	 * Backend answering refreshes in order with the given results or error
+	 * codes, and recording when they were called.
+	 */
+	private final class ScriptedBackend implements RefreshablePersonaBackend {
+		private final Object[] answers;
+		final List<Double> calls = Lists.newArrayList();
+
+		ScriptedBackend(Object... answers) {
+			this.answers = answers;
+		}
+
+		@Override
+		public void doRefresh(String user, AsyncCallback<LoginResult> callback) {
+			assertEquals(USER, user);
+			final Object answer = answers[calls.size()];
+			calls.add(elapsed());
+			if (answer instanceof LoginResult)
+				callback.onSuccess((LoginResult) answer);
+			else
+				callback.onFailure(new PersonaBackendException((AuthErrorCode) answer, "Refresh failed"));
+		}
+
+		@Override
+		public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+			fail("Unexpected login");
+		}
+
+		@Override
+		public void doLogout(AsyncCallback<Void> callback) {
+			fail("Unexpected logout");
+		}
+	}
+
+}
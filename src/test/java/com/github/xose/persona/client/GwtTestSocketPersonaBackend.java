@@ -0,0 +1,244 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Request framing and reply matching of {@link SocketPersonaBackend}, over an
+ * in-memory socket.
+ */
+public class GwtTestSocketPersonaBackend extends GWTTestCase {
+
+	private InMemorySocket socket;
+	private SocketPersonaBackend backend;
+
+	@Override
+	public String getModuleName() {
+		return "com.github.xose.persona.PersonaTest";
+	}
+
+	@Override
+	protected void gwtSetUp() {
+		socket = new InMemorySocket();
+		backend = new SocketPersonaBackend(socket);
+	}
+
+	public void testSendsLoginFrame() {
+		backend.doLogin("assertion", new Result<LoginResult>());
+
+		final JSONObject frame = socket.frame(0);
+		assertEquals("persona.login", JsonPersonaBackend.getString(frame, "type"));
+		assertEquals("assertion", JsonPersonaBackend.getString(frame, "assertion"));
+		assertEquals(1.0, JsonPersonaBackend.getNumber(frame, "id"));
+	}
+
+	public void testMatchesRepliesById() {
+		final Result<LoginResult> first = new Result<LoginResult>();
+		final Result<LoginResult> second = new Result<LoginResult>();
+		backend.doLogin("first", first);
+		backend.doLogin("second", second);
+
+		assertTrue(backend.onMessage(reply(socket.id(1), "\"status\":\"okay\",\"email\":\"second@example.com\"")));
+		assertTrue(backend.onMessage(reply(socket.id(0), "\"status\":\"okay\",\"email\":\"first@example.com\",\"expires\":1000")));
+
+		assertEquals("first@example.com", first.value.getUser());
+		assertEquals(1000.0, first.value.getExpires());
+		assertEquals("second@example.com", second.value.getUser());
+	}
+
+	public void testReadsPayload() {
+		final Result<LoginResult> object = new Result<LoginResult>();
+		final Result<LoginResult> none = new Result<LoginResult>();
+		backend.doLogin("object", object);
+		backend.doLogin("none", none);
+
+		backend.onMessage(reply(socket.id(0), "\"status\":\"okay\",\"email\":\"user@example.com\",\"payload\":{\"name\":\"User\"}"));
+		backend.onMessage(reply(socket.id(1), "\"status\":\"okay\",\"email\":\"user@example.com\",\"payload\":null"));
+
+		assertEquals("User", JsonPersonaBackend.getString(object.value.getPayload().isObject(), "name"));
+		assertNull(none.value.getPayload());
+	}
+
+	public void testRejectsFailedLogin() {
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doLogin("assertion", result);
+		backend.onMessage(reply(socket.id(0), "\"status\":\"failure\",\"reason\":\"expired\""));
+
+		assertEquals(AuthErrorCode.REJECTED, result.code());
+	}
+
+	public void testFailsTemporarilyOnError() {
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doLogin("assertion", result);
+		backend.onMessage(reply(socket.id(0), "\"status\":\"error\",\"reason\":\"overloaded\""));
+
+		assertEquals(AuthErrorCode.SERVER, result.code());
+		assertTrue(result.code().isRetryable());
+		assertEquals("overloaded", result.error.getMessage());
+	}
+
+	public void testRejectsReplyWithoutEmail() {
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doRefresh("user@example.com", result);
+		assertEquals("persona.refresh", JsonPersonaBackend.getString(socket.frame(0), "type"));
+
+		backend.onMessage(reply(socket.id(0), "\"status\":\"okay\""));
+
+		assertEquals(AuthErrorCode.INVALID_RESPONSE, result.code());
+	}
+
+	public void testLeavesOtherFrames() {
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doLogin("assertion", result);
+
+		assertFalse(backend.onMessage("not json"));
+		assertFalse(backend.onMessage("[1, 2]"));
+		assertFalse(backend.onMessage("{\"type\":\"chat\",\"id\":1}"));
+		assertTrue(backend.onMessage(reply(99, "\"status\":\"okay\",\"email\":\"user@example.com\"")));
+		assertFalse(result.answered);
+	}
+
+	public void testLogout() {
+		final Result<Void> result = new Result<Void>();
+		backend.doLogout(result);
+		assertEquals("persona.logout", JsonPersonaBackend.getString(socket.frame(0), "type"));
+
+		backend.onMessage(reply(socket.id(0), "\"status\":\"okay\""));
+
+		assertTrue(result.answered);
+		assertNull(result.error);
+	}
+
+	public void testFailsPendingOnClose() {
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doLogin("assertion", result);
+		backend.onClose();
+
+		assertEquals(AuthErrorCode.NETWORK, result.code());
+
+		// A late reply is ignored
+		backend.onMessage(reply(socket.id(0), "\"status\":\"okay\",\"email\":\"user@example.com\""));
+		assertNull(result.value);
+	}
+
+	public void testForgetsAbandonedRequests() {
+		final AbandonableResult<LoginResult> dropped = new AbandonableResult<LoginResult>();
+		final AbandonableResult<Void> logout = new AbandonableResult<Void>();
+		final AbandonableResult<LoginResult> waiting = new AbandonableResult<LoginResult>();
+		backend.doLogin("dropped", dropped);
+		backend.doLogout(logout);
+		backend.doLogin("waiting", waiting);
+
+		// Given up on, as ResilientPersonaBackend does on a timeout
+		dropped.abandoned = true;
+		logout.abandoned = true;
+		final Result<LoginResult> retry = new Result<LoginResult>();
+		backend.doLogin("retry", retry);
+
+		backend.onMessage(reply(socket.id(0), "\"status\":\"okay\",\"email\":\"user@example.com\""));
+		backend.onClose();
+
+		assertFalse(dropped.answered);
+		assertFalse(logout.answered);
+		assertEquals(AuthErrorCode.NETWORK, waiting.code());
+		assertEquals(AuthErrorCode.NETWORK, retry.code());
+	}
+
+	public void testFailsWhenClosed() {
+		socket.open = false;
+		final Result<LoginResult> result = new Result<LoginResult>();
+		backend.doLogin("assertion", result);
+
+		assertEquals(AuthErrorCode.NETWORK, result.code());
+	}
+
+	private static String reply(int id, String fields) {
+		return "{\"type\":\"persona.reply\",\"id\":" + id + "," + fields + "}";
+	}
+
+	/**
+	 * Socket keeping the frames sent, answered by the test itself.
+	 */
+	private static final class InMemorySocket implements PersonaSocket {
+		final List<String> frames = Lists.newArrayList();
+		boolean open = true;
+
+		@Override
+		public void send(String frame) {
+			if (!open)
+				throw new IllegalStateException("Socket closed");
+			frames.add(frame);
+		}
+
+		JSONObject frame(int index) {
+			return JSONParser.parseStrict(frames.get(index)).isObject();
+		}
+
+		int id(int index) {
+			return (int) JsonPersonaBackend.getNumber(frame(index), "id");
+		}
+	}
+
+	/**
+	 * Callback keeping its answer, whose caller can give up on it.
+	 */
+	private static final class AbandonableResult<T> extends Result<T> implements AbandonableCallback<T> {
+		boolean abandoned;
+
+		@Override
+		public boolean isAbandoned() {
+			return abandoned;
+		}
+	}
+
+	/**
+	 * Callback keeping its answer.
+	 */
+	private static class Result<T> implements AsyncCallback<T> {
+		boolean answered;
+		T value;
+		Throwable error;
+
+		@Override
+		public void onSuccess(T result) {
+			assertFalse(answered);
+			answered = true;
+			value = result;
+		}
+
+		@Override
+		public void onFailure(Throwable caught) {
+			assertFalse(answered);
+			answered = true;
+			error = caught;
+		}
+
+		AuthErrorCode code() {
+			assertTrue(error instanceof PersonaBackendException);
+			return ((PersonaBackendException) error).getCode();
+		}
+	}
+
+}
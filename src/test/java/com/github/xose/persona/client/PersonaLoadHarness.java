@@ -0,0 +1,358 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.github.xose.persona.client.PersonaMetrics.Histogram;
+import com.github.xose.persona.client.PersonaMetrics.Outcome;
+import com.github.xose.persona.client.PersonaMetrics.Phase;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.json.client.JSONValue;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.web.bindery.event.shared.HandlerRegistration;
+
+/**
+ * Load test harness for the client login flow, driven by a
+ * {@link FakeNavigatorId}.
+ * <p>
+ * Runs login and logout cycles through {@link Persona} against a backend
+ * stand-in that accepts any assertion made by
+ * {@link FakeNavigatorId#createAssertion(String)}, optionally after a given
+ * latency. Cycles run back to back, in incremental commands so that the
+ * browser stays responsive.
+ * <p>
+ * The test replaces the Persona backend and resets the Persona metrics.
+ * Handlers added by the application are called as usual, so their cost is
+ * part of the results.
+ */
+final class PersonaLoadHarness {
+
+	private static final String EMAIL = "load-test@example.com";
+
+	private static enum Step {
+		IDLE, LOGGING_IN, LOGGED_IN, LOGGING_OUT;
+	}
+
+	private final FakeNavigatorId navigator;
+
+	private int cycles = 1000;
+	private int latency;
+
+	private AsyncCallback<Report> callback;
+	private String assertion;
+	private HandlerRegistration registration;
+	private Step step = Step.IDLE;
+	private boolean pumping;
+	private int started;
+	private int completed;
+	private int failures;
+	private int baseHandlers;
+	private double startTime;
+
+	/**
+	 * Creates a new load test.
+	 * 
+	 * @param navigator
+	 *            the installed fake Persona API
+	 */
+	PersonaLoadHarness(FakeNavigatorId navigator) {
+		this.navigator = checkNotNull(navigator);
+	}
+
+	/**
+	 * Sets the number of login and logout cycles to run.
+	 * <p>
+	 * Defaults to 1000.
+	 * 
+	 * @param cycles
+	 *            the number of cycles
+	 */
+	void setCycles(int cycles) {
+		checkArgument(cycles > 0);
+		this.cycles = cycles;
+	}
+
+	/**
+	 * Sets the time the backend stand-in takes to answer.
+	 * <p>
+	 * Defaults to 0, answering synchronously.
+	 * 
+	 * @param latency
+	 *            the latency, in milliseconds
+	 */
+	void setBackendLatency(int latency) {
+		checkArgument(latency >= 0);
+		this.latency = latency;
+	}
+
+	/**
+	 * Runs the test.
+	 * <p>
+	 * Calls {@link Persona#watch()} first, so the fake must be installed
+	 * before Persona has loaded the real script.
+	 * 
+	 * @param callback
+	 *            called with the report when all cycles have run
+	 */
+	void run(AsyncCallback<Report> callback) {
+		checkState(this.callback == null, "Already running");
+		this.callback = checkNotNull(callback);
+
+		Persona.setBackend(new AcceptingBackend(latency));
+		Persona.getMetrics().reset();
+		baseHandlers = Persona.getHandlerCount();
+		registration = Persona.addHandler(new CycleHandler());
+		started = completed = failures = 0;
+		assertion = FakeNavigatorId.createAssertion(EMAIL);
+
+		Persona.watch();
+		startTime = Duration.currentTimeMillis();
+		pump();
+	}
+
+	/**
+	 * Runs steps until one completes asynchronously, in which case the pump
+	 * is restarted when it does.
+	 */
+	private void pump() {
+		Scheduler.get().scheduleIncremental(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				pumping = true;
+				try {
+					return next();
+				} finally {
+					pumping = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the next step.
+	 * 
+	 * @return true if the pump should go on, false if it waits for a step to
+	 *         complete or the test is done
+	 */
+	private boolean next() {
+		switch (step) {
+		case IDLE:
+			if (started == cycles) {
+				finish();
+				return false;
+			}
+			started++;
+			step = Step.LOGGING_IN;
+			navigator.fireLogin(assertion);
+			break;
+		case LOGGED_IN:
+			step = Step.LOGGING_OUT;
+			Persona.logout();
+			break;
+		default:
+			break;
+		}
+		return step == Step.IDLE || step == Step.LOGGED_IN;
+	}
+
+	private void onStepDone(Step next) {
+		step = next;
+		if (!pumping)
+			pump();
+	}
+
+	private void finish() {
+		final double elapsed = Duration.currentTimeMillis() - startTime;
+		registration.removeHandler();
+		final Report report = new Report(completed, failures, elapsed, Persona.getHandlerCount() - baseHandlers);
+		final AsyncCallback<Report> callback = this.callback;
+		this.callback = null;
+		callback.onSuccess(report);
+	}
+
+	private final class CycleHandler implements AuthHandler {
+		@Override
+		public void onAuthLoggedIn(String user, JSONValue payload) {
+			if (step == Step.LOGGING_IN)
+				onStepDone(Step.LOGGED_IN);
+		}
+
+		@Override
+		public void onAuthLoggedOut() {
+			if (step == Step.LOGGING_OUT) {
+				completed++;
+				onStepDone(Step.IDLE);
+			}
+		}
+
+		@Override
+		public void onAuthError(AuthErrorCode code, String message) {
+			if (step == Step.LOGGING_IN || step == Step.LOGGING_OUT) {
+				failures++;
+				onStepDone(Step.IDLE);
+			}
+		}
+
+		@Override
+		public void onAuthLoggingIn() {
+		}
+
+		@Override
+		public void onAuthLoggingOut() {
+		}
+
+		@Override
+		public void onAuthCancelled() {
+		}
+	}
+
+	/**
+	 * Backend accepting any assertion that holds an email address.
+	 */
+	private static final class AcceptingBackend implements PersonaBackend {
+		private final int latency;
+
+		AcceptingBackend(int latency) {
+			this.latency = latency;
+		}
+
+		@Override
+		public void doLogin(String assertion, final AsyncCallback<LoginResult> callback) {
+			final String email = Assertions.peekEmail(assertion);
+			answer(new Runnable() {
+				@Override
+				public void run() {
+					if (email != null)
+						callback.onSuccess(new LoginResult(email));
+					else
+						callback.onFailure(new PersonaBackendException(AuthErrorCode.REJECTED, "No email"));
+				}
+			});
+		}
+
+		@Override
+		public void doLogout(final AsyncCallback<Void> callback) {
+			answer(new Runnable() {
+				@Override
+				public void run() {
+					callback.onSuccess(null);
+				}
+			});
+		}
+
+		private void answer(final Runnable answer) {
+			if (latency == 0) {
+				answer.run();
+				return;
+			}
+
+			Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+				@Override
+				public boolean execute() {
+					answer.run();
+					return false;
+				}
+			}, latency);
+		}
+	}
+
+	/**
+	 * Load test results.
+	 * <p>
+	 * Login and logout latencies, as seen by Persona from the assertion or
+	 * logout to the backend answer, are taken from {@link PersonaMetrics}.
+	 */
+	static final class Report {
+		private final int cycles;
+		private final int failures;
+		private final double elapsed;
+		private final int leakedHandlers;
+
+		private Report(int cycles, int failures, double elapsed, int leakedHandlers) {
+			this.cycles = cycles;
+			this.failures = failures;
+			this.elapsed = elapsed;
+			this.leakedHandlers = leakedHandlers;
+		}
+
+		/**
+		 * @return the number of completed login and logout cycles
+		 */
+		int getCycles() {
+			return cycles;
+		}
+
+		/**
+		 * @return the number of failed cycles
+		 */
+		int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the total test time, in milliseconds
+		 */
+		double getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * @return the number of completed cycles per second
+		 */
+		double getThroughput() {
+			return elapsed > 0 ? cycles * 1000 / elapsed : 0;
+		}
+
+		/**
+		 * @return the successful login latencies
+		 */
+		Histogram getLoginLatency() {
+			return Persona.getMetrics().getHistogram(Phase.LOGIN, Outcome.SUCCESS);
+		}
+
+		/**
+		 * @return the successful logout latencies
+		 */
+		Histogram getLogoutLatency() {
+			return Persona.getMetrics().getHistogram(Phase.LOGOUT, Outcome.SUCCESS);
+		}
+
+		/**
+		 * Returns the number of Persona handlers added during the test and not
+		 * removed by its end. Handlers added on each login, and never removed,
+		 * show up here.
+		 * 
+		 * @return the number of leaked handlers
+		 */
+		int getLeakedHandlers() {
+			return leakedHandlers;
+		}
+
+		@Override
+		public String toString() {
+			return cycles + " cycles, " + failures + " failures in " + Math.round(elapsed) + " ms (" + Math.round(getThroughput())
+					+ "/s), login p50/p99 " + getLoginLatency().getPercentile(50) + "/" + getLoginLatency().getPercentile(99) + " ms, logout p50/p99 "
+					+ getLogoutLatency().getPercentile(50) + "/" + getLogoutLatency().getPercentile(99) + " ms, " + leakedHandlers + " leaked handlers";
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.github.xose.persona.client.PersonaMetrics.Histogram;
+import com.github.xose.persona.client.PersonaMetrics.Outcome;
+import com.github.xose.persona.client.PersonaMetrics.Phase;
+import com.google.web.bindery.event.shared.SimpleEventBus;
+
+/**
+ * Buckets and percentiles of {@link PersonaMetrics.Histogram}. Runs on the
+ * JVM, adding values directly instead of timing phases.
+ */
+public class PersonaMetricsTest {
+
+	private final PersonaMetrics metrics = new PersonaMetrics(new SimpleEventBus());
+	private final Histogram histogram = metrics.getHistogram(Phase.LOGIN, Outcome.SUCCESS);
+
+	@Test
+	public void startsEmpty() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getMin(), 0);
+		assertEquals(0.0, histogram.getMax(), 0);
+		assertEquals(0.0, histogram.getMean(), 0);
+		assertEquals(0.0, histogram.getPercentile(50), 0);
+	}
+
+	@Test
+	public void fillsBuckets() {
+		final double[] bounds = histogram.getBucketBounds();
+		// Bounds are inclusive, the last bucket is unbounded
+		add(0, bounds[0], bounds[0] + 0.5, bounds[bounds.length - 1], bounds[bounds.length - 1] + 1, 1e9);
+
+		assertEquals(2, histogram.getBucketCount(0));
+		assertEquals(1, histogram.getBucketCount(1));
+		assertEquals(1, histogram.getBucketCount(bounds.length - 1));
+		assertEquals(2, histogram.getBucketCount(bounds.length));
+
+		int total = 0;
+		for (int i = 0; i <= bounds.length; i++)
+			total += histogram.getBucketCount(i);
+		assertEquals(6, total);
+		assertEquals(6, metrics.getCount(Phase.LOGIN, Outcome.SUCCESS));
+		assertEquals(0, metrics.getCount(Phase.LOGIN, Outcome.FAILURE));
+	}
+
+	@Test
+	public void keepsStatistics() {
+		add(40, 10, 250);
+
+		assertEquals(3, histogram.getCount());
+		assertEquals(10.0, histogram.getMin(), 0);
+		assertEquals(250.0, histogram.getMax(), 0);
+		assertEquals(100.0, histogram.getMean(), 1e-9);
+	}
+
+	@Test
+	public void estimatesPercentiles() {
+		// Five in the first bucket, four in the 250 ms bucket, one outlier
+		add(10, 10, 10, 10, 10, 200, 200, 200, 200, 40000);
+
+		assertEquals(25.0, histogram.getPercentile(0), 0);
+		assertEquals(25.0, histogram.getPercentile(50), 0);
+		assertEquals(250.0, histogram.getPercentile(50.1), 0);
+		assertEquals(250.0, histogram.getPercentile(90), 0);
+		assertEquals(40000.0, histogram.getPercentile(95), 0);
+		assertEquals(40000.0, histogram.getPercentile(100), 0);
+	}
+
+	@Test
+	public void capsPercentilesToMax() {
+		add(5, 12);
+
+		assertEquals(12.0, histogram.getPercentile(50), 0);
+		assertEquals(12.0, histogram.getPercentile(99), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidPercentile() {
+		histogram.getPercentile(100.5);
+	}
+
+	@Test
+	public void copiesBounds() {
+		histogram.getBucketBounds()[0] = 1000;
+		add(30);
+		assertEquals(1, histogram.getBucketCount(1));
+	}
+
+	@Test
+	public void resets() {
+		add(10, 20000);
+		metrics.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getBucketCount(0));
+		assertEquals(0.0, histogram.getPercentile(99), 0);
+
+		add(30);
+		assertEquals(30.0, histogram.getMin(), 0);
+		assertEquals(30.0, histogram.getMax(), 0);
+	}
+
+	private void add(double... values) {
+		for (double value : values)
+			histogram.add(value);
+	}
+
+}
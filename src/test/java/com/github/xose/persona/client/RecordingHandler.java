@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import java.util.List;
+
+import com.google.gwt.json.client.JSONValue;
+
+/**
+ * Handler recording the events it receives, as the event name after a
+ * prefix, such as {@code "bus loggedIn user@example.com"}.
+ */
+class RecordingHandler implements AuthHandler {
+
+	private final List<String> events;
+	private final String prefix;
+
+	RecordingHandler(List<String> events) {
+		this(events, "");
+	}
+
+	RecordingHandler(List<String> events, String prefix) {
+		this.events = events;
+		this.prefix = prefix;
+	}
+
+	@Override
+	public void onAuthLoggedIn(String user, JSONValue payload) {
+		events.add(prefix + "loggedIn " + user);
+	}
+
+	@Override
+	public void onAuthError(AuthErrorCode code, String message) {
+		events.add(prefix + "error " + code);
+	}
+
+	@Override
+	public void onAuthLoggedOut() {
+		events.add(prefix + "loggedOut");
+	}
+
+	@Override
+	public void onAuthLoggingIn() {
+		events.add(prefix + "loggingIn");
+	}
+
+	@Override
+	public void onAuthLoggingOut() {
+		events.add(prefix + "loggingOut");
+	}
+
+	@Override
+	public void onAuthCancelled() {
+		events.add(prefix + "cancelled");
+	}
+
+}
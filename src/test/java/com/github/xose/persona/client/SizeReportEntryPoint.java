@@ -0,0 +1,33 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.client;
+
+import com.google.gwt.core.client.EntryPoint;
+
+/**
+ * Application using Persona with its default backend, to compare the size of
+ * each {@code persona.backend} permutation.
+ */
+public class SizeReportEntryPoint implements EntryPoint {
+
+	@Override
+	public void onModuleLoad() {
+		Persona.watch();
+	}
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.client;
+
+import javax.annotation.Nullable;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+/**
+ * Local backend answering every call the same way after a fixed latency.
+ */
+final class StandInBackend implements PersonaBackend {
+
+	private final String user;
+	private final AuthErrorCode error;
+	private final int latency;
+
+	int logins;
+	int logouts;
+
+	private StandInBackend(@Nullable String user, @Nullable AuthErrorCode error, int latency) {
+		this.user = user;
+		this.error = error;
+		this.latency = latency;
+	}
+
+	/**
+	 * Creates a backend logging in the given user.
+	 */
+	static StandInBackend succeeding(String user, int latency) {
+		return new StandInBackend(user, null, latency);
+	}
+
+	/**
+	 * Creates a backend failing every call with the given error.
+	 */
+	static StandInBackend failing(AuthErrorCode error, int latency) {
+		return new StandInBackend(null, error, latency);
+	}
+
+	@Override
+	public void doLogin(String assertion, AsyncCallback<LoginResult> callback) {
+		logins++;
+		answer(callback, error == null ? new LoginResult(user) : null);
+	}
+
+	@Override
+	public void doLogout(AsyncCallback<Void> callback) {
+		logouts++;
+		answer(callback, null);
+	}
+
+	private <T> void answer(final AsyncCallback<T> callback, final T result) {
+		Scheduler.get().scheduleFixedDelay(new RepeatingCommand() {
+			@Override
+			public boolean execute() {
+				if (error != null)
+					callback.onFailure(new PersonaBackendException(error, error.name()));
+				else
+					callback.onSuccess(result);
+				return false;
+			}
+		}, latency);
+	}
+
+}
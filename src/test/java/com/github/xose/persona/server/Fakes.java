@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Stand-ins for container interfaces, such as servlet requests.
+ * <p>
+ * A stand-in forwards each call to the method of the same signature of a
+ * plain target object, so only the methods a test needs are written. Other
+ * calls return null, false or zero.
+ */
+final class Fakes {
+
+	private Fakes() {
+	}
+
+	/**
+	 * Creates a stand-in for an interface.
+	 * 
+	 * @param type
+	 *            the interface
+	 * @param target
+	 *            the object implementing the methods used
+	 * @return the stand-in
+	 */
+	static <T> T of(Class<T> type, final Object target) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final Method implementation;
+				try {
+					implementation = target.getClass().getDeclaredMethod(method.getName(), method.getParameterTypes());
+				} catch (NoSuchMethodException e) {
+					if ("toString".equals(method.getName()))
+						return target.toString();
+					return defaultValue(method.getReturnType());
+				}
+
+				implementation.setAccessible(true);
+				try {
+					return implementation.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		return null;
+	}
+
+}
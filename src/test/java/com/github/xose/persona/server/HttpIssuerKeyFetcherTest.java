@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.security.PublicKey;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpIssuerKeyFetcherTest {
+
+	private static final PublicKey KEY = TestIdp.generate("RSA", 1024).getPublic();
+
+	private final Map<String, String> documents = Maps.newHashMap();
+	private HttpServer server;
+	private HttpIssuerKeyFetcher fetcher;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				final String document = documents.get(exchange.getRequestURI().getPath().substring(1));
+				final byte[] body = document != null ? document.getBytes(Charsets.UTF_8) : new byte[0];
+				exchange.sendResponseHeaders(document != null ? 200 : 404, body.length > 0 ? body.length : -1);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		// Serves each issuer document from the local server
+		fetcher = new HttpIssuerKeyFetcher() {
+			@Override
+			protected URL getUrl(String issuer) throws MalformedURLException {
+				return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/" + issuer);
+			}
+
+			@Override
+			protected boolean isAllowed(InetAddress address) {
+				return true;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void fetchesKey() throws Exception {
+		documents.put("example.com", "{\"public-key\":" + TestIdp.toJson(KEY) + "}");
+		assertEquals(KEY, fetcher.fetch("example.com"));
+	}
+
+	@Test
+	public void followsAuthority() throws Exception {
+		documents.put("example.com", "{\"authority\":\"idp.example.net\"}");
+		documents.put("idp.example.net", "{\"authority\":\"keys.example.net\"}");
+		documents.put("keys.example.net", "{\"public-key\":" + TestIdp.toJson(KEY) + "}");
+		assertEquals(KEY, fetcher.fetch("example.com"));
+	}
+
+	@Test
+	public void rejectsDelegationLoop() throws Exception {
+		documents.put("a.example.com", "{\"authority\":\"b.example.com\"}");
+		documents.put("b.example.com", "{\"authority\":\"a.example.com\"}");
+		assertFails("a.example.com", "Too many authority delegations for a.example.com");
+	}
+
+	@Test
+	public void rejectsDisabled() throws Exception {
+		documents.put("example.com", "{\"disabled\":true}");
+		assertFails("example.com", "Persona support disabled for example.com");
+	}
+
+	@Test
+	public void rejectsLargeDocument() throws Exception {
+		documents.put("example.com", "{\"public-key\":" + TestIdp.toJson(KEY) + ",\"x\":\"" + Strings.repeat("x", 70000) + "\"}");
+		assertFails("example.com", "Support document too large for example.com");
+	}
+
+	@Test
+	public void rejectsMissingDocument() throws Exception {
+		assertFails("example.com", "Cannot fetch support document for example.com: HTTP 404");
+	}
+
+	@Test
+	public void rejectsInvalidIssuer() throws Exception {
+		assertFails("example.com:8080", "Invalid issuer: example.com:8080");
+		assertFails("user@example.com", "Invalid issuer: user@example.com");
+		assertFails("localhost", "Invalid issuer: localhost");
+	}
+
+	@Test
+	public void rejectsInternalHosts() throws Exception {
+		final HttpIssuerKeyFetcher fetcher = new HttpIssuerKeyFetcher() {
+			@Override
+			protected URL getUrl(String issuer) throws MalformedURLException {
+				return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/" + issuer);
+			}
+		};
+		documents.put("example.com", "{\"public-key\":" + TestIdp.toJson(KEY) + "}");
+		try {
+			fetcher.fetch("example.com");
+			fail();
+		} catch (VerificationException e) {
+			assertTrue(e.getMessage().startsWith("Issuer host not allowed"));
+		}
+	}
+
+	@Test
+	public void rejectsPrivateRanges() throws Exception {
+		final HttpIssuerKeyFetcher fetcher = new HttpIssuerKeyFetcher();
+		for (String address : new String[] { "10.0.0.1", "172.16.0.1", "192.168.0.1", "169.254.169.254", "100.64.0.1", "100.127.255.255",
+				"fc00::1", "fd12:3456::1", "fe80::1", "::1", "0.0.0.0" }) {
+			assertFalse(address, fetcher.isAllowed(InetAddress.getByName(address)));
+		}
+		for (String address : new String[] { "8.8.8.8", "100.63.255.255", "100.128.0.0", "2001:4860:4860::8888", "fb00::1" }) {
+			assertTrue(address, fetcher.isAllowed(InetAddress.getByName(address)));
+		}
+	}
+
+	@Test
+	public void checksConnectedAddress() throws Exception {
+		final SSLSocketFactory tls = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		final Socket rejected = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+		try {
+			new HttpIssuerKeyFetcher.CheckedSocketFactory(new HttpIssuerKeyFetcher(), tls).createSocket(rejected, "example.com", 443, true);
+			fail();
+		} catch (HttpIssuerKeyFetcher.HostNotAllowedException e) {
+			assertTrue(rejected.isClosed());
+		}
+
+		final Socket allowed = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+		final Socket layered = new HttpIssuerKeyFetcher.CheckedSocketFactory(fetcher, tls).createSocket(allowed, "example.com", 443, true);
+		assertTrue(layered instanceof SSLSocket);
+		layered.close();
+	}
+
+	private void assertFails(String issuer, String message) {
+		try {
+			fetcher.fetch(issuer);
+			fail();
+		} catch (VerificationException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.security.PublicKey;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class IssuerKeyCacheTest {
+
+	private static final PublicKey KEY = TestIdp.generate("RSA", 1024).getPublic();
+	private static final PublicKey NEW_KEY = TestIdp.generate("RSA", 1024).getPublic();
+
+	private final FakeTicker ticker = new FakeTicker();
+	private final Executor executor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private PublicKey key;
+	private VerificationException error;
+	private int fetches;
+	private IssuerKeyCache cache;
+
+	@Before
+	public void setUp() {
+		key = KEY;
+		cache = new IssuerKeyCache(new IssuerKeyFetcher() {
+			@Override
+			public PublicKey fetch(String issuer) throws VerificationException {
+				fetches++;
+				if (error != null)
+					throw error;
+				return key;
+			}
+		}, 1000, TimeUnit.SECONDS, executor, ticker);
+	}
+
+	@Test
+	public void cachesKey() throws Exception {
+		assertSame(KEY, cache.resolve("example.com"));
+		ticker.advance(700);
+		assertSame(KEY, cache.resolve("example.com"));
+		assertEquals(1, fetches);
+	}
+
+	@Test
+	public void refreshesKey() throws Exception {
+		cache.resolve("example.com");
+		key = NEW_KEY;
+
+		// The refresh runs on the executor, here before returning the old key
+		ticker.advance(800);
+		assertSame(KEY, cache.resolve("example.com"));
+		assertSame(NEW_KEY, cache.resolve("example.com"));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void servesStaleKeyWhileFailing() throws Exception {
+		cache.resolve("example.com");
+		error = new VerificationException("Cannot fetch");
+
+		ticker.advance(1500);
+		assertSame(KEY, cache.resolve("example.com"));
+		assertSame(KEY, cache.resolve("example.com"));
+		assertEquals("Failed refreshes are not retried on every lookup", 2, fetches);
+
+		ticker.advance(600);
+		assertFails("example.com", "Cannot fetch");
+	}
+
+	@Test
+	public void remembersFailures() throws Exception {
+		error = new VerificationException("Cannot fetch");
+		assertFails("example.com", "Cannot fetch");
+		assertFails("example.com", "Cannot fetch");
+		assertEquals(1, fetches);
+
+		error = null;
+		ticker.advance(IssuerKeyCache.FAILURE_TTL / 1000 + 1);
+		assertSame(KEY, cache.resolve("example.com"));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void remembersTemporaryFailuresBriefly() throws Exception {
+		error = new VerificationException("Cannot fetch", null, true);
+		assertFails("example.com", "Cannot fetch");
+		assertFails("example.com", "Cannot fetch");
+		assertEquals(1, fetches);
+
+		error = null;
+		ticker.advance(IssuerKeyCache.TEMPORARY_FAILURE_TTL / 1000 + 1);
+		assertSame(KEY, cache.resolve("example.com"));
+		assertEquals(2, fetches);
+	}
+
+	@Test
+	public void remembersPermanentFailuresLonger() throws Exception {
+		error = new VerificationException("Cannot fetch");
+		assertFails("example.com", "Cannot fetch");
+
+		error = null;
+		ticker.advance(IssuerKeyCache.TEMPORARY_FAILURE_TTL / 1000 + 1);
+		assertFails("example.com", "Cannot fetch");
+		assertEquals(1, fetches);
+	}
+
+	@Test
+	public void invalidateForgetsFailures() throws Exception {
+		error = new VerificationException("Cannot fetch");
+		assertFails("example.com", "Cannot fetch");
+
+		error = null;
+		cache.invalidate("example.com");
+		assertSame(KEY, cache.resolve("example.com"));
+	}
+
+	private void assertFails(String issuer, String message) {
+		try {
+			cache.resolve(issuer);
+			fail();
+		} catch (VerificationException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	private static final class FakeTicker extends Ticker {
+		private long nanos;
+
+		void advance(long seconds) {
+			nanos += TimeUnit.SECONDS.toNanos(seconds);
+		}
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+	}
+
+}
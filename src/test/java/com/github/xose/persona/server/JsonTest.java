@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class JsonTest {
+
+	@Test
+	public void parsesObject() throws Exception {
+		final Map<String, Object> map = Json.parseObject("{\"a\": [1, 2.5, \"x\\u0041\"], \"b\": {\"c\": true, \"d\": null}}");
+		assertEquals(Arrays.<Object> asList(1L, 2.5, "xA"), map.get("a"));
+		final Map<String, Object> b = Json.getObject(map, "b");
+		assertEquals(Boolean.TRUE, b.get("c"));
+		assertTrue(b.containsKey("d"));
+		assertNull(b.get("d"));
+	}
+
+	@Test
+	public void limitsNesting() throws Exception {
+		final String nested = Strings.repeat("[", Json.MAX_DEPTH - 1) + Strings.repeat("]", Json.MAX_DEPTH - 1);
+		assertEquals(1, Json.parseObject("{\"a\":" + nested + "}").size());
+
+		assertInvalid("{\"a\":" + Strings.repeat("[", Json.MAX_DEPTH) + Strings.repeat("]", Json.MAX_DEPTH) + "}");
+		assertInvalid("{\"a\":" + Strings.repeat("[", 100000) + "}");
+		assertInvalid(Strings.repeat("{\"a\":", 100000));
+	}
+
+	@Test
+	public void rejectsInvalidJson() {
+		assertInvalid("");
+		assertInvalid("[]");
+		assertInvalid("{\"a\":1,}");
+		assertInvalid("{\"a\":1} x");
+		assertInvalid("{\"a\":\"\\x\"}");
+		assertInvalid("{\"a\":\"unterminated}");
+	}
+
+	private static void assertInvalid(String text) {
+		try {
+			Json.parseObject(text);
+			fail("Parsed " + text);
+		} catch (VerificationException e) {
+			// Expected
+		}
+	}
+
+}
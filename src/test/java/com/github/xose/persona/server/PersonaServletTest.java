@@ -0,0 +1,479 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class PersonaServletTest {
+
+	private static final String AUDIENCE = "https://rp.example.org";
+	private static final String EMAIL = "user@example.com";
+
+	private static final TestIdp idp = new TestIdp("example.com");
+	private static final KeyPair user = TestIdp.generate("RSA", 1024);
+
+	private final ManualExecutor executor = new ManualExecutor();
+
+	/** Thrown by the issuer key lookup, if set. */
+	private VerificationException keyFailure;
+	/** Run during the issuer key lookup, if set. */
+	private Runnable onKeyLookup;
+	/** Thrown by onLogin, if set. */
+	private RuntimeException loginFailure;
+	private int logins;
+	private long expires;
+
+	private PersonaServlet servlet;
+
+	@Before
+	public void setUp() throws ServletException {
+		// A single permit, so a leaked permit shows as a busy server
+		servlet = newServlet(ImmutableMap.of("audience", AUDIENCE, "maxPending", "1"));
+		expires = System.currentTimeMillis() + 60000;
+	}
+
+	@Test(expected = ServletException.class)
+	public void requiresAudience() throws ServletException {
+		newServlet(ImmutableMap.of("maxPending", "1"));
+	}
+
+	@Test
+	public void logsIn() throws Exception {
+		final Exchange login = login(assertion(AUDIENCE));
+		assertFalse(login.request.async.completed);
+		executor.runAll();
+
+		assertEquals(HttpServletResponse.SC_OK, login.response.status);
+		assertEquals(EMAIL, login.reply().get("email"));
+		assertEquals(EMAIL, login.request.session.attributes.get(PersonaServlet.USER_ATTRIBUTE));
+		assertTrue(login.request.async.completed);
+		assertPermitFree();
+	}
+
+	@Test
+	public void renewsSession() throws Exception {
+		final Exchange login = new Exchange("/login");
+		login.request.parameters.put("assertion", assertion(AUDIENCE));
+		final Session old = login.request.newSession();
+		login.post();
+		executor.runAll();
+
+		assertTrue(old.invalidated);
+		assertNotSame(old, login.request.session);
+		assertEquals(EMAIL, login.request.session.attributes.get(PersonaServlet.USER_ATTRIBUTE));
+	}
+
+	@Test
+	public void rejectsInvalidAssertion() throws Exception {
+		final Exchange login = login(assertion("https://evil.example.org"));
+		executor.runAll();
+
+		assertEquals(HttpServletResponse.SC_OK, login.response.status);
+		assertEquals("failure", login.reply().get("status"));
+		assertEquals("Audience mismatch", login.reply().get("reason"));
+		assertNull(login.request.session);
+		assertPermitFree();
+	}
+
+	@Test
+	public void answersTemporaryFailureWithServiceUnavailable() throws Exception {
+		keyFailure = new VerificationException("Issuer unreachable", null, true);
+		final Exchange login = login(assertion(AUDIENCE));
+		executor.runAll();
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, login.response.status);
+		assertEquals(0, logins);
+		keyFailure = null;
+		assertPermitFree();
+	}
+
+	@Test
+	public void answersBusyWhenPermitsTaken() throws Exception {
+		final Exchange first = login(assertion(AUDIENCE));
+		final Exchange second = login(assertion(AUDIENCE));
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, second.response.status);
+		assertEquals("1", second.response.headers.get("Retry-After"));
+		assertNull(second.request.async);
+
+		executor.runAll();
+		assertEquals(EMAIL, first.reply().get("email"));
+	}
+
+	@Test
+	public void answersBusyWhenExecutorRejects() throws Exception {
+		executor.rejecting = true;
+		final Exchange login = login(assertion(AUDIENCE));
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, login.response.status);
+		assertTrue(login.request.async.completed);
+		executor.rejecting = false;
+		assertPermitFree();
+	}
+
+	@Test
+	public void releasesPermitOnTimeout() throws Exception {
+		final Exchange login = login(assertion(AUDIENCE));
+		login.request.async.timeOut();
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, login.response.status);
+		assertEquals("Verification timed out", login.reply().get("reason"));
+		assertTrue(login.request.async.completed);
+
+		// The queued task gives the permit back without logging in
+		executor.runAll();
+		assertEquals(0, logins);
+		assertPermitFree();
+	}
+
+	@Test
+	public void claimsResponseBeforeLoggingIn() throws Exception {
+		final Exchange login = login(assertion(AUDIENCE));
+		// The client is told the login timed out while it is being verified
+		onKeyLookup = new Runnable() {
+			@Override
+			public void run() {
+				login.request.async.timeOut();
+			}
+		};
+		executor.runAll();
+
+		assertEquals(0, logins);
+		assertNull(login.request.session);
+		assertEquals("Verification timed out", login.reply().get("reason"));
+		onKeyLookup = null;
+		assertPermitFree();
+	}
+
+	@Test
+	public void releasesPermitOnError() throws Exception {
+		loginFailure = new IllegalStateException("Session store down");
+		final Exchange login = login(assertion(AUDIENCE));
+		executor.runAll();
+
+		assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, login.response.status);
+		assertTrue(login.request.async.completed);
+		loginFailure = null;
+		assertPermitFree();
+	}
+
+	@Test
+	public void releasesPermitWhenAsyncFails() throws Exception {
+		final Exchange login = new Exchange("/login");
+		login.request.parameters.put("assertion", assertion(AUDIENCE));
+		login.request.asyncFailure = new IllegalStateException("Async not supported");
+		try {
+			login.post();
+			fail();
+		} catch (IllegalStateException e) {
+			assertPermitFree();
+		}
+	}
+
+	private PersonaServlet newServlet(final Map<String, String> parameters) throws ServletException {
+		final PersonaServlet servlet = new PersonaServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Verifier createVerifier() {
+				final IssuerKeyResolver keys = new IssuerKeyResolver() {
+					@Override
+					public PublicKey resolve(String issuer) throws VerificationException {
+						if (onKeyLookup != null)
+							onKeyLookup.run();
+						if (keyFailure != null)
+							throw keyFailure;
+						return idp.getPublicKey();
+					}
+				};
+				return new Verifier(keys, ImmutableSet.<String> of(), new ReplayCache(1000));
+			}
+
+			@Override
+			protected ExecutorService createExecutor() {
+				return executor;
+			}
+
+			@Override
+			protected void onLogin(HttpServletRequest request, VerifiedAssertion assertion) {
+				if (loginFailure != null)
+					throw loginFailure;
+				logins++;
+				super.onLogin(request, assertion);
+			}
+		};
+
+		final ServletContext context = Fakes.of(ServletContext.class, new Object());
+		servlet.init(Fakes.of(ServletConfig.class, new Object() {
+			@SuppressWarnings("unused")
+			String getInitParameter(String name) {
+				return parameters.get(name);
+			}
+
+			@SuppressWarnings("unused")
+			ServletContext getServletContext() {
+				return context;
+			}
+
+			@SuppressWarnings("unused")
+			String getServletName() {
+				return "persona";
+			}
+		}));
+		return servlet;
+	}
+
+	/**
+	 * Creates a new assertion, as each can only be used once.
+	 */
+	private String assertion(String audience) {
+		expires++;
+		return TestIdp.assertion(idp.certify(EMAIL, user.getPublic(), expires), user, audience, expires);
+	}
+
+	private Exchange login(String assertion) throws ServletException, IOException {
+		final Exchange login = new Exchange("/login");
+		login.request.parameters.put("assertion", assertion);
+		login.post();
+		return login;
+	}
+
+	/**
+	 * Checks that the only permit is available, by verifying another login.
+	 */
+	private void assertPermitFree() throws ServletException, IOException, VerificationException {
+		final Exchange login = login(assertion(AUDIENCE));
+		executor.runAll();
+		assertEquals(EMAIL, login.reply().get("email"));
+	}
+
+	private final class Exchange {
+		final Request request;
+		final Response response = new Response();
+
+		Exchange(String path) {
+			request = new Request(path);
+		}
+
+		void post() throws ServletException, IOException {
+			servlet.doPost(request.proxy, response.proxy);
+		}
+
+		Map<String, Object> reply() throws VerificationException {
+			return Json.parseObject(response.body.toString());
+		}
+	}
+
+	/**
+	 * Executor running its tasks when told to.
+	 */
+	private static final class ManualExecutor extends AbstractExecutorService {
+		private final List<Runnable> tasks = Lists.newArrayList();
+		boolean rejecting;
+
+		@Override
+		public void execute(Runnable command) {
+			if (rejecting)
+				throw new RejectedExecutionException();
+			tasks.add(command);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.remove(0).run();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return false;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return false;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static final class Request {
+		final HttpServletRequest proxy = Fakes.of(HttpServletRequest.class, this);
+		final Map<String, String> parameters = Maps.newHashMap();
+		final String path;
+		Session session;
+		Async async;
+		RuntimeException asyncFailure;
+
+		Request(String path) {
+			this.path = path;
+		}
+
+		Session newSession() {
+			session = new Session();
+			return session;
+		}
+
+		String getPathInfo() {
+			return path;
+		}
+
+		String getParameter(String name) {
+			return parameters.get(name);
+		}
+
+		HttpSession getSession(boolean create) {
+			if (session != null && session.invalidated)
+				session = null;
+			if (session == null && create)
+				newSession();
+			return session != null ? session.proxy : null;
+		}
+
+		AsyncContext startAsync() {
+			if (asyncFailure != null)
+				throw asyncFailure;
+			async = new Async();
+			return async.proxy;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static final class Session {
+		final HttpSession proxy = Fakes.of(HttpSession.class, this);
+		final Map<String, Object> attributes = Maps.newHashMap();
+		boolean invalidated;
+
+		Object getAttribute(String name) {
+			return attributes.get(name);
+		}
+
+		void setAttribute(String name, Object value) {
+			attributes.put(name, value);
+		}
+
+		void invalidate() {
+			invalidated = true;
+		}
+
+		int getMaxInactiveInterval() {
+			return 1800;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static final class Async {
+		final AsyncContext proxy = Fakes.of(AsyncContext.class, this);
+		final List<AsyncListener> listeners = Lists.newArrayList();
+		boolean completed;
+
+		void addListener(AsyncListener listener) {
+			listeners.add(listener);
+		}
+
+		void complete() {
+			completed = true;
+		}
+
+		void timeOut() {
+			for (AsyncListener listener : listeners) {
+				try {
+					listener.onTimeout(new AsyncEvent(proxy));
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static final class Response {
+		final HttpServletResponse proxy = Fakes.of(HttpServletResponse.class, this);
+		final Map<String, String> headers = Maps.newHashMap();
+		int status = HttpServletResponse.SC_OK;
+		StringWriter body = new StringWriter();
+
+		void setStatus(int status) {
+			this.status = status;
+		}
+
+		void setHeader(String name, String value) {
+			headers.put(name, value);
+		}
+
+		PrintWriter getWriter() {
+			return new PrintWriter(body);
+		}
+
+		void reset() {
+			status = HttpServletResponse.SC_OK;
+			headers.clear();
+			body = new StringWriter();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.xose.persona.server.ReplayCache.Result;
+import com.google.common.collect.Lists;
+
+public class ReplayCacheTest {
+
+	@Test
+	public void rejectsReplay() {
+		final ReplayCache cache = new ReplayCache(100);
+		assertEquals(Result.ADDED, cache.add("a.b.c~d.e.f", 2000, 1000));
+		assertEquals(Result.ADDED, cache.add("a.b.c~d.e.g", 2000, 1000));
+		assertEquals(Result.REPLAYED, cache.add("a.b.c~d.e.f", 2000, 1500));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void reusesExpiredEntry() {
+		// One stripe of 8 slots, holding up to 6 entries
+		final ReplayCache cache = new ReplayCache(6, 1);
+		assertEquals(Result.ADDED, cache.add(1, 0, 10, 0));
+		assertEquals(Result.REPLAYED, cache.add(1, 0, 10, 9));
+
+		// Once expired, the same digest is accepted again, in the same slot
+		assertEquals(Result.ADDED, cache.add(1, 0, 30, 10));
+		assertEquals(Result.REPLAYED, cache.add(1, 0, 30, 20));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void failsClosedWhenFull() {
+		final ReplayCache cache = new ReplayCache(6, 1);
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Result.ADDED, cache.add(1, i, 100, 0));
+		}
+
+		assertEquals(Result.FULL, cache.add(1, 6, 100, 50));
+		for (int i = 0; i < 6; i++) {
+			assertEquals("Full cache forgot an entry", Result.REPLAYED, cache.add(1, i, 100, 50));
+		}
+
+		// Expired entries are purged to make room
+		assertEquals(Result.ADDED, cache.add(1, 6, 200, 100));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void shiftsBackOnDelete() {
+		final ReplayCache cache = new ReplayCache(6, 1);
+
+		// Home slot 0: slots 0, 1 and 3, home slot 1: slot 2
+		assertEquals(Result.ADDED, cache.add(1, 0, 10, 0));
+		assertEquals(Result.ADDED, cache.add(2, 0, 100, 0));
+		assertEquals(Result.ADDED, cache.add(3, 1, 100, 0));
+		assertEquals(Result.ADDED, cache.add(4, 8, 100, 0));
+		// Slots 5 and 6, then wrapping around from slot 7 to slot 4
+		assertEquals(Result.ADDED, cache.add(5, 5, 100, 0));
+		assertEquals(Result.ADDED, cache.add(6, 7, 100, 0));
+
+		// Purges slot 0, shifting back the probe sequences of slots 0 and 1
+		assertEquals(Result.ADDED, cache.add(7, 15, 100, 50));
+		assertEquals(6, cache.size());
+
+		assertEquals(Result.REPLAYED, cache.add(2, 0, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(3, 1, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(4, 8, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(5, 5, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(6, 7, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(7, 15, 100, 50));
+		assertEquals(Result.FULL, cache.add(8, 0, 100, 50));
+	}
+
+	@Test
+	public void shiftsBackAcrossWrapAround() {
+		final ReplayCache cache = new ReplayCache(6, 1);
+
+		// Home slot 7: slots 7, 0 and 1
+		assertEquals(Result.ADDED, cache.add(1, 7, 10, 0));
+		assertEquals(Result.ADDED, cache.add(2, 7, 100, 0));
+		assertEquals(Result.ADDED, cache.add(3, 15, 100, 0));
+		// Home slot 0, after them
+		assertEquals(Result.ADDED, cache.add(4, 0, 100, 0));
+		assertEquals(Result.ADDED, cache.add(5, 4, 100, 0));
+		assertEquals(Result.ADDED, cache.add(6, 5, 100, 0));
+
+		assertEquals(Result.ADDED, cache.add(7, 6, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(2, 7, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(3, 15, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(4, 0, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(5, 4, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(6, 5, 100, 50));
+		assertEquals(Result.REPLAYED, cache.add(7, 6, 100, 50));
+	}
+
+	@Test
+	public void acceptsEachAssertionOnceUnderContention() throws Exception {
+		final ReplayCache cache = new ReplayCache(100000);
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicInteger replayed = new AtomicInteger();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<?>> futures = Lists.newArrayList();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < 10000; i++) {
+							switch (cache.add("assertion." + i, 2000, 1000)) {
+							case ADDED:
+								added.incrementAndGet();
+								break;
+							case REPLAYED:
+								replayed.incrementAndGet();
+								break;
+							default:
+								throw new AssertionError("Full");
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(10000, added.get());
+		assertEquals(70000, replayed.get());
+		assertEquals(10000, cache.size());
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+
+public class SessionTokensTest {
+
+	private static final String EMAIL = "user@example.com";
+	private static final long EXPIRES = 1400000000000L;
+
+	private static final byte[] OLD_KEY = key(32, 1);
+	private static final byte[] NEW_KEY = key(32, 2);
+
+	private final SessionTokens tokens = new SessionTokens(ImmutableMap.of("old", OLD_KEY, "new", NEW_KEY), "new");
+
+	@Test
+	public void matchesHmacSha256() throws Exception {
+		// Keys longer than the block size are hashed first
+		for (byte[] key : new byte[][] { key(1, 3), key(32, 4), key(64, 5), key(100, 6) }) {
+			final String token = new SessionTokens(ImmutableMap.of("k", key), "k").issue(EMAIL, EXPIRES);
+			final int mac = token.lastIndexOf('.');
+
+			final Mac expected = Mac.getInstance("HmacSHA256");
+			expected.init(new SecretKeySpec(key, "HmacSHA256"));
+			final byte[] digest = expected.doFinal(token.substring(0, mac).getBytes(Charsets.US_ASCII));
+			assertEquals(BaseEncoding.base64Url().omitPadding().encode(digest), token.substring(mac + 1));
+		}
+	}
+
+	@Test
+	public void issuesVerifiableToken() {
+		final String token = tokens.issue(EMAIL, EXPIRES);
+		assertTrue(token.startsWith("new." + EXPIRES + "."));
+		assertTrue(tokens.verify(token, EXPIRES - 1));
+		assertEquals(EMAIL, tokens.getEmail(token, EXPIRES - 1));
+	}
+
+	@Test
+	public void acceptsRetiredKey() {
+		// Issued before signing switched to the new key
+		final String token = new SessionTokens(ImmutableMap.of("old", OLD_KEY), "old").issue(EMAIL, EXPIRES);
+		assertEquals(EMAIL, tokens.getEmail(token, EXPIRES - 1));
+
+		// Rejected once the old key is removed
+		assertFalse(new SessionTokens(ImmutableMap.of("new", NEW_KEY), "new").verify(token, EXPIRES - 1));
+	}
+
+	@Test
+	public void rejectsExpiredToken() {
+		final String token = tokens.issue(EMAIL, EXPIRES);
+		assertFalse(tokens.verify(token, EXPIRES));
+		assertNull(tokens.getEmail(token, EXPIRES + 1));
+	}
+
+	@Test
+	public void rejectsUnknownKey() {
+		final String token = new SessionTokens(ImmutableMap.of("other", NEW_KEY), "other").issue(EMAIL, EXPIRES);
+		assertFalse(tokens.verify(token, EXPIRES - 1));
+
+		// Same key id, different key
+		assertFalse(tokens.verify(new SessionTokens(ImmutableMap.of("new", OLD_KEY), "new").issue(EMAIL, EXPIRES), EXPIRES - 1));
+	}
+
+	@Test
+	public void rejectsTamperedToken() {
+		final String token = tokens.issue(EMAIL, EXPIRES);
+		final String later = tokens.issue(EMAIL, EXPIRES * 2);
+		final String other = tokens.issue("admin@example.com", EXPIRES);
+
+		// Each part taken from another valid token
+		assertFalse(tokens.verify(replacePart(token, 1, String.valueOf(EXPIRES * 2)), EXPIRES - 1));
+		assertFalse(tokens.verify(replacePart(token, 2, other.split("\\.")[2]), EXPIRES - 1));
+		assertFalse(tokens.verify(replacePart(token, 3, later.split("\\.")[3]), EXPIRES - 1));
+
+		// Every single character changed
+		for (int i = 0; i < token.length(); i++) {
+			final char c = token.charAt(i);
+			final String tampered = token.substring(0, i) + (c == 'A' ? 'B' : 'A') + token.substring(i + 1);
+			assertFalse(tampered, tokens.verify(tampered, EXPIRES - 1));
+		}
+
+		assertFalse(tokens.verify(token + "A", EXPIRES - 1));
+		assertFalse(tokens.verify(token.substring(0, token.length() - 1), EXPIRES - 1));
+		assertFalse(tokens.verify(token.replace('.', 'é'), EXPIRES - 1));
+		assertFalse(tokens.verify("", EXPIRES - 1));
+	}
+
+	@Test
+	public void verifiesWithoutAllocating() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+		final String token = tokens.issue(EMAIL, EXPIRES);
+		final String tampered = token.substring(0, token.length() - 1) + (token.endsWith("A") ? 'B' : 'A');
+		final long id = Thread.currentThread().getId();
+
+		// Warm up the per-thread buffers, and let the JIT compile verify
+		boolean valid = true;
+		for (int i = 0; i < 20000; i++) {
+			valid &= tokens.verify(token, EXPIRES - 1) & !tokens.verify(tampered, EXPIRES - 1);
+		}
+
+		final int runs = 10000;
+		final long before = allocations.getThreadAllocatedBytes(id);
+		for (int i = 0; i < runs; i++) {
+			valid &= tokens.verify(token, EXPIRES - 1) & !tokens.verify(tampered, EXPIRES - 1);
+		}
+		final long allocated = allocations.getThreadAllocatedBytes(id) - before;
+
+		assertTrue(valid);
+		// Allows for the measurement itself, far less than a byte per call
+		assertTrue(allocated + " bytes allocated", allocated < runs);
+	}
+
+	private static String replacePart(String token, int index, String part) {
+		final String[] parts = token.split("\\.");
+		parts[index] = part;
+		return parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+	}
+
+	private static byte[] key(int length, long seed) {
+		final byte[] key = new byte[length];
+		new Random(seed).nextBytes(key);
+		return key;
+	}
+
+}
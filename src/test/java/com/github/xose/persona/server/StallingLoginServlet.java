@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Login endpoint for client tests that stalls the first request for each
+ * assertion.
+ * <p>
+ * Every assertion is accepted, and the email tells which request for that
+ * assertion was answered: {@code user1@example.com} for the first one,
+ * {@code user2@example.com} for the second one, and so on.
+ */
+public class StallingLoginServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The time the first request for an assertion is held, in milliseconds. */
+	static final int STALL_TIME = 3000;
+
+	private final ConcurrentMap<String, AtomicInteger> requests = Maps.newConcurrentMap();
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		final String assertion = String.valueOf(req.getParameter("assertion"));
+		requests.putIfAbsent(assertion, new AtomicInteger());
+		final int request = requests.get(assertion).incrementAndGet();
+
+		if (request == 1) {
+			try {
+				Thread.sleep(STALL_TIME);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		resp.setContentType("application/json");
+		resp.getWriter().write("{\"status\":\"okay\",\"email\":\"user" + request + "@example.com\"}");
+	}
+
+}
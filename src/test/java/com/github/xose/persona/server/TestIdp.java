@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Local identity provider issuing test certificates and assertions.
+ * <p>
+ * Keys are generated on the fly, so tests run offline.
+ */
+final class TestIdp {
+
+	private static final BaseEncoding BASE64URL = BaseEncoding.base64Url().omitPadding();
+
+	private final String domain;
+	private final KeyPair keys;
+
+	TestIdp(String domain) {
+		this.domain = domain;
+		this.keys = generate("RSA", 2048);
+	}
+
+	String getDomain() {
+		return domain;
+	}
+
+	PublicKey getPublicKey() {
+		return keys.getPublic();
+	}
+
+	static KeyPair generate(String algorithm, int size) {
+		try {
+			final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+			generator.initialize(size);
+			return generator.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Issues a certificate for a user key.
+	 */
+	String certify(String email, PublicKey userKey, long expires) {
+		return certify(domain, email, userKey, expires);
+	}
+
+	/**
+	 * Issues a certificate for a user key, claiming the given issuer.
+	 */
+	String certify(String issuer, String email, PublicKey userKey, long expires) {
+		final String payload = "{\"iss\":\"" + issuer + "\",\"exp\":" + expires + ",\"iat\":" + (expires - 3600000) + ",\"public-key\":"
+				+ toJson(userKey) + ",\"principal\":{\"email\":\"" + email + "\"}}";
+		return sign("RS256", keys.getPrivate(), payload);
+	}
+
+	/**
+	 * Creates a backed identity assertion, signed with the user key.
+	 */
+	static String assertion(String certificate, KeyPair user, String audience, long expires) {
+		final String alg = user.getPublic() instanceof DSAPublicKey ? "DS128" : "RS256";
+		return certificate + "~" + sign(alg, user.getPrivate(), "{\"exp\":" + expires + ",\"aud\":\"" + audience + "\"}");
+	}
+
+	static String sign(String alg, PrivateKey key, String payload) {
+		final String input = encode("{\"alg\":\"" + alg + "\"}") + "." + encode(payload);
+		try {
+			final Signature signature = Signature.getInstance(alg.startsWith("DS") ? "SHA1withDSA" : "SHA256withRSA");
+			signature.initSign(key);
+			signature.update(input.getBytes(Charsets.US_ASCII));
+			byte[] bytes = signature.sign();
+			if (alg.startsWith("DS"))
+				bytes = toRaw(bytes, 20);
+			return input + "." + BASE64URL.encode(bytes);
+		} catch (GeneralSecurityException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	static String encode(String json) {
+		return BASE64URL.encode(json.getBytes(Charsets.UTF_8));
+	}
+
+	static String toJson(PublicKey key) {
+		if (key instanceof RSAPublicKey) {
+			final RSAPublicKey rsa = (RSAPublicKey) key;
+			return "{\"algorithm\":\"RS\",\"n\":\"" + rsa.getModulus() + "\",\"e\":\"" + rsa.getPublicExponent() + "\"}";
+		}
+
+		final DSAPublicKey dsa = (DSAPublicKey) key;
+		return "{\"algorithm\":\"DS\",\"y\":\"" + dsa.getY().toString(16) + "\",\"p\":\"" + dsa.getParams().getP().toString(16) + "\",\"q\":\""
+				+ dsa.getParams().getQ().toString(16) + "\",\"g\":\"" + dsa.getParams().getG().toString(16) + "\"}";
+	}
+
+	/**
+	 * Converts a DER DSA signature to the fixed size {@code r || s} format.
+	 */
+	private static byte[] toRaw(byte[] der, int size) {
+		int i = 2;
+		final int rLength = der[i + 1];
+		final BigInteger r = new BigInteger(Arrays.copyOfRange(der, i + 2, i + 2 + rLength));
+		i += 2 + rLength;
+		final int sLength = der[i + 1];
+		final BigInteger s = new BigInteger(Arrays.copyOfRange(der, i + 2, i + 2 + sLength));
+
+		final byte[] raw = new byte[2 * size];
+		copy(r, raw, 0, size);
+		copy(s, raw, size, size);
+		return raw;
+	}
+
+	private static void copy(BigInteger value, byte[] dst, int offset, int size) {
+		final byte[] bytes = value.toByteArray();
+		final int length = Math.min(bytes.length, size);
+		System.arraycopy(bytes, bytes.length - length, dst, offset + size - length, length);
+	}
+
+}
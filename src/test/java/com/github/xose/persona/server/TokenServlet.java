@@ -0,0 +1,67 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stateless login endpoint for client tests.
+ * <p>
+ * Logins with the assertion {@code valid} are answered with the session
+ * token {@value #TOKEN}, others are rejected. Refreshes succeed only if that
+ * token is sent as a bearer token; the {@code extend} operation refreshes
+ * the same way, but without sending the token again. The {@code denied}
+ * operation is answered with HTTP 403. The operation is given by the
+ * {@code op} parameter.
+ */
+public class TokenServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	static final String TOKEN = "test-token";
+
+	private static final String USER = "{\"status\":\"okay\",\"email\":\"user@example.com\",\"token\":\"" + TOKEN + "\",\"expires\":4102444800000}";
+
+	private static final String EXTENDED = "{\"status\":\"okay\",\"email\":\"user@example.com\",\"expires\":4102444800000}";
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		final String op = req.getParameter("op");
+		if ("denied".equals(op)) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		final String reply;
+		if ("login".equals(op))
+			reply = "valid".equals(req.getParameter("assertion")) ? USER : "{\"status\":\"failure\",\"reason\":\"Invalid assertion\"}";
+		else if ("refresh".equals(op))
+			reply = ("Bearer " + TOKEN).equals(req.getHeader("Authorization")) ? USER : "{\"status\":\"failure\",\"reason\":\"Not logged in\"}";
+		else if ("extend".equals(op))
+			reply = ("Bearer " + TOKEN).equals(req.getHeader("Authorization")) ? EXTENDED : "{\"status\":\"failure\",\"reason\":\"Not logged in\"}";
+		else
+			reply = "{\"status\":\"okay\"}";
+
+		resp.setContentType("application/json");
+		resp.getWriter().write(reply);
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.xose.persona.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class VerifierTest {
+
+	private static final String AUDIENCE = "https://rp.example.org";
+	private static final String EMAIL = "user@example.com";
+
+	private static final TestIdp idp = new TestIdp("example.com");
+	private static final TestIdp fallback = new TestIdp("login.persona.org");
+	private static final KeyPair dsaUser = TestIdp.generate("DSA", 1024);
+	private static final KeyPair rsaUser = TestIdp.generate("RSA", 1024);
+
+	private Verifier verifier;
+	private long now;
+
+	@Before
+	public void setUp() {
+		final IssuerKeyResolver keys = new IssuerKeyResolver() {
+			private final ImmutableMap<String, PublicKey> issuers = ImmutableMap.of(idp.getDomain(), idp.getPublicKey(), fallback.getDomain(),
+					fallback.getPublicKey());
+
+			@Override
+			public PublicKey resolve(String issuer) throws VerificationException {
+				final PublicKey key = issuers.get(issuer);
+				if (key == null)
+					throw new VerificationException("Unknown issuer " + issuer);
+				return key;
+			}
+		};
+
+		verifier = new Verifier(keys, ImmutableSet.of(fallback.getDomain()), new ReplayCache(1000));
+		now = System.currentTimeMillis();
+	}
+
+	private String assertion(KeyPair user, String audience) {
+		return TestIdp.assertion(idp.certify(EMAIL, user.getPublic(), now + 60000), user, audience, now + 60000);
+	}
+
+	@Test
+	public void verifiesDsaUserKey() throws Exception {
+		final VerifiedAssertion verified = verifier.verify(assertion(dsaUser, AUDIENCE), AUDIENCE);
+		assertEquals(EMAIL, verified.getEmail());
+		assertEquals(AUDIENCE, verified.getAudience());
+		assertEquals(idp.getDomain(), verified.getIssuer());
+	}
+
+	@Test
+	public void verifiesRsaUserKey() throws Exception {
+		assertEquals(EMAIL, verifier.verify(assertion(rsaUser, AUDIENCE), AUDIENCE).getEmail());
+	}
+
+	@Test
+	public void verifiesFallbackIssuer() throws Exception {
+		final String cert = fallback.certify("user@other.net", rsaUser.getPublic(), now + 60000);
+		assertEquals("user@other.net", verifier.verify(TestIdp.assertion(cert, rsaUser, AUDIENCE, now + 60000), AUDIENCE).getEmail());
+	}
+
+	@Test
+	public void normalizesAudience() throws Exception {
+		verifier.verify(assertion(rsaUser, "rp.example.org:443"), "https://RP.example.org");
+	}
+
+	@Test
+	public void rejectsReplay() throws Exception {
+		final String assertion = assertion(rsaUser, AUDIENCE);
+		verifier.verify(assertion, AUDIENCE);
+		assertRejected(assertion, AUDIENCE, "Assertion already used");
+	}
+
+	@Test
+	public void rejectsOtherAudience() throws Exception {
+		assertRejected(assertion(rsaUser, "https://evil.example.org"), AUDIENCE, "Audience mismatch");
+		assertRejected(assertion(rsaUser, "http://rp.example.org"), AUDIENCE, "Audience mismatch");
+	}
+
+	@Test
+	public void rejectsTamperedAssertion() throws Exception {
+		final String assertion = assertion(rsaUser, "https://evil.example.org");
+		final int payload = assertion.indexOf('.', assertion.indexOf('~')) + 1;
+		final String tampered = assertion.substring(0, payload) + TestIdp.encode("{\"exp\":" + (now + 60000) + ",\"aud\":\"" + AUDIENCE + "\"}")
+				+ assertion.substring(assertion.indexOf('.', payload));
+		assertRejected(tampered, AUDIENCE, "Invalid signature");
+	}
+
+	@Test
+	public void rejectsTamperedCertificate() throws Exception {
+		// A certificate for another user key, signed by the IdP key of
+		// another domain
+		final String cert = new TestIdp("example.com").certify(EMAIL, rsaUser.getPublic(), now + 60000);
+		assertRejected(TestIdp.assertion(cert, rsaUser, AUDIENCE, now + 60000), AUDIENCE, "Invalid signature");
+	}
+
+	@Test
+	public void rejectsAssertionSignedByOtherKey() throws Exception {
+		final String cert = idp.certify(EMAIL, rsaUser.getPublic(), now + 60000);
+		assertRejected(TestIdp.assertion(cert, dsaUser, AUDIENCE, now + 60000), AUDIENCE, "Unsupported signature algorithm: DS128");
+		assertRejected(TestIdp.assertion(cert, TestIdp.generate("RSA", 1024), AUDIENCE, now + 60000), AUDIENCE, "Invalid signature");
+	}
+
+	@Test
+	public void rejectsUnsignedAssertion() throws Exception {
+		// As made by the client FakeNavigatorId
+		final String none = TestIdp.encode("{\"alg\":\"none\"}") + ".";
+		final String cert = idp.certify(EMAIL, rsaUser.getPublic(), now + 60000);
+		final String unsignedCert = none + cert.substring(cert.indexOf('.') + 1, cert.lastIndexOf('.') + 1);
+		assertRejected(unsignedCert + "~" + none + TestIdp.encode("{\"exp\":" + (now + 60000) + ",\"aud\":\"" + AUDIENCE + "\"}") + ".",
+				AUDIENCE, "Unsupported signature algorithm: none");
+	}
+
+	@Test
+	public void rejectsExpiredCertificate() throws Exception {
+		final String cert = idp.certify(EMAIL, rsaUser.getPublic(), now - 1000);
+		assertRejected(TestIdp.assertion(cert, rsaUser, AUDIENCE, now + 60000), AUDIENCE, "Certificate expired");
+	}
+
+	@Test
+	public void rejectsExpiredAssertion() throws Exception {
+		final String cert = idp.certify(EMAIL, rsaUser.getPublic(), now + 60000);
+		assertRejected(TestIdp.assertion(cert, rsaUser, AUDIENCE, now - 1000), AUDIENCE, "Assertion expired");
+	}
+
+	@Test
+	public void rejectsWrongIssuer() throws Exception {
+		final TestIdp other = new TestIdp("other.net");
+		final String cert = other.certify(EMAIL, rsaUser.getPublic(), now + 60000);
+		assertRejected(TestIdp.assertion(cert, rsaUser, AUDIENCE, now + 60000), AUDIENCE, "Issuer other.net may not certify " + EMAIL);
+
+		// The IdP of the email domain claiming to be a fallback issuer
+		final String claimed = idp.certify(fallback.getDomain(), "user@other.net", rsaUser.getPublic(), now + 60000);
+		assertRejected(TestIdp.assertion(claimed, rsaUser, AUDIENCE, now + 60000), AUDIENCE, "Invalid signature");
+	}
+
+	@Test
+	public void rejectsMalformedAssertions() throws Exception {
+		final String valid = assertion(rsaUser, AUDIENCE);
+		final String cert = valid.substring(0, valid.indexOf('~'));
+
+		assertMalformed("");
+		assertMalformed("not an assertion");
+		assertMalformed(cert);
+		assertMalformed(cert + "~");
+		assertMalformed(cert + "~a.b");
+		assertMalformed(cert + "~a.b.c.d");
+		assertMalformed(cert + "~!!!!.????.c");
+		assertMalformed(cert + "~" + TestIdp.encode("{\"alg\":\"RS256\"}") + "." + TestIdp.encode("{\"exp\": 1, aud}") + ".c2ln");
+		assertMalformed(cert + "~" + TestIdp.encode("{\"alg\":\"RS256\"}") + "." + TestIdp.encode("[1, 2]") + ".c2ln");
+		assertMalformed(cert + "~" + TestIdp.encode("{\"alg\":\"RS256\"") + "." + TestIdp.encode("{}") + ".c2ln");
+		assertMalformed(cert + "~" + TestIdp.encode("{\"alg\":\"RS256\"}") + "." + TestIdp.encode("{\"exp\":\"soon\"}") + ".c2ln");
+		assertMalformed(valid.replace('~', 'é'));
+	}
+
+	@Test
+	public void reportsTemporaryFailures() throws Exception {
+		verifier = new Verifier(new IssuerKeyResolver() {
+			@Override
+			public PublicKey resolve(String issuer) throws VerificationException {
+				if (!issuer.equals(idp.getDomain()))
+					throw new VerificationException("Cannot fetch support document for " + issuer, null, true);
+				return idp.getPublicKey();
+			}
+		}, ImmutableSet.of(fallback.getDomain()), new ReplayCache(1, 1));
+
+		final String other = TestIdp.assertion(fallback.certify("user@other.net", rsaUser.getPublic(), now + 60000), rsaUser, AUDIENCE,
+				now + 60000);
+		assertTemporary(other, "Cannot fetch support document for login.persona.org");
+
+		verifier.verify(assertion(rsaUser, AUDIENCE), AUDIENCE);
+		assertTemporary(assertion(dsaUser, AUDIENCE), "Replay cache full");
+
+		final List<VerificationResult> results = verifier.verifyAll(Arrays.asList(other), AUDIENCE, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		assertTrue(results.get(0).isTemporary());
+	}
+
+	@Test
+	public void verifiesBatch() throws Exception {
+		final String valid = assertion(dsaUser, AUDIENCE);
+		final List<String> assertions = Arrays.asList(valid, assertion(rsaUser, "https://evil.example.org"), assertion(rsaUser, AUDIENCE),
+				"garbage", valid);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<VerificationResult> results = verifier.verifyAll(assertions, AUDIENCE, executor);
+			assertEquals(5, results.size());
+			assertTrue(results.get(2).isValid());
+			assertEquals(EMAIL, results.get(2).getAssertion().getEmail());
+			assertEquals("Audience mismatch", results.get(1).getReason());
+			assertFalse(results.get(3).isValid());
+
+			// The same assertion twice in a batch is only accepted once
+			assertTrue(results.get(0).isValid() != results.get(4).isValid());
+			assertEquals("Assertion already used", (results.get(0).isValid() ? results.get(4) : results.get(0)).getReason());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void assertRejected(String assertion, String audience, String reason) {
+		try {
+			verifier.verify(assertion, audience);
+			fail("Accepted " + assertion);
+		} catch (VerificationException e) {
+			assertEquals(reason, e.getMessage());
+			assertFalse(e.isTemporary());
+		}
+	}
+
+	private void assertTemporary(String assertion, String reason) {
+		try {
+			verifier.verify(assertion, AUDIENCE);
+			fail("Accepted " + assertion);
+		} catch (VerificationException e) {
+			assertEquals(reason, e.getMessage());
+			assertTrue(e.isTemporary());
+		}
+	}
+
+	private void assertMalformed(String assertion) {
+		try {
+			verifier.verify(assertion, AUDIENCE);
+			fail("Accepted " + assertion);
+		} catch (VerificationException e) {
+			// Expected
+		}
+	}
+
+}